@@ -0,0 +1,12 @@
+#This program counts to one million in a tight loop and then exits.  It
+#never traps until the end so it is handy for measuring raw CPU speed.
+#When it completes, the registers should have these values:
+#    r0=0 r1=1000000 r2=1 r3=1000000 r4=0
+
+SET r1 0       #counter
+SET r2 1       #increment amount
+SET r3 1000000 #limit
+
+:loop
+ADD r1 r2 r1
+BNE r1 r3 loop
@@ -0,0 +1,89 @@
+####################################################
+#This program prints ten keystrokes to the console
+#like readwrite.asm but reads them all with one
+#READV system call into a buffer at address 400 and
+#prints them with one WRITEV.  The keyboard device
+#should have id 0.  The console device should have
+#id 1.
+###################################################
+
+#Reserve the keyboard device
+SET r0 0       #device #0 (keyboard)
+PUSH r0        #push argument on stack
+SET r4 3       #OPEN sys call id
+PUSH r4        #push sys call id on stack
+TRAP           #open the device
+
+#Check for failure
+POP r4         #get return code from the system call
+SET r0 0       #Succes code
+BNE r0 r4 exit #exit program on error
+
+#Reserve the console device
+SET r0 1       #device #1 (console output)
+PUSH r0        #push argument on stack
+SET r4 3       #OPEN sys call id
+PUSH r4        #push sys call id on stack
+TRAP           #open the device
+
+#Check for failure
+POP r4         #get return code from the system call
+SET r0 0       #Succes code
+BNE r0 r4 exit #exit program on error
+
+#Read ten keystrokes into the buffer
+SET r1 400     #buffer address
+SET r3 10      #number of keystrokes
+PUSH r0        #push device number 0 (keyboard)
+PUSH r0        #push address (arg not used by this device so any val will do)
+PUSH r1        #push buffer address
+PUSH r3        #push number of keystrokes
+SET r4 10      #READV system call id
+PUSH r4        #push system call id
+TRAP           #system call to read the keystrokes
+
+#Check for failure
+POP r4         #get return code from the system call
+SET r0 0       #Succes code
+BNE r0 r4 exit #exit program on error
+
+#save the number of keystrokes read
+POP r3         #save the count in r3
+
+#Write the buffer to the console
+SET r0 1       #device #1 (console output)
+PUSH r0        #push device number
+PUSH r0        #push address (arg not used by this device so any val will do)
+PUSH r1        #push buffer address
+PUSH r3        #push number of keystrokes
+SET r4 11      #WRITEV system call id
+PUSH r4        #push system call id
+TRAP           #system call to write the keystrokes
+
+#Retrieve but ignore success/error code and count
+POP r4
+POP r4
+
+#close the keyboard device
+SET r4 0       #keyboard device id
+PUSH r4        #push device number 0 (keyboard)
+SET r4 4       #CLOSE sys call id
+PUSH r4        #push the sys call id onto the stack
+TRAP           #close the device
+
+#Retrieve but ignore success/error code (we're exiting anyway)
+POP r4
+
+#close the console device
+SET r4 1       #console device id
+PUSH r4        #push device number 1 (console output)
+SET r4 4       #CLOSE sys call id
+PUSH r4        #push the sys call id onto the stack
+TRAP           #close the device
+
+
+#exit syscall
+:exit
+SET  r4 0      #EXIT system call id
+PUSH r4        #push sys call id on stack
+TRAP           #exit the program
@@ -0,0 +1,70 @@
+####################################################
+#This program is a periodic (real-time) task.  Each
+#of its 50 jobs reads a sensor value from device 0,
+#works on it for a while and then waits for its next
+#period.  The sensor device must have id = 0.
+###################################################
+
+#Reserve the sensor device
+SET r0 0       #device #0 (sensor)
+PUSH r0        #push device id on stack
+SET r4 3       #OPEN sys call id
+PUSH r4        #push sys call id on stack
+TRAP           #open the device
+
+#Check for failure
+POP r4         #get return code from the system call
+SET r0 0       #Success code
+BNE r0 r4 exit #exit program on error
+
+#Initialize the variables
+SET r1 0       #job counter
+SET r2 1       #increment amount
+SET r3 50      #number of jobs
+
+#begin job
+:job
+ADD r1 r2 r1
+
+#Read the sensor
+SET r0 0       #device #0 (sensor)
+PUSH r0        #push device number
+PUSH r0        #push address (arg not used by this device so any val will do)
+SET r4 5       #READ system call id
+PUSH r4        #push the sys call id
+TRAP           #system call to read the value
+
+#Check for failure
+POP r4         #get return code from the system call
+SET r0 0       #Success code
+BNE r0 r4 exit #exit program on error
+POP r4         #the sensor value
+
+#work on the value
+SET r0 0       #work counter
+SET r4 300     #work limit
+:work
+ADD r0 r2 r0
+BNE r0 r4 work
+
+#wait for the next period
+SET r4 7       #NEXTPERIOD system call id
+PUSH r4        #push the sys call id
+TRAP           #done with this job
+
+#end of job
+BNE r1 r3 job  #repeat 50 times
+
+#close the sensor device
+SET r0 0
+PUSH r0        #push device number 0 (sensor)
+SET r4 4       #CLOSE sys call id
+PUSH r4        #push the sys call id onto the stack
+TRAP           #close the device
+POP r4         #ignore the return code
+
+#exit syscall
+:exit
+SET  r4 0      #EXIT system call id
+PUSH r4        #push sys call id on stack
+TRAP           #exit the program
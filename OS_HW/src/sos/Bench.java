@@ -0,0 +1,1240 @@
+package sos;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class contains measurements of the simulation itself (as opposed to
+ * the programs it runs).  Each measurement is a static method that builds
+ * its own hardware and OS just like {@link Sim} does.
+ *
+ * @see Sim
+ * @see CPU
+ */
+public class Bench
+{
+    /**
+     * where the measurements keep the simulated RAM (see RAM#create) and the
+     * smallest RAM (in words) they build
+     */
+    private static int s_ramBackend = RAM.HEAP;
+    private static int s_ramSize = 0;
+
+    /**
+     * specifies whether the measurements put a model of an L1/L2 cache
+     * between the CPU and RAM
+     */
+    private static boolean s_cache = false;
+
+    /**
+     * specifies whether the measurements give processes paged virtual
+     * memory
+     */
+    private static boolean s_paging = false;
+
+    /**
+     * the time slice (in instructions) that processes get when the
+     * measurements run several of them (0 to run each until it exits)
+     */
+    private static long s_quantum = 0;
+
+    /**
+     * specifies whether the measurements schedule processes with a
+     * multilevel feedback queue instead of round robin
+     */
+    private static boolean s_mlfq = false;
+
+    /**
+     * the programs that -verify runs
+     */
+    private static final String VERIFY_PROGRAMS[] = {
+        "count10.asm",
+        "crazycount.asm",
+        "divzero.asm",
+        "factorial.asm",
+        "getpid.asm",
+        "getpid2.asm",
+        "hw3test.asm",
+        "illegalMemTest.asm",
+        "iobound.asm",
+        "longcount.asm",
+        "print10.asm",
+        "print10v.asm",
+        "readwrite.asm",
+        "readwritev.asm",
+        "sensor.asm",
+        "sysCallTest.asm" };
+
+    /**
+     * the most instructions a program may execute under -verify (so that a
+     * miscompiled loop can't run forever)
+     */
+    private static final long VERIFY_BUDGET = 100000000;
+
+    /**
+     * the constructor does nothing
+     */
+    public Bench() { }
+
+    /**
+     * measureAllocation
+     *
+     * runs a loop-heavy program and reports how many bytes the host JVM
+     * allocated per guest instruction while the CPU was running.  The
+     * interpreter loop is meant to allocate nothing, so the result should be
+     * (very close to) zero.  The elapsed time and instruction rate are
+     * reported as well.
+     *
+     * @param fileName the program to run (e.g., longcount.asm)
+     * @param prof     a profiler to attach to the CPU (or null).  Its report
+     *                 is printed along with the measurement.
+     */
+    public static void measureAllocation(String fileName, final Profiler prof)
+    {
+        //Create the simulated hardware and OS
+        final RAM ram = RAM.create(Math.max(s_paging ? RAM.PAGE_SIZE : 1000, s_ramSize), 0, s_ramBackend);
+        final CPU cpu = new CPU(ram);
+        if (s_cache)
+            cpu.setCache(buildCache());
+        final String ramName = ram.getSize() + " word "
+            + ((ram instanceof OffHeapRAM) ? "off-heap" : (ram instanceof SparseRAM) ? "sparse" : "heap")
+            + " RAM";
+        final SOS os  = new SOS(cpu, ram);
+        os.setPaging(s_paging);
+
+        //Load the program into RAM
+        Program prog = new Program();
+        if (prog.load(fileName, false) != 0)
+            return; //Error loading program so exit
+        os.createProcess(prog, 500);
+
+        //This JVM-specific bean reports the bytes allocated by a thread
+        final com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long startBytes = bean.getThreadAllocatedBytes(threadId);
+        final long startTime = System.nanoTime();
+        cpu.setProfiler(prof);
+
+        //Report on the first system call (the program's exit) and then let
+        //the OS handle everything as usual
+        cpu.registerTrapHandler(new CPU.TrapHandler()
+        {
+            private boolean m_reported = false;
+
+            public void interruptIllegalMemoryAccess(int addr)
+            {
+                os.interruptIllegalMemoryAccess(addr);
+            }
+
+            public void interruptDivideByZero()
+            {
+                os.interruptDivideByZero();
+            }
+
+            public void interruptIllegalInstruction(int[] instr)
+            {
+                os.interruptIllegalInstruction(instr);
+            }
+
+            public void interruptPageFault(int addr)
+            {
+                os.interruptPageFault(addr);
+            }
+
+            public void interruptClock()
+            {
+                os.interruptClock();
+            }
+
+            public void systemCall()
+            {
+                if (!m_reported)
+                {
+                    long bytes = bean.getThreadAllocatedBytes(threadId) - startBytes;
+                    long nanos = System.nanoTime() - startTime;
+                    long instrs = cpu.getInstrCount();
+                    Runtime rt = Runtime.getRuntime();
+                    System.out.println("BENCH: " + instrs + " instructions, "
+                                       + bytes + " bytes allocated, "
+                                       + ((double)bytes / instrs) + " bytes/instruction");
+                    System.out.println("BENCH: " + ramName + " (" + ram.getResidentWords()
+                                       + " words resident), heap in use "
+                                       + ((rt.totalMemory() - rt.freeMemory()) >> 20) + " MB");
+                    System.out.println("BENCH: " + (nanos / 1000000) + " ms, "
+                                       + (instrs * 1000 / Math.max(1, nanos)) + " MIPS"
+                                       + " (fusion " + (InstructionCache.isFusion() ? "on" : "off")
+                                       + ", compiler " + (BlockCompiler.isEnabled() ? "on" : "off") + ")");
+                    Clock clock = cpu.getClock();
+                    System.out.println("BENCH: " + clock.getCycles() + " simulated cycles ("
+                                       + (clock.getNanos() / 1000) + " us simulated, "
+                                       + ((double)clock.getCycles() / instrs) + " cycles/instruction)");
+                    if (os.isPaging())
+                    {
+                        long lookups = cpu.getTLBLookups();
+                        long misses = cpu.getTLBMisses();
+                        System.out.println("BENCH: TLB " + lookups + " lookups, " + misses + " misses ("
+                                           + String.format("%.2f", 100.0 * (lookups - misses) / Math.max(1, lookups))
+                                           + "% hits), " + cpu.getTLBFlushes() + " flushes, "
+                                           + os.getPageFaults() + " page faults, "
+                                           + cpu.getTLBCycles() + " refill cycles ("
+                                           + String.format("%.2f", 100.0 * cpu.getTLBCycles() / Math.max(1, clock.getCycles()))
+                                           + "% of simulated time)");
+                    }
+                    if (cpu.getCache() != null)
+                        cpu.getCache().printReport(System.out);
+                    if (prof != null)
+                    {
+                        prof.printReport(System.out);
+                        prof.writeCollapsed(System.out);
+                    }
+                    m_reported = true;
+                }
+                os.systemCall();
+            }
+        });
+
+        cpu.run();
+    }//measureAllocation
+
+    /**
+     * buildCache
+     *
+     * @return a model of a small two level cache: a 4-way write-back L1 of
+     *         1K words and an 8-way write-back L2 of 16K words
+     */
+    public static Cache buildCache()
+    {
+        Cache l2 = new Cache("L2", 16 * 1024, 16, 8, 10, true, null);
+        return new Cache("L1", 1024, 8, 4, 1, true, l2);
+    }//buildCache
+
+    /**
+     * measureSMP
+     *
+     * runs many copies of a loop-heavy program on a machine with the given
+     * number of cores and reports the combined instruction rate.  Running it
+     * with 1, 2, 4, ... cores shows how guest throughput scales.
+     *
+     * @param fileName the program to run (e.g., longcount.asm)
+     * @param numCores the number of cores to simulate
+     * @param numProcs the number of processes to create
+     */
+    public static void measureSMP(String fileName, int numCores, int numProcs)
+    {
+        //Create the simulated hardware and OS
+        RAM ram = RAM.create(Math.max(numProcs * (s_paging ? RAM.PAGE_SIZE : 501), s_ramSize),
+                             0, s_ramBackend);
+        CPU cpus[] = new CPU[numCores];
+        for (int i = 0; i < numCores; i++)
+            cpus[i] = new CPU(ram);
+        SOS os  = new SOS(cpus, ram);
+        os.setPaging(s_paging);
+        os.setScheduler(buildScheduler(s_mlfq, s_quantum));
+
+        //Load the programs into RAM
+        for (int i = 0; i < numProcs; i++)
+        {
+            Program prog = new Program();
+            if (prog.load(fileName, false) != 0)
+                return; //Error loading program so exit
+            os.createProcess(prog, 500);
+        }
+
+        long startTime = System.nanoTime();
+        os.run();
+        long nanos = System.nanoTime() - startTime;
+
+        long instrs = 0;
+        for (CPU cpu : cpus)
+            instrs += cpu.getInstrCount();
+        System.out.println("BENCH: " + numCores + " cores, " + numProcs + " processes, "
+                           + instrs + " instructions in " + (nanos / 1000000) + " ms, "
+                           + (instrs * 1000 / Math.max(1, nanos)) + " MIPS");
+        System.out.println("BENCH: " + ram.getSize() + " word RAM, "
+                           + ram.getResidentWords() + " words resident");
+        printSwitches(os, cpus);
+    }//measureSMP
+
+    /**
+     * printSwitches
+     *
+     * reports how often the OS switched processes and what that cost
+     *
+     * @param os   the OS
+     * @param cpus its cores
+     */
+    public static void printSwitches(SOS os, CPU[] cpus)
+    {
+        long cycles = 0;
+        for (CPU cpu : cpus)
+            cycles += cpu.getClock().getCycles();
+        long switches = Math.max(1, os.getContextSwitches());
+        System.out.println("BENCH: " + os.getScheduler().getName() + ", "
+                           + os.getContextSwitches() + " dispatches, "
+                           + os.getPreemptions() + " preemptions, "
+                           + (os.getSwitchNanos() / switches) + " ns host time and "
+                           + (os.getSwitchCycles() / switches) + " cycles per dispatch ("
+                           + String.format("%.3f", 100.0 * os.getSwitchCycles() / Math.max(1, cycles))
+                           + "% of simulated time)");
+    }//printSwitches
+
+    /**
+     * buildScheduler
+     *
+     * @param mlfq    true for a multilevel feedback queue, false for round
+     *                robin
+     * @param quantum the time slice in instructions (the allotment of the
+     *                top level for an MLFQ, 1000 if it is 0)
+     * @return the scheduler.  An MLFQ has three levels and moves every
+     *         process back to the top every 100 (top level) time slices.
+     */
+    public static Scheduler buildScheduler(boolean mlfq, long quantum)
+    {
+        if (!mlfq)
+            return new RoundRobinScheduler(quantum);
+        if (quantum <= 0)
+            quantum = 1000;
+        return new MLFQScheduler(3, quantum, 100 * quantum);
+    }//buildScheduler
+
+    /**
+     * measureSchedulers
+     *
+     * runs the same mix of CPU bound (longcount.asm) and I/O bound
+     * (iobound.asm) processes on one core under round robin and then under
+     * a multilevel feedback queue, and reports for each policy the
+     * throughput and the average response time (creation to first time on
+     * the core) and turnaround time (creation to exit) of each kind of
+     * process.  All of the processes are created at the start.
+     *
+     * @param numProcs the number of processes of each kind
+     */
+    public static void measureSchedulers(int numProcs)
+    {
+        String programs[] = { "longcount.asm", "iobound.asm" };
+        long quantum = (s_quantum > 0) ? s_quantum : 1000;
+        for (int pass = 0; pass < 2; pass++)
+        {
+            //Create the simulated hardware and OS.  The I/O bound processes
+            //write to a device that throws the values away.
+            RAM ram = RAM.create(Math.max(2 * numProcs * (s_paging ? RAM.PAGE_SIZE : 501), s_ramSize),
+                                 0, s_ramBackend);
+            CPU cpu = new CPU(ram);
+            SOS os  = new SOS(cpu, ram);
+            os.setPaging(s_paging);
+            os.setScheduler(buildScheduler(pass == 1, quantum));
+            os.registerDevice(new NullDevice(), 1);
+
+            //Load the programs into RAM, alternating the kinds
+            for (int i = 0; i < numProcs; i++)
+            {
+                for (String fileName : programs)
+                {
+                    Program prog = new Program();
+                    if (prog.load(fileName, false) != 0)
+                        return; //Error loading program so exit
+                    os.createProcess(prog, 500);
+                }
+            }
+
+            os.run();
+
+            Clock clock = cpu.getClock();
+            List<SOS.ProcessRecord> finished = os.getFinished();
+            System.out.println("BENCH: " + os.getScheduler().getName() + ": "
+                               + finished.size() + " processes in "
+                               + clock.getCycles() + " cycles, "
+                               + String.format("%.3f", finished.size() * 1e6 / Math.max(1, clock.getCycles()))
+                               + " processes per million cycles");
+            for (String fileName : programs)
+            {
+                long response = 0;
+                long turnaround = 0;
+                int n = 0;
+                for (SOS.ProcessRecord pr : finished)
+                {
+                    if (!fileName.equals(pr.getProgram()))
+                        continue;
+                    response += pr.getResponseCycles();
+                    turnaround += pr.getTurnaroundCycles();
+                    n++;
+                }
+                n = Math.max(1, n);
+                System.out.println(String.format("BENCH:     %-16s average response %12d cycles, turnaround %12d cycles",
+                                                 fileName, response / n, turnaround / n));
+            }
+            printSwitches(os, new CPU[]{cpu});
+        }
+    }//measureSchedulers
+
+    /**
+     * measureIO
+     *
+     * runs the same mix of CPU bound (longcount.asm) and I/O bound
+     * (iobound.asm) processes as measureSchedulers, but the device the I/O
+     * bound ones write to takes 2000 cycles per request.  The mix is run
+     * once with each core waiting for its process' requests and once with
+     * processes giving up their cores while they wait, and the total time,
+     * idle time and time spent waiting for the device are reported.
+     *
+     * @param numProcs the number of processes of each kind
+     */
+    public static void measureIO(int numProcs)
+    {
+        String programs[] = { "longcount.asm", "iobound.asm" };
+        long quantum = (s_quantum > 0) ? s_quantum : 1000;
+        for (int pass = 0; pass < 2; pass++)
+        {
+            //Create the simulated hardware and OS
+            boolean async = (pass == 1);
+            RAM ram = RAM.create(Math.max(2 * numProcs * (s_paging ? RAM.PAGE_SIZE : 501), s_ramSize),
+                                 0, s_ramBackend);
+            CPU cpu = new CPU(ram);
+            SOS os  = new SOS(cpu, ram);
+            os.setPaging(s_paging);
+            os.setScheduler(buildScheduler(s_mlfq, quantum));
+            os.setAsyncIO(async);
+            os.registerDevice(new NullDevice(), 1, 2000);
+
+            //Load the programs into RAM, alternating the kinds
+            for (int i = 0; i < numProcs; i++)
+            {
+                for (String fileName : programs)
+                {
+                    Program prog = new Program();
+                    if (prog.load(fileName, false) != 0)
+                        return; //Error loading program so exit
+                    os.createProcess(prog, 500);
+                }
+            }
+
+            os.run();
+
+            Clock clock = cpu.getClock();
+            List<SOS.ProcessRecord> finished = os.getFinished();
+            long waits = Math.max(1, os.getIOWaits());
+            System.out.println("BENCH: " + (async ? "asynchronous" : "synchronous") + " I/O: "
+                               + finished.size() + " processes in " + clock.getCycles()
+                               + " cycles (" + os.getIdleCycles() + " idle), "
+                               + os.getIOWaits() + " device requests waited "
+                               + (os.getIOWaitCycles() / waits) + " cycles on average");
+            for (String fileName : programs)
+            {
+                long turnaround = 0;
+                int n = 0;
+                for (SOS.ProcessRecord pr : finished)
+                {
+                    if (!fileName.equals(pr.getProgram()))
+                        continue;
+                    turnaround += pr.getTurnaroundCycles();
+                    n++;
+                }
+                System.out.println(String.format("BENCH:     %-16s average turnaround %12d cycles",
+                                                 fileName, turnaround / Math.max(1, n)));
+            }
+            printSwitches(os, new CPU[]{cpu});
+        }
+    }//measureIO
+
+    /**
+     * measureEDF
+     *
+     * runs periodic real-time processes (sensor.asm reading a device that
+     * always reads zero) alongside CPU bound best-effort processes
+     * (longcount.asm) on one core under an EDF scheduler, first with
+     * admission control and then admitting everything.  Real-time process i
+     * has a period (and deadline) of 1500 * (i + 1) cycles and a budget of
+     * 800 cycles.  Reports the deadline misses and lateness of the
+     * real-time processes and the turnaround of the best-effort ones.
+     *
+     * @param numRT the number of real-time processes to try to create
+     * @param numBE the number of best-effort processes
+     */
+    public static void measureEDF(int numRT, int numBE)
+    {
+        long quantum = (s_quantum > 0) ? s_quantum : 1000;
+        double limits[] = { 0.9, Double.POSITIVE_INFINITY };
+        for (double limit : limits)
+        {
+            //Create the simulated hardware and OS
+            RAM ram = RAM.create(Math.max((numRT + numBE) * (s_paging ? RAM.PAGE_SIZE : 501), s_ramSize),
+                                 0, s_ramBackend);
+            CPU cpu = new CPU(ram);
+            SOS os  = new SOS(cpu, ram);
+            os.setPaging(s_paging);
+            EDFScheduler edf = new EDFScheduler(buildScheduler(s_mlfq, quantum), cpu.getClock(), limit);
+            os.setScheduler(edf);
+            os.registerDevice(new NullDevice(), 0);
+
+            //Load the programs into RAM
+            for (int i = 0; i < numRT + numBE; i++)
+            {
+                Program prog = new Program();
+                if (prog.load((i < numRT) ? "sensor.asm" : "longcount.asm", false) != 0)
+                    return; //Error loading program so exit
+                if (i < numRT)
+                    os.createProcess(prog, 500, 1500 * (i + 1), 1500 * (i + 1), 800);
+                else
+                    os.createProcess(prog, 500);
+            }
+
+            os.run();
+
+            long turnaround = 0;
+            int n = 0;
+            for (SOS.ProcessRecord pr : os.getFinished())
+            {
+                if (edf.isRealTime(pr.getProcessId()) || !"longcount.asm".equals(pr.getProgram()))
+                    continue;
+                turnaround += pr.getTurnaroundCycles();
+                n++;
+            }
+            System.out.println("BENCH: " + os.getScheduler().getName() + ": "
+                               + cpu.getClock().getCycles() + " cycles, "
+                               + os.getIdleCycles() + " idle, best-effort average turnaround "
+                               + (turnaround / Math.max(1, n)) + " cycles");
+            edf.printReport(System.out);
+            printSwitches(os, new CPU[]{cpu});
+        }
+    }//measureEDF
+
+    /**
+     * measureMemory
+     *
+     * runs a stream of short programs with a mix of memory sizes through a
+     * fixed RAM once with each allocation strategy.  A new process is
+     * created whenever there is enough free RAM for it, so RAM stays full
+     * and gets fragmented.  Reports the allocation failures, fragmentation
+     * (external and, for the buddy allocator, internal), compactions and
+     * how long allocation took.
+     *
+     * @param numJobs  the number of processes to run
+     * @param programs the programs to run (in turn)
+     * @param sizes    the memory sizes to pick from (at random)
+     * @param ramSize  the size of RAM in words (or more if -ram asks)
+     */
+    public static void measureMemory(int numJobs, String programs[], int sizes[], int ramSize)
+    {
+        String names[] = { "first fit", "best fit", "next fit", "buddy" };
+        int strategies[] = { SOS.ALLOC_FIRST_FIT, SOS.ALLOC_BEST_FIT, SOS.ALLOC_NEXT_FIT,
+                             SOS.ALLOC_BUDDY };
+        for (int s = 0; s < strategies.length; s++)
+        {
+            //Create the simulated hardware and OS
+            RAM ram = RAM.create(Math.max(ramSize, s_ramSize), 0, s_ramBackend);
+            CPU cpu = new CPU(ram);
+            SOS os  = new SOS(cpu, ram);
+            os.setScheduler(buildScheduler(s_mlfq, (s_quantum > 0) ? s_quantum : 20));
+            os.setAllocStrategy(strategies[s]);
+
+            Program progs[] = new Program[programs.length];
+            for (int i = 0; i < programs.length; i++)
+            {
+                progs[i] = new Program();
+                if (progs[i].load(programs[i], false) != 0)
+                    return; //Error loading program so exit
+            }
+
+            //Create a process whenever there is room for it and otherwise
+            //run the ones there are until something happens
+            java.util.Random rnd = new java.util.Random(42);
+            int size = sizes[rnd.nextInt(sizes.length)];
+            int created = 0;
+            long startTime = System.nanoTime();
+            while (created < numJobs)
+            {
+                if (os.getFreeWords() > size && os.createProcess(progs[created % progs.length], size))
+                {
+                    created++;
+                    size = sizes[rnd.nextInt(sizes.length)];
+                }
+                else if (cpu.run(Long.MAX_VALUE) == CPU.RUN_HALT && os.getFreeWords() == ram.getSize())
+                    return; //It doesn't fit in an empty RAM so give up
+            }
+            os.run();
+            long nanos = System.nanoTime() - startTime;
+
+            long allocs = Math.max(1, os.getAllocations());
+            System.out.println("BENCH: " + names[s] + ": " + created + " processes in "
+                               + (nanos / 1000000) + " ms, " + os.getAllocFailures() + " of "
+                               + os.getAllocations() + " allocations failed, fragmentation "
+                               + String.format("%.1f", 100 * os.getAverageFragmentation())
+                               + "% external and "
+                               + String.format("%.1f", 100 * os.getAverageInternalFragmentation())
+                               + "% internal on average");
+            System.out.println("BENCH:     " + os.getCompactions() + " compactions moved "
+                               + os.getWordsMoved() + " words, allocation took "
+                               + (os.getAllocNanos() / allocs) + " ns on average and "
+                               + os.getMaxAllocNanos() + " ns at most");
+        }
+    }//measureMemory
+
+    /**
+     * measureChurn
+     *
+     * runs a stream of tiny processes (getpid.asm, which exits right after
+     * printing its id) through a large RAM so that thousands of blocks are
+     * allocated and freed at a high rate and many are in use at once.  This
+     * is where the time to search a free list shows and a buddy allocator
+     * should keep allocation fast.
+     *
+     * @param numJobs the number of processes to run
+     */
+    public static void measureChurn(int numJobs)
+    {
+        measureMemory(numJobs, new String[] { "getpid.asm" },
+                      new int[] { 50, 100, 200, 400, 800 }, 1024 * 1024);
+    }//measureChurn
+
+    /**
+     * measureFaults
+     *
+     * runs a stream of tiny processes in one simulation, most of which
+     * fault (divzero.asm and illegalMemTest.asm) while the rest exit
+     * normally (getpid.asm).  Each fault only ends the process that caused
+     * it so the stream never stops.  Processes are created in batches of
+     * 100 and their records are dropped after each batch is counted.
+     * Reports how many processes ended each way and the host time each one
+     * took from creation to exit.  What the programs print is thrown away.
+     *
+     * @param numJobs the number of processes to run
+     */
+    public static void measureFaults(int numJobs)
+    {
+        final int batch = 100;
+        String programs[] = { "divzero.asm", "illegalMemTest.asm", "getpid.asm" };
+        Program progs[] = new Program[programs.length];
+        for (int i = 0; i < programs.length; i++)
+        {
+            progs[i] = new Program();
+            if (progs[i].load(programs[i], false) != 0)
+                return; //Error loading program so exit
+        }
+
+        //Create the simulated hardware and OS
+        RAM ram = RAM.create(Math.max(batch * (s_paging ? RAM.PAGE_SIZE : 200), s_ramSize),
+                             0, s_ramBackend);
+        CPU cpu = new CPU(ram);
+        SOS os  = new SOS(cpu, ram);
+        os.setPaging(s_paging);
+        os.setScheduler(buildScheduler(s_mlfq, s_quantum));
+
+        long exits[] = new long[SOS.EXIT_OUT_OF_MEMORY + 1];
+        int created = 0;
+        java.io.PrintStream out = System.out;
+        System.setOut(new java.io.PrintStream(new java.io.OutputStream()
+        {
+            public void write(int b) { }
+        }));
+        long startTime = System.nanoTime();
+        try
+        {
+            while (created < numJobs)
+            {
+                for (int i = 0; i < batch && created < numJobs; i++, created++)
+                    os.createProcess(progs[created % progs.length], 100);
+                os.run();
+                for (SOS.ProcessRecord pr : os.getFinished())
+                    exits[pr.getExitStatus()]++;
+                os.clearFinished();
+            }
+        }
+        finally
+        {
+            System.setOut(out);
+        }
+        long nanos = System.nanoTime() - startTime;
+
+        System.out.println("BENCH: " + created + " processes in " + (nanos / 1000000) + " ms, "
+                           + (nanos / Math.max(1, created)) + " ns host time each, "
+                           + os.getFaults() + " ended by faults");
+        String names[] = { "exited normally", "illegal memory access", "division by zero",
+                           "illegal instruction", "out of memory" };
+        for (int status = 0; status < exits.length; status++)
+            System.out.println(String.format("BENCH:     %-24s %10d", names[status], exits[status]));
+    }//measureFaults
+
+    /**
+     * measureVectors
+     *
+     * runs system call bound programs that move words one at a time with
+     * READ and WRITE (print10.asm and readwrite.asm) and their versions
+     * that move a whole buffer with one READV or WRITEV (print10v.asm and
+     * readwritev.asm) against devices that read as zero, and reports the
+     * instructions, cycles, context switches and host time each kind
+     * took.
+     *
+     * @param numProcs the number of processes to run of each program
+     */
+    public static void measureVectors(int numProcs)
+    {
+        String programs[] = { "print10.asm", "print10v.asm", "readwrite.asm", "readwritev.asm" };
+        for (String fileName : programs)
+        {
+            //Create the simulated hardware and OS
+            RAM ram = RAM.create(Math.max(numProcs * (s_paging ? RAM.PAGE_SIZE : 501), s_ramSize),
+                                 0, s_ramBackend);
+            CPU cpu = new CPU(ram);
+            SOS os  = new SOS(cpu, ram);
+            os.setPaging(s_paging);
+            os.setScheduler(buildScheduler(s_mlfq, s_quantum));
+            os.registerDevice(new NullDevice(), 0);
+            os.registerDevice(new NullDevice(), 1);
+
+            Program prog = new Program();
+            if (prog.load(fileName, false) != 0)
+                return; //Error loading program so exit
+            for (int i = 0; i < numProcs; i++)
+                os.createProcess(prog, 500);
+
+            long startTime = System.nanoTime();
+            os.run();
+            long nanos = System.nanoTime() - startTime;
+
+            System.out.println(String.format("BENCH: %-16s %d processes, %10d instructions, "
+                                             + "%10d cycles, %8d switches, %6d ms",
+                                             fileName, os.getFinished().size(),
+                                             cpu.getInstrCount(), cpu.getClock().getCycles(),
+                                             os.getContextSwitches(), nanos / 1000000));
+        }
+    }//measureVectors
+
+    /**
+     * measureSyscalls
+     *
+     * runs I/O bound processes (iobound.asm) with more and more of them
+     * and more and more devices installed (the console it writes to last)
+     * and reports the average host time each system call takes.  Looking
+     * up processes and devices shouldn't depend on how many there are so
+     * the time should stay flat.
+     *
+     * @param maxProcs the number of processes in the largest run (the
+     *                 others have a tenth and a hundredth as many)
+     */
+    public static void measureSyscalls(int maxProcs)
+    {
+        int scales[] = { Math.max(1, maxProcs / 100), Math.max(1, maxProcs / 10), maxProcs };
+        int devices[] = { 3, 30, 300 };
+        for (int s = 0; s < scales.length; s++)
+        {
+            //Create the simulated hardware and OS
+            int numProcs = scales[s];
+            RAM ram = RAM.create(Math.max(numProcs * 201, s_ramSize), 0, s_ramBackend);
+            final CPU cpu = new CPU(ram);
+            final SOS os  = new SOS(cpu, ram);
+            os.setScheduler(buildScheduler(s_mlfq, s_quantum));
+            for (int id = 2; id <= devices[s]; id++)
+                os.registerDevice(new NullDevice(), id);
+            os.registerDevice(new NullDevice(), 1);
+
+            Program prog = new Program();
+            if (prog.load("iobound.asm", false) != 0)
+                return; //Error loading program so exit
+            for (int i = 0; i < numProcs; i++)
+                os.createProcess(prog, 200);
+
+            //Time each system call and let the OS handle everything else
+            final long stats[] = new long[2];
+            cpu.registerTrapHandler(new CPU.TrapHandler()
+            {
+                public void interruptIllegalMemoryAccess(int addr)
+                {
+                    os.interruptIllegalMemoryAccess(addr);
+                }
+
+                public void interruptDivideByZero()
+                {
+                    os.interruptDivideByZero();
+                }
+
+                public void interruptIllegalInstruction(int[] instr)
+                {
+                    os.interruptIllegalInstruction(instr);
+                }
+
+                public void interruptPageFault(int addr)
+                {
+                    os.interruptPageFault(addr);
+                }
+
+                public void interruptClock()
+                {
+                    os.interruptClock();
+                }
+
+                public void systemCall()
+                {
+                    long startTime = System.nanoTime();
+                    os.systemCall();
+                    stats[0]++;
+                    stats[1] += System.nanoTime() - startTime;
+                }
+            });
+            os.run();
+
+            System.out.println("BENCH: " + numProcs + " processes, " + devices[s] + " devices: "
+                               + stats[0] + " system calls, "
+                               + (stats[1] / Math.max(1, stats[0])) + " ns host time per call");
+        }
+    }//measureSyscalls
+
+    /**
+     * measureTrace
+     *
+     * runs a loop-heavy program twice, once on its own and once while
+     * recording a trace of it, and reports what tracing costs in time and
+     * trace size.  Since traced code is always interpreted one instruction
+     * at a time the first run is too (without fusion or compiled blocks).
+     *
+     * @param fileName  the program to run (e.g., longcount.asm)
+     * @param traceFile where to write the trace
+     */
+    public static void measureTrace(String fileName, String traceFile)
+    {
+        long nanos[] = new long[2];
+        Trace trace = null;
+        boolean fusion = InstructionCache.isFusion();
+        boolean jit = BlockCompiler.isEnabled();
+        for (int pass = 0; pass < 2; pass++)
+        {
+            //The untraced run is interpreted as well
+            InstructionCache.setFusion(pass == 1 && fusion);
+            BlockCompiler.setEnabled(pass == 1 && jit);
+
+            //Create the simulated hardware and OS
+            RAM ram = new RAM(1000, 0);
+            CPU cpu = new CPU(ram);
+            SOS os  = new SOS(cpu, ram);
+
+            //Load the program into RAM
+            Program prog = new Program();
+            if (prog.load(fileName, false) != 0)
+                return; //Error loading program so exit
+            os.createProcess(prog, 500);
+
+            try
+            {
+                if (pass == 1)
+                {
+                    trace = new Trace(traceFile, false);
+                    cpu.setTrace(trace);
+                }
+
+                long startTime = System.nanoTime();
+                os.run();
+                if (trace != null)
+                    trace.close();
+                nanos[pass] = System.nanoTime() - startTime;
+            }
+            catch(java.io.IOException e)
+            {
+                System.out.println("\nERROR: Could not write trace: " + e);
+                return;
+            }
+        }
+
+        long instrs = trace.getCount();
+        System.out.println("BENCH: " + instrs + " instructions, untraced "
+                           + (nanos[0] / 1000000) + " ms, traced "
+                           + (nanos[1] / 1000000) + " ms ("
+                           + String.format("%.2f", (double)nanos[1] / Math.max(1, nanos[0]))
+                           + "x), " + trace.getBytes() + " bytes ("
+                           + String.format("%.2f", (double)trace.getBytes() / Math.max(1, instrs))
+                           + " bytes/instruction)");
+    }//measureTrace
+
+    /**
+     * verify
+     *
+     * runs each program with the plain interpreter, with superinstruction
+     * fusion, with compiled blocks and with both, and checks that every run
+     * ends with the same registers and RAM as the plain interpreter.  The
+     * registers, instruction count and simulated cycles are compared at
+     * every interrupt and system call as well, so a difference is reported
+     * close to where it happened.  Blocks are compiled the first time they
+     * are reached so that short programs exercise the compiler too.  Each
+     * run stops when the program exits or faults.  Reads give zero and
+     * writes are thrown away (see NullDevice).  A run that doesn't finish
+     * within VERIFY_BUDGET instructions counts as a mismatch.
+     *
+     * @param programs the programs to run
+     * @return the number of runs that didn't match the plain interpreter
+     */
+    public static int verify(String[] programs)
+    {
+        boolean fusion = InstructionCache.isFusion();
+        boolean jit = BlockCompiler.isEnabled();
+        int threshold = BlockCompiler.getThreshold();
+        BlockCompiler.setThreshold(1);
+        int failures = 0;
+        for (String fileName : programs)
+        {
+            List<long[]> expected = null;
+            int expectedRAM[] = null;
+            for (int mode = 0; mode < 4; mode++)
+            {
+                //Bit 0 turns on fusion and bit 1 the compiler
+                InstructionCache.setFusion((mode & 1) != 0);
+                BlockCompiler.setEnabled((mode & 2) != 0);
+                String name = fileName + " (fusion " + (((mode & 1) != 0) ? "on" : "off")
+                    + ", compiler " + (((mode & 2) != 0) ? "on" : "off") + ")";
+                List<long[]> events = new ArrayList<long[]>();
+                int mem[] = runRecorded(fileName, events);
+                if (mem == null)
+                {
+                    System.out.println("VERIFY: " + name + " could not be loaded");
+                    failures++;
+                    break;
+                }
+                if (mode == 0)
+                {
+                    if (events.get(events.size() - 1)[CPU.NUMREG] >= VERIFY_BUDGET)
+                    {
+                        System.out.println("VERIFY: " + name + " did not finish");
+                        failures++;
+                        break;
+                    }
+                    expected = events;
+                    expectedRAM = mem;
+                    continue;
+                }
+
+                //Find the first point where the runs part ways
+                String diff = null;
+                int n = Math.min(events.size(), expected.size());
+                for (int i = 0; i < n && diff == null; i++)
+                    if (!Arrays.equals(events.get(i), expected.get(i)))
+                        diff = "state differs at event " + i + ": " + Arrays.toString(events.get(i))
+                            + " instead of " + Arrays.toString(expected.get(i));
+                if (diff == null && events.size() != expected.size())
+                    diff = events.size() + " events instead of " + expected.size();
+                if (diff == null && events.get(events.size() - 1)[CPU.NUMREG] >= VERIFY_BUDGET)
+                    diff = "did not finish";
+                for (int addr = 0; addr < mem.length && diff == null; addr++)
+                    if (mem[addr] != expectedRAM[addr])
+                        diff = "RAM[" + addr + "] is " + mem[addr] + " instead of " + expectedRAM[addr];
+                if (diff != null)
+                {
+                    System.out.println("VERIFY: " + name + " " + diff);
+                    failures++;
+                }
+            }
+            if (expected != null)
+            {
+                long last[] = expected.get(expected.size() - 1);
+                System.out.println("VERIFY: " + fileName + " " + expected.size() + " events, "
+                                   + last[CPU.NUMREG] + " instructions, "
+                                   + last[CPU.NUMREG + 1] + " cycles");
+            }
+        }
+        InstructionCache.setFusion(fusion);
+        BlockCompiler.setEnabled(jit);
+        BlockCompiler.setThreshold(threshold);
+        System.out.println("VERIFY: " + failures + " mismatches");
+        return failures;
+    }//verify
+
+    /**
+     * runRecorded
+     *
+     * runs a program on a machine of its own until it exits or faults or
+     * has executed VERIFY_BUDGET instructions
+     *
+     * @param fileName the program to run
+     * @param events   gets the state of the CPU (see snapshot) at every
+     *                 interrupt and system call
+     *                 and once more if the budget runs out
+     * @return the contents of the RAM at the end (null if the program
+     *         couldn't be loaded)
+     */
+    private static int[] runRecorded(String fileName, final List<long[]> events)
+    {
+        //Create the simulated hardware and OS
+        final RAM ram = new RAM(1000, 0);
+        final CPU cpu = new CPU(ram);
+        final SOS os  = new SOS(cpu, ram);
+        os.registerDevice(new NullDevice(), 0);
+        os.registerDevice(new NullDevice(), 1);
+
+        //Load the program into RAM
+        Program prog = new Program();
+        if (prog.load(fileName, false) != 0)
+            return null;
+        os.createProcess(prog, 500);
+
+        //Record the state on the way into the OS.  Exits and faults end the
+        //run here; everything else is handled by the OS as usual.
+        cpu.registerTrapHandler(new CPU.TrapHandler()
+        {
+            private void record()
+            {
+                events.add(snapshot(cpu));
+            }
+
+            public void interruptIllegalMemoryAccess(int addr)
+            {
+                record();
+                throw new Finished();
+            }
+
+            public void interruptDivideByZero()
+            {
+                record();
+                throw new Finished();
+            }
+
+            public void interruptIllegalInstruction(int[] instr)
+            {
+                record();
+                throw new Finished();
+            }
+
+            public void interruptPageFault(int addr)
+            {
+                record();
+                os.interruptPageFault(addr);
+            }
+
+            public void interruptClock()
+            {
+                record();
+                os.interruptClock();
+            }
+
+            public void systemCall()
+            {
+                record();
+                int id = ram.read(cpu.getSP());
+                if (id == SOS.SYSCALL_EXIT || id == SOS.SYSCALL_COREDUMP)
+                    throw new Finished();
+                os.systemCall();
+            }
+        });
+
+        try
+        {
+            int status;
+            do
+            {
+                status = cpu.run(VERIFY_BUDGET - cpu.getInstrCount());
+            } while (status != CPU.RUN_HALT && status != CPU.RUN_BUDGET);
+            events.add(snapshot(cpu));
+        }
+        catch(Finished e)
+        {
+            //The program exited or faulted
+        }
+
+        int mem[] = new int[ram.getSize()];
+        for (int addr = 0; addr < mem.length; addr++)
+            mem[addr] = ram.read(addr);
+        return mem;
+    }//runRecorded
+
+    /**
+     * snapshot
+     *
+     * @param cpu a CPU that isn't running (or is in its trap handler)
+     * @return its registers followed by its instruction count and
+     *         simulated cycles
+     */
+    private static long[] snapshot(CPU cpu)
+    {
+        long state[] = new long[CPU.NUMREG + 2];
+        int regs[] = cpu.getRegisters();
+        for (int i = 0; i < CPU.NUMREG; i++)
+            state[i] = regs[i];
+        state[CPU.NUMREG] = cpu.getInstrCount();
+        state[CPU.NUMREG + 1] = cpu.getClock().getCycles();
+        return state;
+    }//snapshot
+
+    /**
+     * main
+     *
+     * runs the measurement on the program named on the command line
+     * (longcount.asm if none is).  The switches are:
+     *
+     *   -nofusion      turn off superinstruction fusion
+     *   -nojit         turn off block compilation
+     *   -verify        check fusion and compiled blocks against the interpreter
+     *   -cores N       run 4 processes per core on a machine with N cores
+     *   -profile N     profile the run, sampling every N instructions (1 counts all)
+     *   -trace FILE    measure the cost of recording a trace to FILE
+     *   -ram N         build a RAM of at least N words
+     *   -offheap       keep the RAM off the JVM heap
+     *   -cache         model an L1/L2 cache (see buildCache) and report hit rates
+     *   -paging        give processes paged virtual memory and report on the TLB
+     *   -sparse        only create the pages of the RAM that are written
+     *   -quantum N     preempt processes every N instructions when several run
+     *   -mlfq          schedule processes with an MLFQ instead of round robin
+     *   -schedulers N  compare both with N CPU bound and N I/O bound processes
+     *   -edf N         run N periodic real-time and 2 CPU bound processes under EDF
+     *   -memory N      run N short processes with each memory allocation strategy
+     *   -churn N       run N tiny processes through a large RAM
+     *   -syscalls N    time system calls with up to N processes and 300 devices
+     *   -io N          run the -schedulers mix against a slow device, with and
+     *                   without asynchronous I/O
+     *   -faults N      run N tiny processes, most of which fault, at once
+     *   -vectors N     compare READ/WRITE with READV/WRITEV for N processes
+     */
+    public static void main(String[] args)
+    {
+        String fileName = "longcount.asm";
+        int numCores = 0;
+        Profiler prof = null;
+        String traceFile = null;
+        int numMixed = 0;
+        int numRealTime = 0;
+        int numJobs = 0;
+        int numChurn = 0;
+        int numSyscalls = 0;
+        int numIO = 0;
+        int numFaults = 0;
+        int numVectors = 0;
+        boolean verify = false;
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("-cores") && i + 1 < args.length)
+                numCores = Integer.parseInt(args[++i]);
+            else if (arg.equals("-nofusion"))
+                InstructionCache.setFusion(false);
+            else if (arg.equals("-profile") && i + 1 < args.length)
+                prof = new Profiler(Integer.parseInt(args[++i]));
+            else if (arg.equals("-ram") && i + 1 < args.length)
+                s_ramSize = Integer.parseInt(args[++i]);
+            else if (arg.equals("-cache"))
+                s_cache = true;
+            else if (arg.equals("-paging"))
+                s_paging = true;
+            else if (arg.equals("-quantum") && i + 1 < args.length)
+                s_quantum = Long.parseLong(args[++i]);
+            else if (arg.equals("-mlfq"))
+                s_mlfq = true;
+            else if (arg.equals("-schedulers") && i + 1 < args.length)
+                numMixed = Integer.parseInt(args[++i]);
+            else if (arg.equals("-edf") && i + 1 < args.length)
+                numRealTime = Integer.parseInt(args[++i]);
+            else if (arg.equals("-memory") && i + 1 < args.length)
+                numJobs = Integer.parseInt(args[++i]);
+            else if (arg.equals("-churn") && i + 1 < args.length)
+                numChurn = Integer.parseInt(args[++i]);
+            else if (arg.equals("-syscalls") && i + 1 < args.length)
+                numSyscalls = Integer.parseInt(args[++i]);
+            else if (arg.equals("-io") && i + 1 < args.length)
+                numIO = Integer.parseInt(args[++i]);
+            else if (arg.equals("-faults") && i + 1 < args.length)
+                numFaults = Integer.parseInt(args[++i]);
+            else if (arg.equals("-vectors") && i + 1 < args.length)
+                numVectors = Integer.parseInt(args[++i]);
+            else if (arg.equals("-offheap"))
+                s_ramBackend = RAM.OFF_HEAP;
+            else if (arg.equals("-sparse"))
+                s_ramBackend = RAM.SPARSE;
+            else if (arg.equals("-trace") && i + 1 < args.length)
+                traceFile = args[++i];
+            else if (arg.equals("-nojit"))
+                BlockCompiler.setEnabled(false);
+            else if (arg.equals("-verify"))
+                verify = true;
+            else
+                fileName = arg;
+        }
+
+        if (verify)
+        {
+            if (verify(VERIFY_PROGRAMS) != 0)
+                System.exit(1);
+        }
+        else if (traceFile != null)
+            measureTrace(fileName, traceFile);
+        else if (numMixed > 0)
+            measureSchedulers(numMixed);
+        else if (numRealTime > 0)
+            measureEDF(numRealTime, 2);
+        else if (numJobs > 0)
+            measureMemory(numJobs, new String[] { "count10.asm", "crazycount.asm" },
+                          new int[] { 200, 400, 800, 1600, 3200 }, 16 * 1024);
+        else if (numChurn > 0)
+            measureChurn(numChurn);
+        else if (numSyscalls > 0)
+            measureSyscalls(numSyscalls);
+        else if (numIO > 0)
+            measureIO(numIO);
+        else if (numFaults > 0)
+            measureFaults(numFaults);
+        else if (numVectors > 0)
+            measureVectors(numVectors);
+        else if (numCores > 0)
+            measureSMP(fileName, numCores, numCores * 4);
+        else
+            measureAllocation(fileName, prof);
+    }//main
+
+    /**
+     * class NullDevice
+     *
+     * a device that can be used by any number of processes at once, reads
+     * as zero and throws away whatever is written to it.  It lets I/O bound
+     * programs be measured without printing anything.
+     */
+    private static class NullDevice implements Device
+    {
+        /** the device id */
+        private int m_id = -1;
+
+        public int getId()
+        {
+            return m_id;
+        }
+
+        public void setId(int id)
+        {
+            m_id = id;
+        }
+
+        public boolean isSharable()
+        {
+            return true;
+        }
+
+        public boolean isAvailable()
+        {
+            return true;
+        }
+
+        public boolean isReadable()
+        {
+            return true;
+        }
+
+        public boolean isWriteable()
+        {
+            return true;
+        }
+
+        public int read(int addr)
+        {
+            return 0;
+        }
+
+        public void write(int addr, int data)
+        {
+        }
+    }//class NullDevice
+
+    /**
+     * class Finished
+     *
+     * is thrown by the trap handler of runRecorded to stop the CPU as soon
+     * as the program exits or faults
+     */
+    private static class Finished extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+    }//class Finished
+};//class Bench
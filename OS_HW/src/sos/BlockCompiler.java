@@ -0,0 +1,668 @@
+package sos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * This class translates hot basic blocks of Pidgin code into JVM bytecode so
+ * that HotSpot can compile them to native code.  It is the second tier of
+ * the CPU: the interpreter counts how often each branch target is reached and
+ * once a target gets hot the block starting there is compiled.
+ *
+ * A compiled block only contains instructions that work on the general
+ * purpose registers (SET, ADD, SUB, MUL, DIV, COPY) and ends with a branch.
+ * A branch back to the start of the block becomes a real loop in the
+ * bytecode.  Anything else (LOAD, SAVE, PUSH, POP, TRAP, illegal
+ * instructions) ends the block and the interpreter takes over at that
+ * instruction.  A DIV by zero also leaves the block <b>before</b> the DIV so
+ * that the interpreter raises the interrupt exactly as it would have.
+ *
+ * Each block is defined by its own class loader so it can be garbage
+ * collected once the code it was compiled from is overwritten.  The class
+ * file is version 49 so it needs no stack map frames.
+ *
+ * @see CPU
+ * @see InstructionCache
+ */
+public class BlockCompiler
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /** the longest block (in instructions) that will be compiled */
+    public static final int MAX_BLOCK = 64;
+
+    //Opcodes of the JVM instructions the compiler emits
+    private static final int ALOAD_0       = 0x2a;
+    private static final int ALOAD_1       = 0x2b;
+    private static final int ILOAD_2       = 0x1c;
+    private static final int ILOAD_3       = 0x1d;
+    private static final int ISTORE_3      = 0x3e;
+    private static final int ICONST_0      = 0x03;
+    private static final int BIPUSH        = 0x10;
+    private static final int SIPUSH        = 0x11;
+    private static final int LDC_W         = 0x13;
+    private static final int IALOAD        = 0x2e;
+    private static final int IASTORE       = 0x4f;
+    private static final int IADD          = 0x60;
+    private static final int ISUB          = 0x64;
+    private static final int IMUL          = 0x68;
+    private static final int IDIV          = 0x6c;
+    private static final int LSHL          = 0x79;
+    private static final int LOR           = 0x81;
+    private static final int I2L           = 0x85;
+    private static final int IINC          = 0x84;
+    private static final int IFNE          = 0x9a;
+    private static final int IF_ICMPEQ     = 0x9f;
+    private static final int IF_ICMPGT     = 0xa3;
+    private static final int IF_ICMPGE     = 0xa2;
+    private static final int GOTO          = 0xa7;
+    private static final int LRETURN       = 0xad;
+    private static final int RETURN        = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    //======================================================================
+    //Static variables
+    //----------------------------------------------------------------------
+
+    /**
+     * specifies whether hot blocks are compiled at all
+     **/
+    private static boolean s_enabled = true;
+
+    /**
+     * the number of times a branch target must be reached before the block
+     * starting there is compiled
+     **/
+    private static int s_threshold = 1000;
+
+    /**
+     * used to give every generated class a unique name
+     **/
+    private static int s_blockCount = 0;
+
+    //======================================================================
+    //Callback Interface
+    //----------------------------------------------------------------------
+
+    /**
+     * Block
+     *
+     * This interface is implemented by every generated class.
+     */
+    public interface Block
+    {
+        /**
+         * execute
+         *
+         * runs the block (possibly many times if it loops)
+         *
+         * @param regs   the CPU's register file
+         * @param budget the most instructions the block may execute
+         * @return the offset (from BASE) of the next instruction in the
+         *         upper 32 bits and the number of instructions executed in
+         *         the lower 32 bits
+         */
+        long execute(int[] regs, int budget);
+    };//interface Block
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor does nothing
+     */
+    public BlockCompiler() { }
+
+    /**
+     * setEnabled
+     *
+     * turns the compiler on or off for blocks that become hot from now on
+     */
+    public static void setEnabled(boolean enabled)
+    {
+        s_enabled = enabled;
+    }//setEnabled
+
+    /**
+     * isEnabled
+     *
+     * @return true if hot blocks are being compiled
+     */
+    public static boolean isEnabled()
+    {
+        return s_enabled;
+    }//isEnabled
+
+    /**
+     * setThreshold
+     *
+     * @param threshold how many times a branch target must be reached before
+     *                  its block is compiled
+     */
+    public static void setThreshold(int threshold)
+    {
+        s_threshold = Math.max(1, threshold);
+    }//setThreshold
+
+    /**
+     * getThreshold
+     *
+     * @return how many times a branch target must be reached before its
+     *         block is compiled
+     */
+    public static int getThreshold()
+    {
+        return s_threshold;
+    }//getThreshold
+
+    /**
+     * blockLength
+     *
+     * @param ic    the decoded code
+     * @param start the offset of the first instruction in the block
+     * @return the number of instructions a block starting at the given offset
+     *         would contain (including the branch that ends it)
+     */
+    public static int blockLength(InstructionCache ic, int start)
+    {
+        int len = 0;
+        for(int o = start; ic.contains(o) && len < MAX_BLOCK; o += CPU.INSTRSIZE)
+        {
+            int op = ic.decodeSingle(o);
+            if (!isCompilable(op))
+                break;
+            len++;
+            if (op == CPU.BRANCH || op == CPU.BNE || op == CPU.BLT)
+                break;
+        }
+        return len;
+    }//blockLength
+
+    /**
+     * isCompilable
+     *
+     * @return true if the given (single, decoded) opcode can appear in a
+     *         compiled block
+     */
+    private static boolean isCompilable(int op)
+    {
+        switch(op)
+        {
+            case CPU.SET:
+            case CPU.ADD:
+            case CPU.SUB:
+            case CPU.MUL:
+            case CPU.DIV:
+            case CPU.COPY:
+            case CPU.BRANCH:
+            case CPU.BNE:
+            case CPU.BLT:
+                return true;
+            default:
+                return false;
+        }
+    }//isCompilable
+
+    /**
+     * compile
+     *
+     * compiles the block starting at the given offset
+     *
+     * @param ic    the decoded code
+     * @param start the offset of the first instruction in the block
+     * @return the compiled block or null if there is nothing worth compiling
+     */
+    public static Block compile(InstructionCache ic, int start)
+    {
+        int len = blockLength(ic, start);
+        if (len == 0)
+            return null;
+
+        String name;
+        synchronized(BlockCompiler.class)
+        {
+            name = "sos/jit/Block" + (++s_blockCount);
+        }
+
+        byte classFile[] = new ClassWriter(name).build(ic, start, len);
+        try
+        {
+            Class<?> c = new BlockLoader(BlockCompiler.class.getClassLoader())
+                .define(name.replace('/', '.'), classFile);
+            return (Block)c.getDeclaredConstructor().newInstance();
+        }
+        catch(Exception e)
+        {
+            //Not being able to compile is never fatal; the interpreter can
+            //always run the code instead
+            SOS.debugPrintln("Unable to compile block at " + start + ": " + e);
+            return null;
+        }
+    }//compile
+
+    //======================================================================
+    // Inner Classes
+    //----------------------------------------------------------------------
+
+    /**
+     * class BlockLoader
+     *
+     * Defines exactly one generated class.  Giving each block its own loader
+     * lets the class be unloaded once the block is discarded.
+     */
+    private static class BlockLoader extends ClassLoader
+    {
+        public BlockLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        public Class<?> define(String name, byte[] b)
+        {
+            return defineClass(name, b, 0, b.length);
+        }
+    }//class BlockLoader
+
+    /**
+     * class ByteBuf
+     *
+     * a growable array of bytes with big-endian helpers
+     */
+    private static class ByteBuf
+    {
+        private byte m_data[] = new byte[256];
+        private int m_size = 0;
+
+        public void u1(int v)
+        {
+            if (m_size == m_data.length)
+                m_data = java.util.Arrays.copyOf(m_data, m_size * 2);
+            m_data[m_size++] = (byte)v;
+        }
+
+        public void u2(int v)
+        {
+            u1(v >>> 8);
+            u1(v);
+        }
+
+        public void u4(int v)
+        {
+            u2(v >>> 16);
+            u2(v);
+        }
+
+        public void bytes(ByteBuf b)
+        {
+            for(int i = 0; i < b.m_size; i++)
+                u1(b.m_data[i]);
+        }
+
+        public void set2(int pos, int v)
+        {
+            m_data[pos] = (byte)(v >>> 8);
+            m_data[pos + 1] = (byte)v;
+        }
+
+        public int size()
+        {
+            return m_size;
+        }
+
+        public byte[] toArray()
+        {
+            return java.util.Arrays.copyOf(m_data, m_size);
+        }
+    }//class ByteBuf
+
+    /**
+     * class ClassWriter
+     *
+     * builds the class file for a single block
+     */
+    private static class ClassWriter
+    {
+        /** the constant pool (without its count) */
+        private ByteBuf m_pool = new ByteBuf();
+        /** the index of each constant pool entry that has been added */
+        private HashMap<String, Integer> m_poolIndex = new HashMap<String, Integer>();
+        /** the next free constant pool index */
+        private int m_poolNext = 1;
+
+        /** the bytecode of the execute method */
+        private ByteBuf m_code = new ByteBuf();
+        /** the bytecode position of each label (-1 until it is placed) */
+        private ArrayList<Integer> m_labels = new ArrayList<Integer>();
+        /** pairs of (position of branch opcode, label) to fix up at the end */
+        private ArrayList<int[]> m_fixups = new ArrayList<int[]>();
+
+        /** the internal name of the class being built */
+        private String m_name;
+
+        public ClassWriter(String name)
+        {
+            m_name = name;
+        }
+
+        //---------------------------- constant pool ---------------------------
+
+        private int utf8(String s)
+        {
+            Integer idx = m_poolIndex.get("U" + s);
+            if (idx != null)
+                return idx;
+            try
+            {
+                byte b[] = s.getBytes("UTF-8");
+                m_pool.u1(1);
+                m_pool.u2(b.length);
+                for(byte x : b)
+                    m_pool.u1(x);
+            }
+            catch(java.io.UnsupportedEncodingException e)
+            {
+                throw new RuntimeException(e);
+            }
+            m_poolIndex.put("U" + s, m_poolNext);
+            return m_poolNext++;
+        }
+
+        private int classRef(String internalName)
+        {
+            Integer idx = m_poolIndex.get("C" + internalName);
+            if (idx != null)
+                return idx;
+            int nameIdx = utf8(internalName);
+            m_pool.u1(7);
+            m_pool.u2(nameIdx);
+            m_poolIndex.put("C" + internalName, m_poolNext);
+            return m_poolNext++;
+        }
+
+        private int intConst(int v)
+        {
+            Integer idx = m_poolIndex.get("I" + v);
+            if (idx != null)
+                return idx;
+            m_pool.u1(3);
+            m_pool.u4(v);
+            m_poolIndex.put("I" + v, m_poolNext);
+            return m_poolNext++;
+        }
+
+        private int methodRef(String owner, String name, String desc)
+        {
+            int classIdx = classRef(owner);
+            int nameIdx = utf8(name);
+            int descIdx = utf8(desc);
+            m_pool.u1(12);
+            m_pool.u2(nameIdx);
+            m_pool.u2(descIdx);
+            int ntIdx = m_poolNext++;
+            m_pool.u1(10);
+            m_pool.u2(classIdx);
+            m_pool.u2(ntIdx);
+            return m_poolNext++;
+        }
+
+        //------------------------------ bytecode ------------------------------
+
+        private int newLabel()
+        {
+            m_labels.add(-1);
+            return m_labels.size() - 1;
+        }
+
+        private void place(int label)
+        {
+            m_labels.set(label, m_code.size());
+        }
+
+        private void jump(int opcode, int label)
+        {
+            m_fixups.add(new int[]{m_code.size(), label});
+            m_code.u1(opcode);
+            m_code.u2(0);
+        }
+
+        private void pushInt(int v)
+        {
+            if (v >= -1 && v <= 5)
+                m_code.u1(ICONST_0 + v);
+            else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+            {
+                m_code.u1(BIPUSH);
+                m_code.u1(v);
+            }
+            else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+            {
+                m_code.u1(SIPUSH);
+                m_code.u2(v);
+            }
+            else
+            {
+                m_code.u1(LDC_W);
+                m_code.u2(intConst(v));
+            }
+        }
+
+        /** pushes regs[r] */
+        private void loadReg(int r)
+        {
+            m_code.u1(ALOAD_1);
+            pushInt(r);
+            m_code.u1(IALOAD);
+        }
+
+        /** counts one executed guest instruction */
+        private void countInstr()
+        {
+            m_code.u1(IINC);
+            m_code.u1(3);
+            m_code.u1(1);
+        }
+
+        /** returns to the interpreter which continues at the given offset */
+        private void exit(int offset)
+        {
+            pushInt(offset);
+            m_code.u1(I2L);
+            pushInt(32);
+            m_code.u1(LSHL);
+            m_code.u1(ILOAD_3);
+            m_code.u1(I2L);
+            m_code.u1(LOR);
+            m_code.u1(LRETURN);
+        }
+
+        /**
+         * emits a taken branch.  A branch back to the start of the block
+         * loops as long as there is budget for another full pass.
+         */
+        private void branchTo(int target, int start, int top, int len)
+        {
+            if (target == start)
+            {
+                int out = newLabel();
+                m_code.u1(ILOAD_3);
+                m_code.u1(ILOAD_2);
+                pushInt(len);
+                m_code.u1(ISUB);
+                jump(IF_ICMPGT, out);
+                jump(GOTO, top);
+                place(out);
+            }
+            exit(target);
+        }
+
+        /** emits regs[a] = regs[b] op regs[c] */
+        private void arith(int a, int b, int c, int opcode)
+        {
+            m_code.u1(ALOAD_1);
+            pushInt(a);
+            loadReg(b);
+            loadReg(c);
+            m_code.u1(opcode);
+            m_code.u1(IASTORE);
+        }
+
+        /**
+         * build
+         *
+         * @return the class file of a block with the given instructions
+         */
+        public byte[] build(InstructionCache ic, int start, int len)
+        {
+            //Locals: 0 = this, 1 = regs, 2 = budget, 3 = instruction count
+            m_code.u1(ICONST_0);
+            m_code.u1(ISTORE_3);
+            int top = newLabel();
+            place(top);
+
+            int o = start;
+            boolean ended = false;
+            for(int i = 0; i < len && !ended; i++, o += CPU.INSTRSIZE)
+            {
+                int a = ic.m_arg1[o];
+                int b = ic.m_arg2[o];
+                int c = ic.m_arg3[o];
+                switch(ic.decodeSingle(o))
+                {
+                    case CPU.SET:
+                        m_code.u1(ALOAD_1);
+                        pushInt(a);
+                        pushInt(b);
+                        m_code.u1(IASTORE);
+                        countInstr();
+                        break;
+                    case CPU.ADD:
+                        arith(a, b, c, IADD);
+                        countInstr();
+                        break;
+                    case CPU.SUB:
+                        arith(a, b, c, ISUB);
+                        countInstr();
+                        break;
+                    case CPU.MUL:
+                        arith(a, b, c, IMUL);
+                        countInstr();
+                        break;
+                    case CPU.DIV:
+                    {
+                        int ok = newLabel();
+                        loadReg(c);
+                        jump(IFNE, ok);
+                        exit(o);        // let the interpreter raise the interrupt
+                        place(ok);
+                        arith(a, b, c, IDIV);
+                        countInstr();
+                        break;
+                    }
+                    case CPU.COPY:
+                        m_code.u1(ALOAD_1);
+                        pushInt(a);
+                        loadReg(b);
+                        m_code.u1(IASTORE);
+                        countInstr();
+                        break;
+                    case CPU.BRANCH:
+                        countInstr();
+                        branchTo(a, start, top, len);
+                        ended = true;
+                        break;
+                    case CPU.BNE:
+                    case CPU.BLT:
+                    {
+                        int notTaken = newLabel();
+                        countInstr();
+                        loadReg(a);
+                        loadReg(b);
+                        jump(ic.decodeSingle(o) == CPU.BNE ? IF_ICMPEQ : IF_ICMPGE, notTaken);
+                        branchTo(c, start, top, len);
+                        place(notTaken);
+                        exit(o + CPU.INSTRSIZE);
+                        ended = true;
+                        break;
+                    }
+                }//switch
+            }
+            if (!ended)
+                exit(o);
+
+            //Resolve the branch offsets now that every label is placed
+            for(int[] f : m_fixups)
+                m_code.set2(f[0] + 1, m_labels.get(f[1]) - f[0]);
+
+            return assemble();
+        }//build
+
+        /**
+         * assemble
+         *
+         * wraps the bytecode in a complete class file
+         */
+        private byte[] assemble()
+        {
+            int thisIdx = classRef(m_name);
+            int superIdx = classRef("java/lang/Object");
+            int ifaceIdx = classRef("sos/BlockCompiler$Block");
+            int superInit = methodRef("java/lang/Object", "<init>", "()V");
+            int initName = utf8("<init>");
+            int initDesc = utf8("()V");
+            int execName = utf8("execute");
+            int execDesc = utf8("([II)J");
+            int codeName = utf8("Code");
+
+            ByteBuf out = new ByteBuf();
+            out.u4(0xCAFEBABE);
+            out.u2(0);                  // minor version
+            out.u2(49);                 // major version (Java 5)
+            out.u2(m_poolNext);
+            out.bytes(m_pool);
+            out.u2(0x0001 | 0x0010 | 0x0020);   // public final super
+            out.u2(thisIdx);
+            out.u2(superIdx);
+            out.u2(1);
+            out.u2(ifaceIdx);
+            out.u2(0);                  // fields
+            out.u2(2);                  // methods
+
+            //public <init>() { super(); }
+            out.u2(0x0001);
+            out.u2(initName);
+            out.u2(initDesc);
+            out.u2(1);
+            out.u2(codeName);
+            out.u4(12 + 5);
+            out.u2(1);                  // max stack
+            out.u2(1);                  // max locals
+            out.u4(5);
+            out.u1(ALOAD_0);
+            out.u1(INVOKESPECIAL);
+            out.u2(superInit);
+            out.u1(RETURN);
+            out.u2(0);                  // exception table
+            out.u2(0);                  // attributes
+
+            //public long execute(int[] regs, int budget)
+            out.u2(0x0001);
+            out.u2(execName);
+            out.u2(execDesc);
+            out.u2(1);
+            out.u2(codeName);
+            out.u4(12 + m_code.size());
+            out.u2(6);                  // max stack
+            out.u2(4);                  // max locals
+            out.u4(m_code.size());
+            out.bytes(m_code);
+            out.u2(0);
+            out.u2(0);
+
+            out.u2(0);                  // class attributes
+            return out.toArray();
+        }//assemble
+    }//class ClassWriter
+};//class BlockCompiler
@@ -0,0 +1,323 @@
+package sos;
+
+/**
+ * This class hands out blocks of RAM with the binary buddy system.  Every
+ * block is a power of two words long and starts at an address that is a
+ * multiple of its size.  A request is rounded up to the next power of two
+ * and, if no block of that size is free, a larger one is split in halves
+ * ("buddies") until one is.  When a block is freed it is merged with its
+ * buddy for as long as the buddy is free too.  Both take at most one step
+ * per size, i.e. O(log n) in the size of RAM, however many blocks there are.
+ *
+ * The price is internal fragmentation: the words a block has beyond what
+ * was asked for are wasted.  This is counted so that it can be compared to
+ * the external fragmentation of a free list.
+ *
+ * Free blocks of each size are kept in a doubly linked list threaded through
+ * arrays indexed by the address of a block (in units of the smallest block)
+ * so that a buddy can be found and taken out of its list without a search.
+ *
+ * If RAM isn't a power of two long it is covered by the largest blocks that
+ * fit, one of each size.  Words past the last smallest block are never used.
+ *
+ * @see SOS#setAllocStrategy
+ */
+public class BuddyAllocator
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /** the size of the smallest block as a power of two (16 words) */
+    public static final int MIN_ORDER = 4;
+
+    /** marks a unit that doesn't start a free block and an empty list */
+    private static final int NONE = -1;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the number of words managed and the size of the largest block as a
+     * power of two
+     **/
+    private int m_size;
+    private int m_maxOrder;
+
+    /**
+     * for each unit (smallest block) the size (as a power of two) of the
+     * free block that starts there or NONE, and the next and previous free
+     * blocks of the same size
+     **/
+    private byte m_freeOrder[];
+    private int m_next[];
+    private int m_prev[];
+
+    /**
+     * the first free block (as a unit) of each size or NONE
+     **/
+    private int m_heads[];
+
+    /**
+     * the words in free blocks, the words asked for by the blocks in use
+     * and the words those blocks take up
+     **/
+    private int m_freeWords = 0;
+    private long m_requestedWords = 0;
+    private long m_usedWords = 0;
+
+    /**
+     * the number of times a block was split and buddies were merged
+     **/
+    private long m_splits = 0;
+    private long m_merges = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * constructor
+     *
+     * @param size the number of words to manage (starting at address 0),
+     *             all of them free
+     */
+    public BuddyAllocator(int size)
+    {
+        int units = size >>> MIN_ORDER;
+        if (units < 1)
+            throw new IllegalArgumentException("too little RAM for a buddy allocator");
+
+        m_size = units << MIN_ORDER;
+        m_maxOrder = 31 - Integer.numberOfLeadingZeros(m_size);
+        m_freeOrder = new byte[units];
+        m_next = new int[units];
+        m_prev = new int[units];
+        m_heads = new int[m_maxOrder + 1];
+        java.util.Arrays.fill(m_freeOrder, (byte)NONE);
+        java.util.Arrays.fill(m_heads, NONE);
+
+        //Cover RAM with the largest blocks that fit
+        int addr = 0;
+        for (int order = m_maxOrder; order >= MIN_ORDER; order--)
+        {
+            if (addr + (1 << order) <= m_size)
+            {
+                push(addr, order);
+                addr += 1 << order;
+            }
+        }
+    }//ctor
+
+    /**
+     * orderOf
+     *
+     * @param size a number of words
+     * @return the size (as a power of two) of the block a request for that
+     *         many words gets
+     */
+    public static int orderOf(int size)
+    {
+        if (size <= (1 << MIN_ORDER))
+            return MIN_ORDER;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * alloc
+     *
+     * finds the smallest free block that is big enough, splitting a larger
+     * one if need be
+     *
+     * @param size the number of words asked for
+     * @return the address of the block or -1 if there is no free block big
+     *         enough
+     */
+    public int alloc(int size)
+    {
+        int order = orderOf(size);
+        int found = order;
+        while (found <= m_maxOrder && m_heads[found] == NONE)
+            found++;
+        if (found > m_maxOrder)
+            return -1;
+
+        int addr = m_heads[found] << MIN_ORDER;
+        remove(addr, found);
+
+        //Give back the upper half until the block is the right size
+        while (found > order)
+        {
+            found--;
+            push(addr + (1 << found), found);
+            m_splits++;
+        }
+
+        m_requestedWords += size;
+        m_usedWords += 1 << order;
+        return addr;
+    }//alloc
+
+    /**
+     * reserve
+     *
+     * takes a given block out of the free blocks as if alloc had returned
+     * it (used to rebuild the allocator for processes restored from a
+     * checkpoint)
+     *
+     * @param addr the address of the block
+     * @param size the number of words asked for
+     * @return true if the block was free
+     */
+    public boolean reserve(int addr, int size)
+    {
+        int order = orderOf(size);
+        if (addr < 0 || addr + (1 << order) > m_size || (addr & ((1 << order) - 1)) != 0)
+            return false;
+
+        //Find the free block the given one is part of
+        int found = order;
+        int start = addr;
+        while (found <= m_maxOrder && m_freeOrder[start >>> MIN_ORDER] != found)
+        {
+            found++;
+            start = addr & -(1 << found);
+        }
+        if (found > m_maxOrder)
+            return false;
+
+        //Split it, giving back the halves the block isn't in
+        remove(start, found);
+        while (found > order)
+        {
+            found--;
+            int half = 1 << found;
+            if (addr >= start + half)
+            {
+                push(start, found);
+                start += half;
+            }
+            else
+                push(start + half, found);
+            m_splits++;
+        }
+
+        m_requestedWords += size;
+        m_usedWords += 1 << order;
+        return true;
+    }//reserve
+
+    /**
+     * free
+     *
+     * gives a block back, merging it with its buddy for as long as the
+     * buddy is free
+     *
+     * @param addr the address of the block
+     * @param size the number of words that were asked for
+     */
+    public void free(int addr, int size)
+    {
+        int order = orderOf(size);
+        m_requestedWords -= size;
+        m_usedWords -= 1 << order;
+
+        while (order < m_maxOrder)
+        {
+            int buddy = addr ^ (1 << order);
+            if (buddy + (1 << order) > m_size || m_freeOrder[buddy >>> MIN_ORDER] != order)
+                break;
+            remove(buddy, order);
+            addr = Math.min(addr, buddy);
+            order++;
+            m_merges++;
+        }
+        push(addr, order);
+    }//free
+
+    /**
+     * getFreeWords
+     *
+     * @return the number of words in free blocks
+     */
+    public int getFreeWords()
+    {
+        return m_freeWords;
+    }
+
+    /**
+     * getLargestFree
+     *
+     * @return the size of the largest free block (0 if there is none)
+     */
+    public int getLargestFree()
+    {
+        for (int order = m_maxOrder; order >= MIN_ORDER; order--)
+            if (m_heads[order] != NONE)
+                return 1 << order;
+        return 0;
+    }
+
+    /**
+     * getInternalFragmentation
+     *
+     * @return the fraction of the words in blocks that are in use that
+     *         weren't asked for (0 if no block is in use)
+     */
+    public double getInternalFragmentation()
+    {
+        return (m_usedWords == 0) ? 0 : 1.0 - (double)m_requestedWords / m_usedWords;
+    }
+
+    /**
+     * getSplits
+     *
+     * @return the number of times a block was split in two
+     */
+    public long getSplits()
+    {
+        return m_splits;
+    }
+
+    /**
+     * getMerges
+     *
+     * @return the number of times a block was merged with its buddy
+     */
+    public long getMerges()
+    {
+        return m_merges;
+    }
+
+    /**
+     * Adds a block to the front of the free list of its size.
+     */
+    private void push(int addr, int order)
+    {
+        int unit = addr >>> MIN_ORDER;
+        m_freeOrder[unit] = (byte)order;
+        m_prev[unit] = NONE;
+        m_next[unit] = m_heads[order];
+        if (m_heads[order] != NONE)
+            m_prev[m_heads[order]] = unit;
+        m_heads[order] = unit;
+        m_freeWords += 1 << order;
+    }//push
+
+    /**
+     * Takes a block out of the free list of its size.
+     */
+    private void remove(int addr, int order)
+    {
+        int unit = addr >>> MIN_ORDER;
+        m_freeOrder[unit] = (byte)NONE;
+        if (m_prev[unit] != NONE)
+            m_next[m_prev[unit]] = m_next[unit];
+        else
+            m_heads[order] = m_next[unit];
+        if (m_next[unit] != NONE)
+            m_prev[m_next[unit]] = m_prev[unit];
+        m_freeWords -= 1 << order;
+    }//remove
+};//class BuddyAllocator
@@ -47,6 +47,24 @@ public class CPU
     //Misc constants
     public static final int NUMGENREG = PC; // the number of general registers
     public static final int INSTRSIZE = 4;  // number of ints in a single instr + args.  (Set to a fixed value for simplicity.)
+    public static final int PACE_INTERVAL = 10000; // instructions between checks of a paced clock
+    public static final int TLB_SIZE = 64;         // entries in the TLB (a power of two)
+
+    //These constants are returned by run(long) to say why it stopped
+    public static final int RUN_BUDGET = 0;  // executed the maximum number of instructions
+    public static final int RUN_TRAP   = 1;  // executed a TRAP (already handled)
+    public static final int RUN_FAULT  = 2;  // raised an interrupt (already handled)
+    public static final int RUN_HALT   = 3;  // the OS halted the CPU
+    public static final int RUN_TIMER  = 4;  // the timer went off (already handled)
+
+    //These constants identify why run() needs to hand control to the OS
+    private static final int EVT_NONE          = 0;
+    private static final int EVT_TRAP          = 1;
+    private static final int EVT_DIVZERO       = 2;
+    private static final int EVT_ILLEGAL_MEM   = 3;
+    private static final int EVT_ILLEGAL_INSTR = 4;
+    private static final int EVT_TLB_MISS      = 5;
+    private static final int EVT_PAGE_FAULT    = 6;
 
     //======================================================================
     //Member variables
@@ -73,6 +91,98 @@ public class CPU
      * simply be an address that the PC register is set to.
      */
     private TrapHandler m_TH = null;
+    
+    /**
+     * the pre-decoded code of the running process
+     *
+     * @see InstructionCache
+     */
+    private InstructionCache m_icache = null;
+    
+    /**
+     * the profiler watching this CPU (null when not profiling)
+     *
+     * @see Profiler
+     */
+    private Profiler m_profiler = null;
+    
+    /**
+     * the trace recording (or checking) what this CPU does (null when not
+     * tracing)
+     *
+     * @see Trace
+     */
+    private Trace m_trace = null;
+    
+    /**
+     * the first level of the data cache model in front of RAM (null to
+     * charge a flat RAM latency for every access)
+     *
+     * @see Cache
+     */
+    private Cache m_cache = null;
+    
+    /**
+     * the page table of the running process (null when addresses are
+     * physical).  Entry i holds the frame that virtual page i is mapped to
+     * or -1 if it isn't mapped.
+     */
+    private int m_pageTable[] = null;
+    
+    /**
+     * the translation lookaside buffer.  It is a direct mapped cache of page
+     * table entries: m_tlbPage holds the virtual page of each entry (-1 if
+     * it is empty) and m_tlbFrame the physical address its frame starts at.
+     */
+    private int m_tlbPage[] = new int[TLB_SIZE];
+    private int m_tlbFrame[] = new int[TLB_SIZE];
+    
+    /**
+     * the number of TLB lookups, how many of them missed, how many cycles
+     * were spent refilling the TLB, how many times it was flushed and how
+     * many page faults were raised
+     */
+    private long m_tlbLookups = 0;
+    private long m_tlbMisses = 0;
+    private long m_tlbCycles = 0;
+    private long m_tlbFlushes = 0;
+    private long m_pageFaults = 0;
+    
+    /**
+     * the number of instructions executed by this CPU
+     */
+    private long m_instrCount = 0;
+    
+    /**
+     * a reusable buffer for instructions that must be fetched from RAM
+     * because they lie outside the instruction cache
+     */
+    private int m_fetchBuf[] = new int[INSTRSIZE];
+    
+    /**
+     * how many instructions apart timer interrupts are (0 for no timer) and
+     * the instruction count at which the next one goes off
+     */
+    private long m_timerInterval = 0;
+    private long m_nextTimer = Long.MAX_VALUE;
+    
+    /**
+     * the number of instructions executed by the last call to run(long)
+     */
+    private long m_lastRunCount = 0;
+    
+    /**
+     * set when the OS has nothing for this CPU to run.  run() returns as soon
+     * as it notices.
+     */
+    private volatile boolean m_halted = false;
+    
+    /**
+     * the simulated time of this CPU
+     *
+     * @see Clock
+     */
+    private Clock m_clock;
 
     //======================================================================
     //Callback Interface
@@ -88,6 +198,8 @@ public class CPU
         void interruptIllegalMemoryAccess(int addr);
         void interruptDivideByZero();
         void interruptIllegalInstruction(int[] instr);
+        void interruptPageFault(int addr);
+        void interruptClock();
         void systemCall();
     };//interface TrapHandler
     
@@ -104,6 +216,8 @@ public class CPU
     {
         m_registers = new int[NUMREG]; //All values are zero by default
         m_RAM = ram;
+        m_clock = new Clock((int)Math.ceil(ram.getLatency() / Clock.DEFAULT_CYCLE_NANOS));
+        java.util.Arrays.fill(m_tlbPage, -1);
     }//CPU ctor
 
     /**
@@ -275,138 +389,965 @@ public class CPU
     /**
      * run
      * 
-     * Run the simulated program
+     * Run the simulated program(s) until the OS halts the CPU.
      */
     public void run()
     {
-        //Loop until the program ends
+        while (run(Long.MAX_VALUE) != RUN_HALT)
+        {
+            //Keep going; traps and interrupts have already been handled
+        }
+    }//run
+
+    /**
+     * run
+     * 
+     * Executes at most the given number of instructions.  The CPU stops early
+     * right after a TRAP or an interrupt (including the timer) has been
+     * handled (the trap handler has already run when this method returns)
+     * or when the OS halts it.
+     * The number of instructions executed is available from
+     * {@link #getLastRunCount}.
+     *
+     * To keep the steady state path free of allocations and field traffic
+     * the PC, SP, BASE and LIM registers are kept in locals while the
+     * program runs.  They are written back to m_registers (and reloaded
+     * afterwards) only when control passes to the trap handler, since that
+     * is the only time anyone else can look at or change them.
+     *
+     * When the running process has a page table every address it uses is
+     * virtual and goes through the TLB.  A TLB miss is refilled from the
+     * page table without leaving this method; only a page that isn't mapped
+     * at all is handed to the OS (as a page fault) and the instruction is
+     * run again once the OS has mapped it.
+     *
+     * @param maxInstructions the instruction budget
+     * @return RUN_BUDGET, RUN_TRAP, RUN_FAULT, RUN_TIMER or RUN_HALT
+     */
+    public int run(long maxInstructions)
+    {
+        int regs[] = m_registers;       // the general purpose registers
+        int pc   = regs[PC];
+        int sp   = regs[SP];
+        int base = regs[BASE];
+        int lim  = regs[LIM];
+        long count = m_instrCount;      // instructions executed so far
+        long start = count;             // count when this call began
+        long stop = (maxInstructions > Long.MAX_VALUE - count)
+                    ? Long.MAX_VALUE : count + maxInstructions;
+        InstructionCache ic = m_icache;
+        m_lastRunCount = 0;
+        
+        //Simulated time is kept in a local as well.  Each instruction is
+        //charged what its (possibly fused) opcode costs.
+        //With a cache model, what a memory access costs depends on the cache
+        //so it is charged separately.
+        Clock clock = m_clock;
+        Cache cache = m_cache;
+        int cost[] = (cache == null) ? clock.m_cost : clock.m_opCost;
+        int fetchCycles = clock.getMemCycles() * INSTRSIZE;
+        long cycles = clock.m_cycles;
+        
+        //With paging every memory access is translated.  What refilling the
+        //TLB costs is charged to the instruction that missed.
+        boolean paged = m_pageTable != null;
+        int walkCycles = clock.getTLBMissCycles();
+        int fetchPage = -1;             // the page the last fetch was on
+        
+        //When profiling, tracing (or printing) every instruction is executed
+        //on its own.  Profiler samples are folded into the budget check so
+        //that there is no extra cost per instruction when there's no profiler.
+        Profiler prof = m_profiler;
+        Trace trace = m_trace;
+        boolean stepwise = m_verbose || prof != null || trace != null;
+        long nextSample = (prof == null) ? Long.MAX_VALUE : count;
+        
+        //A paced clock is checked every so often in the same way, and so is
+        //the timer
+        long nextPace = clock.isPaced() ? count + PACE_INTERVAL : Long.MAX_VALUE;
+        long nextTimer = m_nextTimer;
+        long limit = Math.min(Math.min(stop, nextTimer), Math.min(nextSample, nextPace));
+        
+        //The OS can only halt the CPU inside the trap handler so this is
+        //only checked on the way in and after each trap
+        if (m_halted)
+            return RUN_HALT;
+        if (trace != null)
+            trace.sync(regs, pc, sp);
         while (true)
         {
-            //Fetch the next instruction from RAM using the CPU register
-            int instr[] = m_RAM.fetch(getPC());
+            //Stop once the budget has been used up or take a profiler sample
+            if (count >= limit)
+            {
+                if (count >= stop)
+                {
+                    saveState(pc, sp, count, cycles);
+                    m_lastRunCount = count - start;
+                    return RUN_BUDGET;
+                }
+                if (count >= nextPace)
+                {
+                    clock.m_cycles = cycles;
+                    clock.pace();
+                    nextPace = count + PACE_INTERVAL;
+                }
+                if (count >= nextSample && pc >= base && pc <= lim)
+                {
+                    int offset = pc - base;
+                    int op;
+                    if (ic != null && ic.contains(offset))
+                        op = ic.decodeSingle(offset);
+                    else
+                    {
+                        int instr[] = fetch(pc, m_fetchBuf);
+                        op = InstructionCache.decode(instr[0], instr[1], instr[2], instr[3]);
+                    }
+                    prof.sample(ic, offset, op);
+                }
+                if (count >= nextSample)
+                    nextSample = count + prof.nextInterval();
+                limit = Math.min(Math.min(stop, nextTimer), Math.min(nextSample, nextPace));
+                
+                //The timer interrupt goes off between instructions
+                if (count >= nextTimer)
+                {
+                    saveState(pc, sp, count, cycles);
+                    m_nextTimer = count + m_timerInterval;
+                    m_TH.interruptClock();
+                    m_lastRunCount = m_instrCount - start;
+                    return m_halted ? RUN_HALT : RUN_TIMER;
+                }
+            }
+            
+            //Fetch the next instruction.  Code loaded by the OS has been
+            //verified and comes from the pre-decoded instruction cache.  The
+            //cache only covers memory the process may access so nothing else
+            //needs to be checked.  Anything else is checked, fetched from RAM
+            //and decoded on the spot.
+            int offset = pc - base;
+            boolean cached = ic != null && ic.contains(offset);
+            
+            //Make sure the next instruction is one the process may access
+            if (!cached && (pc < base || pc > lim))
+            {
+                saveState(pc, sp, count, cycles);
+                m_TH.interruptIllegalMemoryAccess(pc);
+                m_lastRunCount = m_instrCount - start;
+                return m_halted ? RUN_HALT : RUN_FAULT;
+            }
+            
+            //With paging the fetch is translated too.  A cached instruction
+            //on the page the last fetch used is a TLB hit, so the TLB is
+            //only really looked at when a fetch enters a new page.  Both
+            //ends of the instruction must be in the TLB since it may
+            //straddle two pages.
+            if (paged)
+            {
+                if (cached && (pc >>> RAM.PAGE_SHIFT) == fetchPage)
+                    m_tlbLookups++;
+                else
+                {
+                    int miss = (lookup(pc) < 0) ? pc
+                             : (lookup(pc + INSTRSIZE - 1) < 0) ? pc + INSTRSIZE - 1 : -1;
+                    if (miss >= 0)
+                    {
+                        cycles += walkCycles;
+                        m_tlbCycles += walkCycles;
+                        fetchPage = -1;
+                        if (refill(miss))
+                            continue;
+                        saveState(pc, sp, count, cycles);
+                        m_pageFaults++;
+                        m_TH.interruptPageFault(miss);
+                        m_lastRunCount = m_instrCount - start;
+                        return m_halted ? RUN_HALT : RUN_FAULT;
+                    }
+                    fetchPage = (pc + INSTRSIZE - 1) >>> RAM.PAGE_SHIFT;
+                }
+            }
+            
+            int op, arg1, arg2, arg3;
+            if (cached)
+            {
+                op = ic.m_ops[offset];
+                if (op == InstructionCache.UNDECODED)
+                    op = ic.decode(offset);
+                arg1 = ic.m_arg1[offset];
+                arg2 = ic.m_arg2[offset];
+                arg3 = ic.m_arg3[offset];
+            }
+            else
+            {
+                int instr[] = m_fetchBuf;
+                if (paged)
+                {
+                    for(int i = 0; i < INSTRSIZE; i++)
+                    {
+                        int phys = lookup(pc + i);
+                        instr[i] = m_RAM.read(phys);
+                        if (cache != null)
+                            cycles += cache.access(phys, false);
+                    }
+                }
+                else
+                {
+                    m_RAM.fetch(pc, instr);
+                    if (cache != null)
+                        for(int i = 0; i < INSTRSIZE; i++)
+                            cycles += cache.access(pc + i, false);
+                }
+                if (cache == null)
+                    cycles += fetchCycles;
+                op = InstructionCache.decode(instr[0], instr[1], instr[2], instr[3]);
+                arg1 = instr[1];
+                arg2 = instr[2];
+                arg3 = instr[3];
+            }
+            
+            //A fused instruction counts as several, so don't use one if it
+            //would run past the budget, a timer tick or any other pending
+            //event.  Otherwise preemption would land on a different
+            //instruction with fusion on than with it off.
+            if (op >= InstructionCache.FUSED_ADD_BNE && limit - count < InstructionCache.FUSE_SPAN / INSTRSIZE)
+                op = ic.decodeSingle(offset);
+            
+            //With paging a fused instruction mustn't run onto another page
+            //since only its first fetch is translated
+            if (paged && op >= InstructionCache.FUSED_ADD_BNE
+                && ((pc + InstructionCache.FUSE_SPAN - 1) >>> RAM.PAGE_SHIFT) != fetchPage)
+                op = ic.decodeSingle(offset);
+            
+            //Fused instructions are executed one at a time when profiling or
+            //printing so that every one of them is seen
+            if (stepwise && op >= InstructionCache.FUSED_ADD_BNE)
+                op = ic.decodeSingle(offset);
             
-            //If printing in verbose mode then call the two debugging methods
+            //If printing in verbose mode then call the two debugging methods.
             if (m_verbose == true) 
             {
+                saveState(pc, sp, count, cycles);
                 regDump();
-                printInstr(instr);
+                printInstr(fetch(pc, new int[INSTRSIZE]));
             }
             
-            //Decode and execute the instruction.
-            //If we run into a TRAP, end the program.
+            //Advance the PC register for the next instruction.  Branches
+            //simply overwrite it.
+            pc += INSTRSIZE;
+            count++;
+            cycles += cost[op + 1];
             
-            //Also every instruction that accesses one of the "R" labeled registers
-            // is checked to make sure that it's a valid index.
-            switch(instr[0])
+            //Execute the instruction.  Register indices were already checked
+            //when the instruction was decoded so anything with a bad opcode
+            //or register operand shows up here as ILLEGAL.  Anything that
+            //needs the OS is recorded in 'event' and handled after the switch.
+            //Memory is accessed at the physical address 'phys'.
+            int event = EVT_NONE;
+            int addr = 0;
+            int phys = 0;
+            boolean jumped = false;
+            switch(op)
             {
                 case SET:
-                    if(!validateRegisterIndex(new int[]{instr[1]}))
-                        m_TH.interruptIllegalInstruction(instr);
-
-                    m_registers[instr[1]] = instr[2];
+                    regs[arg1] = arg2;
                     break;
                     
                 case ADD:
-                    if(!validateRegisterIndex(new int[]{instr[1], instr[2], instr[3]}))
-                        m_TH.interruptIllegalInstruction(instr);
-                    
-                    m_registers[instr[1]] = m_registers[instr[2]] + m_registers[instr[3]];
+                    regs[arg1] = regs[arg2] + regs[arg3];
                     break;
                     
                 case SUB:
-                    if(!validateRegisterIndex(new int[]{instr[1], instr[2], instr[3]}))
-                        m_TH.interruptIllegalInstruction(instr);
-                    
-                    m_registers[instr[1]] = m_registers[instr[2]] - m_registers[instr[3]];
+                    regs[arg1] = regs[arg2] - regs[arg3];
                     break;
                     
                 case MUL:
-                    if(!validateRegisterIndex(new int[]{instr[1], instr[2], instr[3]}))
-                        m_TH.interruptIllegalInstruction(instr);
-                    
-                    m_registers[instr[1]] = m_registers[instr[2]] * m_registers[instr[3]];
+                    regs[arg1] = regs[arg2] * regs[arg3];
                     break;
                     
                 case DIV:
-                    if(!validateRegisterIndex(new int[]{instr[1], instr[2], instr[3]}))
-                        m_TH.interruptIllegalInstruction(instr);
-                    
                     //Check that they're not dividing by zero
-                    if(m_registers[instr[3]] == 0)
-                        m_TH.interruptDivideByZero();
-                    m_registers[instr[1]] = m_registers[instr[2]] / m_registers[instr[3]];
+                    if (regs[arg3] == 0)
+                        event = EVT_DIVZERO;
+                    else
+                        regs[arg1] = regs[arg2] / regs[arg3];
                     break;
                     
                 case COPY:
-                    if(!validateRegisterIndex(new int[]{instr[1], instr[2]}))
-                        m_TH.interruptIllegalInstruction(instr);
-                    
-                    m_registers[instr[1]] = m_registers[instr[2]];
+                    regs[arg1] = regs[arg2];
                     break;
                     
                 case BRANCH:
-                    setPC(instr[1] + getBASE() - instr.length);
+                    pc = arg1 + base;
+                    jumped = true;
                     break;
                     
                 case BNE:
-                    if(!validateRegisterIndex(new int[]{instr[1], instr[2]}))
-                        m_TH.interruptIllegalInstruction(instr);
-                    
-                    if (m_registers[instr[1]] != m_registers[instr[2]])
-                        setPC(instr[3] + getBASE() - instr.length);
+                    if (regs[arg1] != regs[arg2])
+                    {
+                        pc = arg3 + base;
+                        jumped = true;
+                    }
                     break;
                     
                 case BLT:
-                    if(!validateRegisterIndex(new int[]{instr[1], instr[2]}))
-                        m_TH.interruptIllegalInstruction(instr);
-                    
-                    if (m_registers[instr[1]] < m_registers[instr[2]])
-                        setPC(instr[3] + getBASE() - instr.length);
+                    if (regs[arg1] < regs[arg2])
+                    {
+                        pc = arg3 + base;
+                        jumped = true;
+                    }
                     break;
                     
                 case POP:
-                    if(!popStack(instr[1]))
-                        m_TH.interruptIllegalInstruction(instr);
+                    if (sp <= lim)
+                    {
+                        addr = sp;
+                        phys = paged ? lookup(addr) : addr;
+                        if (phys < 0)
+                        {
+                            event = EVT_TLB_MISS;
+                            break;
+                        }
+                        if (cache != null)
+                            cycles += cache.access(phys, false);
+                        regs[arg1] = m_RAM.read(phys);
+                        sp++;
+                    }
+                    else
+                        event = EVT_ILLEGAL_INSTR;
                     break;
                     
                 case PUSH:
-                    if(!validateRegisterIndex(new int[]{instr[1]}) || !pushStack(m_registers[instr[1]]))
-                        m_TH.interruptIllegalInstruction(instr);
+                    if (sp > base)
+                    {
+                        addr = sp - 1;
+                        phys = paged ? lookup(addr) : addr;
+                        if (phys < 0)
+                        {
+                            event = EVT_TLB_MISS;
+                            break;
+                        }
+                        if (cache != null)
+                            cycles += cache.access(phys, true);
+                        m_RAM.write(phys, regs[arg1]);
+                        sp--;
+                        if (ic != null)
+                            ic.write(sp - base, regs[arg1]);
+                    }
+                    else
+                        event = EVT_ILLEGAL_INSTR;
                     break;
                     
                 case LOAD:
-                    if(!validateRegisterIndex(new int[]{instr[1], instr[2]}))
-                        m_TH.interruptIllegalInstruction(instr);
-                    
-                    if (validateRAMLoc(m_registers[instr[2]]))
-                        m_registers[instr[1]] = m_RAM.read(m_registers[instr[2]]);
+                    addr = regs[arg2] + base;
+                    if (addr >= base && addr <= lim)
+                    {
+                        phys = paged ? lookup(addr) : addr;
+                        if (phys < 0)
+                        {
+                            event = EVT_TLB_MISS;
+                            break;
+                        }
+                        if (cache != null)
+                            cycles += cache.access(phys, false);
+                        regs[arg1] = m_RAM.read(phys);
+                    }
+                    else
+                        event = EVT_ILLEGAL_MEM;
                     break;
                     
                 case SAVE:
-                    if(!validateRegisterIndex(new int[]{instr[1], instr[2]}))
-                        m_TH.interruptIllegalInstruction(instr);
-                    
-                    if (validateRAMLoc(m_registers[instr[2]]))
-                        m_RAM.write(m_registers[instr[2]], m_registers[instr[1]]);
+                    addr = regs[arg2] + base;
+                    if (addr >= base && addr <= lim)
+                    {
+                        phys = paged ? lookup(addr) : addr;
+                        if (phys < 0)
+                        {
+                            event = EVT_TLB_MISS;
+                            break;
+                        }
+                        if (cache != null)
+                            cycles += cache.access(phys, true);
+                        m_RAM.write(phys, regs[arg1]);
+                        if (ic != null)
+                            ic.write(addr - base, regs[arg1]);
+                    }
+                    else
+                        event = EVT_ILLEGAL_MEM;
                     break;
                     
                 case TRAP:
-                    m_TH.systemCall();
+                    event = EVT_TRAP;
+                    break;
+                    
+                //The fused superinstructions below execute several ordinary
+                //instructions at once (see InstructionCache).  The operands of
+                //the second and third instructions are read from the cache.
+                case InstructionCache.FUSED_ADD_BNE:
+                    regs[arg1] = regs[arg2] + regs[arg3];
+                    offset += INSTRSIZE;
+                    pc += INSTRSIZE;
+                    count++;
+                    if (paged)
+                        m_tlbLookups++;     // fetched from the same page
+                    if (regs[ic.m_arg1[offset]] != regs[ic.m_arg2[offset]])
+                    {
+                        pc = ic.m_arg3[offset] + base;
+                        jumped = true;
+                    }
                     break;
                     
-                default:        // should never be reached
-                    m_TH.interruptIllegalInstruction(instr);
+                case InstructionCache.FUSED_SET_PUSH:
+                case InstructionCache.FUSED_SET_PUSH_TRAP:
+                    regs[arg1] = arg2;
+                    pc += INSTRSIZE;
+                    count++;
+                    if (paged)
+                        m_tlbLookups++;
+                    if (sp <= base)
+                    {
+                        event = EVT_ILLEGAL_INSTR;
+                        break;
+                    }
+                    addr = sp - 1;
+                    phys = paged ? lookup(addr) : addr;
+                    if (phys < 0)
+                    {
+                        event = EVT_TLB_MISS;
+                        break;
+                    }
+                    if (cache != null)
+                        cycles += cache.access(phys, true);
+                    m_RAM.write(phys, arg2);
+                    sp--;
+                    ic.write(sp - base, arg2);
+                    
+                    //Only carry on to the TRAP if the push didn't just
+                    //overwrite part of this sequence
+                    if (op == InstructionCache.FUSED_SET_PUSH_TRAP
+                        && ic.m_ops[offset] != InstructionCache.UNDECODED)
+                    {
+                        pc += INSTRSIZE;
+                        count++;
+                        if (paged)
+                            m_tlbLookups++;
+                        event = EVT_TRAP;
+                    }
+                    break;
+                    
+                default:        // ILLEGAL
+                    event = EVT_ILLEGAL_INSTR;
                     break;          
             }//switch
             
-            //Advance the PC register for the next instruction.
-            setPC(getPC() + instr.length);
+            //A TLB miss takes back the instruction that missed (a fused
+            //SET/PUSH keeps its SET), refills the TLB from the page table and
+            //runs the instruction again.  A page that isn't mapped at all is a
+            //page fault for the OS.
+            if (event == EVT_TLB_MISS)
+            {
+                pc -= INSTRSIZE;
+                count--;
+                cycles += walkCycles - cost[((op < InstructionCache.FUSED_ADD_BNE) ? op : PUSH) + 1];
+                m_tlbCycles += walkCycles;
+                fetchPage = -1;         // the refill may have evicted it
+                if (refill(addr))
+                    continue;
+                m_pageFaults++;
+                event = EVT_PAGE_FAULT;
+            }
             
-            if(!validateRAMLoc(getPC()))
-                return;
+            //A taken branch is where hot code is detected.  If the target
+            //has been compiled (and there is budget for at least one pass
+            //through it), run the compiled code and pick up wherever it
+            //leaves off.  With paging the block must be on the page the
+            //last fetch was translated for since its own fetches aren't.
+            if (jumped && ic != null && !stepwise)
+            {
+                BlockCompiler.Block blk = ic.enter(pc - base);
+                int target = pc - base;
+                if (blk != null && limit - count >= ic.getBlockLength(target)
+                    && (!paged || ((pc >>> RAM.PAGE_SHIFT) == fetchPage
+                                   && ((pc + ic.getBlockLength(target) * INSTRSIZE - 1) >>> RAM.PAGE_SHIFT) == fetchPage)))
+                {
+                    long result = blk.execute(regs, (int)Math.min(limit - count, Integer.MAX_VALUE));
+                    pc = base + (int)(result >>> 32);
+                    count += (int)result;
+                    if (paged)
+                        m_tlbLookups += (int)result;
+                    cycles += clock.blockCycles(ic, target, (int)result);
+                }
+            }
+            
+            //Hand control to the OS if the instruction needs it.  The OS sees
+            //the PC of the following instruction and may change any register.
+            if (event != EVT_NONE)
+            {
+                saveState(pc, sp, count, cycles);
+                switch(event)
+                {
+                    case EVT_TRAP:
+                        m_TH.systemCall();
+                        break;
+                    case EVT_DIVZERO:
+                        m_TH.interruptDivideByZero();
+                        break;
+                    case EVT_ILLEGAL_MEM:
+                        m_TH.interruptIllegalMemoryAccess(addr);
+                        break;
+                    case EVT_PAGE_FAULT:
+                        m_TH.interruptPageFault(addr);
+                        break;
+                    default:
+                        m_TH.interruptIllegalInstruction(fetch(pc - INSTRSIZE, new int[INSTRSIZE]));
+                        break;
+                }//switch
+                pc   = regs[PC];
+                sp   = regs[SP];
+                base = regs[BASE];
+                lim  = regs[LIM];
+                cycles = clock.m_cycles;
+                if (trace != null && event != EVT_PAGE_FAULT)
+                    trace.step(op, regs, pc, sp);
+                m_lastRunCount = m_instrCount - start;
+                if (m_halted)
+                    return RUN_HALT;
+                return (event == EVT_TRAP) ? RUN_TRAP : RUN_FAULT;
+            }
+            
+            if (trace != null)
+                trace.step(op, regs, pc, sp);
         }
     }//run
     
+    /**
+     * saveState
+     *
+     * writes the registers that run() keeps in locals back to the register
+     * file (and the time back to the clock) so the OS (or a debugging
+     * method) can see them.
+     */
+    private void saveState(int pc, int sp, long count, long cycles)
+    {
+        m_registers[PC] = pc;
+        m_registers[SP] = sp;
+        m_instrCount = count;
+        m_clock.m_cycles = cycles;
+    }//saveState
+    
+    /**
+     * halt
+     *
+     * stops the CPU.  If run() is executing it returns once the current
+     * instruction (and any trap handler it called) is done.
+     */
+    public void halt()
+    {
+        m_halted = true;
+    }//halt
+    
+    /**
+     * resume
+     *
+     * allows a halted CPU to run again
+     */
+    public void resume()
+    {
+        m_halted = false;
+    }//resume
+    
+    /**
+     * isHalted
+     *
+     * @return true if the CPU has been halted
+     */
+    public boolean isHalted()
+    {
+        return m_halted;
+    }//isHalted
+    
+    /**
+     * getLastRunCount
+     *
+     * @return the number of instructions executed by the most recent call to
+     *         {@link #run(long)}
+     */
+    public long getLastRunCount()
+    {
+        return m_lastRunCount;
+    }//getLastRunCount
+    
+    /**
+     * getInstrCount
+     *
+     * @return the number of instructions this CPU has executed
+     */
+    public long getInstrCount()
+    {
+        return m_instrCount;
+    }//getInstrCount
+    
+    /**
+     * setInstrCount
+     *
+     * sets the number of instructions this CPU has executed (e.g., when a
+     * checkpoint is restored).  The CPU must not be running.
+     *
+     * @param count the new instruction count
+     */
+    public void setInstrCount(long count)
+    {
+        m_instrCount = count;
+    }//setInstrCount
+    
+    /**
+     * setTimer
+     *
+     * starts a timer that interrupts the CPU every so many instructions
+     * (counting from now) or stops it
+     *
+     * @param interval the number of instructions between interrupts (0 to
+     *                 stop the timer)
+     */
+    public void setTimer(long interval)
+    {
+        m_timerInterval = Math.max(0, interval);
+        m_nextTimer = (m_timerInterval == 0) ? Long.MAX_VALUE : m_instrCount + m_timerInterval;
+    }//setTimer
+    
+    /**
+     * getTimer
+     *
+     * @return the number of instructions between timer interrupts (0 if
+     *         the timer is off)
+     */
+    public long getTimer()
+    {
+        return m_timerInterval;
+    }//getTimer
+    
+    /**
+     * getClock
+     *
+     * @return the simulated time of this CPU
+     */
+    public Clock getClock()
+    {
+        return m_clock;
+    }//getClock
+    
+    /**
+     * setCache
+     *
+     * puts a model of a data cache (hierarchy) between this CPU and RAM.
+     * Memory accesses are then charged whatever the cache says they cost
+     * instead of the flat RAM latency.
+     *
+     * @param cache the first level (or null to remove the cache)
+     */
+    public void setCache(Cache cache)
+    {
+        m_cache = cache;
+        if (cache != null)
+            cache.setMemCycles(m_clock.getMemCycles());
+    }//setCache
+    
+    /**
+     * getCache
+     *
+     * @return the first level of the data cache model (may be null)
+     */
+    public Cache getCache()
+    {
+        return m_cache;
+    }//getCache
+    
+    /**
+     * memCycles
+     *
+     * @return what an access made on behalf of the OS costs
+     */
+    private int memCycles(int addr, boolean write)
+    {
+        return (m_cache == null) ? m_clock.getMemCycles() : m_cache.access(addr, write);
+    }//memCycles
+    
+    /**
+     * setInstructionCache
+     *
+     * installs the pre-decoded code of the process that is about to run.  The
+     * cache is indexed by offset from the BASE register.
+     *
+     * @param ic the decoded code (or null to always fetch from RAM)
+     */
+    public void setInstructionCache(InstructionCache ic)
+    {
+        m_icache = ic;
+    }//setInstructionCache
+    
+    /**
+     * setProfiler
+     *
+     * attaches a profiler that is told about the instructions this CPU
+     * executes.  The profiler is picked up the next time run() is called.
+     *
+     * @param prof the profiler (or null to stop profiling)
+     */
+    public void setProfiler(Profiler prof)
+    {
+        m_profiler = prof;
+    }//setProfiler
+    
+    /**
+     * setTrace
+     *
+     * attaches a trace that records (or checks) every instruction this CPU
+     * executes.  The trace is picked up the next time run() is called.
+     *
+     * @param trace the trace (or null to stop tracing)
+     */
+    public void setTrace(Trace trace)
+    {
+        m_trace = trace;
+    }//setTrace
+    
+    /**
+     * getTrace
+     *
+     * @return the attached trace (may be null)
+     */
+    public Trace getTrace()
+    {
+        return m_trace;
+    }//getTrace
+    
+    /**
+     * getProfiler
+     *
+     * @return the attached profiler (may be null)
+     */
+    public Profiler getProfiler()
+    {
+        return m_profiler;
+    }//getProfiler
+    
+    /**
+     * getInstructionCache
+     *
+     * @return the pre-decoded code of the running process (may be null)
+     */
+    public InstructionCache getInstructionCache()
+    {
+        return m_icache;
+    }//getInstructionCache
+    
+    /**
+     * setPageTable
+     *
+     * installs the page table of the process that is about to run and
+     * flushes the TLB.  From then on every address the process uses is
+     * virtual.
+     *
+     * @param table entry i holds the frame virtual page i is mapped to or
+     *              -1 if it isn't mapped (null to use physical addresses)
+     */
+    public void setPageTable(int[] table)
+    {
+        m_pageTable = table;
+        flushTLB();
+    }//setPageTable
+    
+    /**
+     * getPageTable
+     *
+     * @return the page table of the running process (may be null)
+     */
+    public int[] getPageTable()
+    {
+        return m_pageTable;
+    }//getPageTable
+    
+    /**
+     * flushTLB
+     *
+     * empties the TLB.  The OS must do this whenever it changes or removes
+     * a mapping that may be in the TLB.
+     */
+    public void flushTLB()
+    {
+        java.util.Arrays.fill(m_tlbPage, -1);
+        m_tlbFlushes++;
+    }//flushTLB
+    
+    /**
+     * lookup
+     *
+     * @param addr a virtual address
+     * @return the physical address it is mapped to by the TLB or -1 if its
+     *         page isn't in the TLB
+     */
+    private int lookup(int addr)
+    {
+        m_tlbLookups++;
+        int page = addr >>> RAM.PAGE_SHIFT;
+        int slot = page & (TLB_SIZE - 1);
+        if (m_tlbPage[slot] != page)
+            return -1;
+        return m_tlbFrame[slot] | (addr & (RAM.PAGE_SIZE - 1));
+    }//lookup
+    
+    /**
+     * refill
+     *
+     * loads the page table entry for a virtual address into the TLB
+     *
+     * @param addr a virtual address
+     * @return true if the address is mapped, false for a page fault
+     */
+    private boolean refill(int addr)
+    {
+        m_tlbMisses++;
+        int page = addr >>> RAM.PAGE_SHIFT;
+        if (page >= m_pageTable.length || m_pageTable[page] < 0)
+            return false;
+        int slot = page & (TLB_SIZE - 1);
+        m_tlbPage[slot] = page;
+        m_tlbFrame[slot] = m_pageTable[page] << RAM.PAGE_SHIFT;
+        return true;
+    }//refill
+    
+    /**
+     * translate
+     *
+     * looks a virtual address up in the page table without using (or
+     * changing) the TLB
+     *
+     * @param addr a virtual address
+     * @return the physical address or -1 if its page isn't mapped
+     */
+    private int translate(int addr)
+    {
+        if (m_pageTable == null)
+            return addr;
+        int page = addr >>> RAM.PAGE_SHIFT;
+        if (page >= m_pageTable.length || m_pageTable[page] < 0)
+            return -1;
+        return (m_pageTable[page] << RAM.PAGE_SHIFT) | (addr & (RAM.PAGE_SIZE - 1));
+    }//translate
+    
+    /**
+     * physical
+     *
+     * works out where a word the OS accesses on behalf of the running
+     * process is.  If its page isn't mapped yet the OS is asked to map it.
+     *
+     * @param addr the address used by the process
+     * @return the physical address (-1 if the OS couldn't map the page, in
+     *         which case it has ended the process)
+     */
+    private int physical(int addr)
+    {
+        int phys = translate(addr);
+        if (phys < 0)
+        {
+            m_pageFaults++;
+            m_TH.interruptPageFault(addr);
+            phys = translate(addr);
+        }
+        return phys;
+    }//physical
+    
+    /**
+     * fetch
+     *
+     * reads an instruction for debugging output or a profiler sample.  With
+     * paging the words of pages that aren't mapped read as zero.
+     *
+     * @param addr  the address used by the process
+     * @param instr where to put the instruction
+     * @return instr
+     */
+    private int[] fetch(int addr, int[] instr)
+    {
+        if (m_pageTable == null)
+            return m_RAM.fetch(addr, instr);
+        for(int i = 0; i < INSTRSIZE; i++)
+        {
+            int phys = translate(addr + i);
+            instr[i] = (phys < 0) ? 0 : m_RAM.read(phys);
+        }
+        return instr;
+    }//fetch
+    
+    /**
+     * getTLBLookups
+     *
+     * @return the number of times the TLB was searched
+     */
+    public long getTLBLookups()
+    {
+        return m_tlbLookups;
+    }
+    
+    /**
+     * getTLBMisses
+     *
+     * @return the number of TLB lookups that had to go to the page table
+     */
+    public long getTLBMisses()
+    {
+        return m_tlbMisses;
+    }
+    
+    /**
+     * getTLBCycles
+     *
+     * @return the simulated cycles spent refilling the TLB
+     */
+    public long getTLBCycles()
+    {
+        return m_tlbCycles;
+    }
+    
+    /**
+     * getTLBFlushes
+     *
+     * @return the number of times the TLB was flushed
+     */
+    public long getTLBFlushes()
+    {
+        return m_tlbFlushes;
+    }
+    
+    /**
+     * getPageFaults
+     *
+     * @return the number of page faults this CPU has raised
+     */
+    public long getPageFaults()
+    {
+        return m_pageFaults;
+    }
+    
+    /**
+     * writeRAM
+     *
+     * writes a word to RAM on behalf of the running process and, if the word
+     * lies inside the cached code range, invalidates the overlapping
+     * instructions so that self-modifying code still behaves correctly.
+     *
+     * @param addr  the address to write to
+     * @param val   the value to write
+     */
+    private void writeRAM(int addr, int val)
+    {
+        int phys = physical(addr);
+        if (phys < 0)
+            return;
+        m_clock.advance(memCycles(phys, true));
+        m_RAM.write(phys, val);
+        if (m_icache != null)
+            m_icache.write(addr - getBASE(), val);
+    }//writeRAM
+    
     /**
      * registerTrapHandler
      *
@@ -427,7 +1368,11 @@ public class CPU
     {
         if (getSP() <= getLIM())
         {
-            m_registers[index] = m_RAM.read(getSP());
+            int phys = physical(getSP());
+            if (phys < 0)
+                return false;
+            m_clock.advance(memCycles(phys, false));
+            m_registers[index] = m_RAM.read(phys);
             setSP(getSP() + 1);
             return true;
         }
@@ -444,7 +1389,11 @@ public class CPU
     {
         if (getSP() <= getLIM())
         {
-            int returnVal = m_RAM.read(getSP());
+            int phys = physical(getSP());
+            if (phys < 0)
+                return -1;
+            m_clock.advance(memCycles(phys, false));
+            int returnVal = m_RAM.read(phys);
             setSP(getSP() + 1);
             return returnVal;
         }
@@ -464,7 +1413,7 @@ public class CPU
         if (getSP() > getBASE())
         {
             setSP(getSP() - 1);
-            m_RAM.write(getSP(), val);
+            writeRAM(getSP(), val);
             return true;
         }
         else
@@ -487,21 +1436,5 @@ public class CPU
             m_TH.interruptIllegalMemoryAccess(ramLoc);
             return false;
     }//validateRAMLoc
-    
-    /**
-     * validateRegisterIndex
-     * 
-     * Check that a given list of register indices are for valid register.
-     *  
-     * @param registerIndices
-     * @return True if all are valid.  False otherwise.
-     */
-    public boolean validateRegisterIndex(int[] registerIndices)
-    {
-        for(int rIndex : registerIndices)
-            if(rIndex < 0 || rIndex > 4) return false;
-
-        return true;
-    }//validateRegisterIndex
 
 };//class CPU
@@ -0,0 +1,338 @@
+package sos;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class models one level of a set-associative data cache that sits
+ * between a CPU and its RAM.  Only timing is modeled: the data itself always
+ * lives in RAM, so a cache can be added or removed without changing what a
+ * program computes, only how many cycles it takes.
+ *
+ * A cache is made of sets of lines.  An address maps to exactly one set and
+ * can be held in any line ("way") of that set; when all of them are in use
+ * the least recently used line is replaced.  Writes are handled in one of
+ * two ways:
+ * <ul>
+ * <li>write-back: a write only updates the cached line (loading it first
+ *     if necessary).  The line is written to the next level when it is
+ *     replaced.</li>
+ * <li>write-through: every write goes straight to the next level as well.
+ *     A write that misses does not load the line.</li>
+ * </ul>
+ *
+ * Levels are chained: a miss in one level is an access to the next one, and
+ * a miss in the last level costs a RAM access.  Hits and misses are counted
+ * separately for each process.
+ *
+ * A level is not meant to be shared by cores running at the same time; give
+ * each core its own hierarchy.
+ *
+ * @see CPU#setCache
+ */
+public class Cache
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    //These constants index the counters kept for each process
+    private static final int ACCESSES   = 0;
+    private static final int MISSES     = 1;
+    private static final int WRITEBACKS = 2;
+
+    /** the process id used before any process has been set */
+    private static final int NO_PROCESS = -1;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the name of this level (e.g., "L1") for reports
+     **/
+    private String m_name;
+
+    /**
+     * the geometry of the cache: words per line (as a power of two), the
+     * number of sets (minus one, as a mask) and lines per set
+     **/
+    private int m_lineShift;
+    private int m_setMask;
+    private int m_ways;
+
+    /**
+     * what a hit costs and (for the last level) what going to RAM costs
+     **/
+    private int m_hitCycles;
+    private int m_memCycles = 0;
+
+    /**
+     * true for write-back, false for write-through
+     **/
+    private boolean m_writeBack;
+
+    /**
+     * the next level (null if the next level is RAM)
+     **/
+    private Cache m_next;
+
+    /**
+     * the line number held by each line of each set (-1 if invalid), when
+     * each was last used and whether it has been written since it was loaded
+     **/
+    private int m_tags[];
+    private long m_used[];
+    private boolean m_dirty[];
+
+    /**
+     * counts accesses so that the least recently used line can be found
+     **/
+    private long m_time = 0;
+
+    /**
+     * the counters of each process and those of the current process
+     **/
+    private LinkedHashMap<Integer, long[]> m_stats = new LinkedHashMap<Integer, long[]>();
+    private long m_cur[];
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * constructor
+     *
+     * @param name       the name of this level (e.g., "L1")
+     * @param sizeWords  the capacity in words (a power of two)
+     * @param lineWords  the words per line (a power of two)
+     * @param ways       the lines per set (a power of two; sizeWords /
+     *                   lineWords for a fully associative cache)
+     * @param hitCycles  the cost of a hit
+     * @param writeBack  true for write-back, false for write-through
+     * @param next       the next level (null if the next level is RAM)
+     */
+    public Cache(String name, int sizeWords, int lineWords, int ways,
+                 int hitCycles, boolean writeBack, Cache next)
+    {
+        if (Integer.bitCount(sizeWords) != 1 || Integer.bitCount(lineWords) != 1
+            || Integer.bitCount(ways) != 1 || lineWords * ways > sizeWords)
+            throw new IllegalArgumentException("bad cache geometry for " + name);
+
+        m_name = name;
+        m_lineShift = Integer.numberOfTrailingZeros(lineWords);
+        m_setMask = sizeWords / lineWords / ways - 1;
+        m_ways = ways;
+        m_hitCycles = hitCycles;
+        m_writeBack = writeBack;
+        m_next = next;
+
+        int lines = sizeWords / lineWords;
+        m_tags = new int[lines];
+        m_used = new long[lines];
+        m_dirty = new boolean[lines];
+        java.util.Arrays.fill(m_tags, -1);
+        setProcess(NO_PROCESS);
+    }//ctor
+
+    /**
+     * getNext
+     *
+     * @return the next level (null if the next level is RAM)
+     */
+    public Cache getNext()
+    {
+        return m_next;
+    }
+
+    /**
+     * setMemCycles
+     *
+     * sets what an access to RAM costs.  It only matters to the last level
+     * so it is passed down the hierarchy.
+     *
+     * @param cycles the cost of a RAM access
+     */
+    public void setMemCycles(int cycles)
+    {
+        m_memCycles = cycles;
+        if (m_next != null)
+            m_next.setMemCycles(cycles);
+    }//setMemCycles
+
+    /**
+     * setProcess
+     *
+     * says which process the following accesses belong to (for this level
+     * and the ones below it)
+     *
+     * @param pid the process id
+     */
+    public void setProcess(int pid)
+    {
+        long stats[] = m_stats.get(pid);
+        if (stats == null)
+        {
+            stats = new long[WRITEBACKS + 1];
+            m_stats.put(pid, stats);
+        }
+        m_cur = stats;
+        if (m_next != null)
+            m_next.setProcess(pid);
+    }//setProcess
+
+    /**
+     * access
+     *
+     * simulates a read or write of one word
+     *
+     * @param addr  the address
+     * @param write true for a write
+     * @return the number of cycles the access takes
+     */
+    public int access(int addr, boolean write)
+    {
+        long stats[] = m_cur;
+        stats[ACCESSES]++;
+        int line = addr >>> m_lineShift;
+        int first = (line & m_setMask) * m_ways;
+        int last = first + m_ways;
+
+        //Look for the line
+        for(int i = first; i < last; i++)
+        {
+            if (m_tags[i] == line)
+            {
+                m_used[i] = ++m_time;
+                if (write)
+                {
+                    if (!m_writeBack)
+                        return m_hitCycles + below(addr, true);
+                    m_dirty[i] = true;
+                }
+                return m_hitCycles;
+            }
+        }
+
+        //A miss.  Write-through caches don't load a line for a write.
+        stats[MISSES]++;
+        if (write && !m_writeBack)
+            return m_hitCycles + below(addr, true);
+
+        //Replace an unused line or the least recently used one
+        int victim = first;
+        for(int i = first; i < last; i++)
+        {
+            if (m_tags[i] == -1)
+            {
+                victim = i;
+                break;
+            }
+            if (m_used[i] < m_used[victim])
+                victim = i;
+        }
+
+        int cycles = m_hitCycles;
+        if (m_tags[victim] != -1 && m_dirty[victim])
+        {
+            stats[WRITEBACKS]++;
+            cycles += below(m_tags[victim] << m_lineShift, true);
+        }
+        cycles += below(addr, false);
+        m_tags[victim] = line;
+        m_dirty[victim] = write;
+        m_used[victim] = ++m_time;
+        return cycles;
+    }//access
+
+    /**
+     * @return the cost of accessing the level below this one
+     */
+    private int below(int addr, boolean write)
+    {
+        return (m_next == null) ? m_memCycles : m_next.access(addr, write);
+    }
+
+    /**
+     * flush
+     *
+     * empties the cache (and the levels below it) without writing anything
+     * back.  The counters are kept.
+     */
+    public void flush()
+    {
+        java.util.Arrays.fill(m_tags, -1);
+        java.util.Arrays.fill(m_dirty, false);
+        if (m_next != null)
+            m_next.flush();
+    }//flush
+
+    /**
+     * getAccesses
+     *
+     * @return the number of accesses to this level (by every process)
+     */
+    public long getAccesses()
+    {
+        return total(ACCESSES);
+    }
+
+    /**
+     * getMisses
+     *
+     * @return the number of accesses to this level that missed
+     */
+    public long getMisses()
+    {
+        return total(MISSES);
+    }
+
+    /**
+     * @return the sum of one counter over every process
+     */
+    private long total(int counter)
+    {
+        long sum = 0;
+        for (long stats[] : m_stats.values())
+            sum += stats[counter];
+        return sum;
+    }
+
+    /**
+     * printReport
+     *
+     * prints the hit rate of this level and the levels below it, in total
+     * and for each process
+     *
+     * @param out where to print the report
+     */
+    public void printReport(PrintStream out)
+    {
+        int lines = m_tags.length;
+        out.println("CACHE " + m_name + ": " + ((lines << m_lineShift)) + " words, "
+                    + (1 << m_lineShift) + " words/line, " + m_ways + "-way, "
+                    + (m_writeBack ? "write-back" : "write-through"));
+        out.println(row("total", getAccesses(), getMisses(), total(WRITEBACKS)));
+        for (Map.Entry<Integer, long[]> e : m_stats.entrySet())
+        {
+            long stats[] = e.getValue();
+            if (stats[ACCESSES] == 0)
+                continue;
+            String who = (e.getKey() == NO_PROCESS) ? "(no process)" : ("process " + e.getKey());
+            out.println(row(who, stats[ACCESSES], stats[MISSES], stats[WRITEBACKS]));
+        }
+        if (m_next != null)
+            m_next.printReport(out);
+    }//printReport
+
+    /**
+     * @return one line of the report
+     */
+    private static String row(String who, long accesses, long misses, long writebacks)
+    {
+        double hitRate = (accesses == 0) ? 0 : 100.0 * (accesses - misses) / accesses;
+        return String.format("    %-16s %12d accesses %10d misses  %5.1f%% hits  %d writebacks",
+                             who, accesses, misses, hitRate, writebacks);
+    }
+};//class Cache
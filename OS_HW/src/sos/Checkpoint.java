@@ -0,0 +1,390 @@
+package sos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class keeps a snapshot of a simulated machine in a file so that a long
+ * simulation can be picked up again after the JVM goes down.
+ *
+ * The file holds a small header, an image of the RAM, a map of which pages
+ * of the image are in use and a block of machine state (CPU registers and
+ * clocks, process and device tables) supplied by the OS.  It is accessed
+ * through memory mapped windows so saving and restoring are just memory
+ * copies.  After the first save only the RAM pages that have been
+ * written since the previous save are copied to the file.  Pages a sparse
+ * RAM has never created are left out altogether, so the image only takes
+ * up as much of the disk as the guests actually use.
+ *
+ * A save first marks the file as incomplete and only marks it complete again
+ * once everything has been forced to disk, so a crash part way through a save
+ * can never be mistaken for a good checkpoint.  Note that this means only the
+ * most recent checkpoint is kept.
+ *
+ * @see SOS#setCheckpoint
+ * @see RAM#isDirty
+ */
+public class Checkpoint
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /** identifies a checkpoint file ("SOSC") */
+    private static final int MAGIC = 0x534F5343;
+    /** the version of the file format */
+    private static final int VERSION = 10;
+
+    /** the number of bytes reserved for the header (the RAM image follows) */
+    private static final int HEADER_SIZE = 4096;
+
+    //Where each field lives in the header
+    private static final int H_MAGIC     = 0;
+    private static final int H_VERSION   = 4;
+    private static final int H_COMPLETE  = 8;
+    private static final int H_PAGESIZE  = 12;
+    private static final int H_RAMSIZE   = 16;   // long
+    private static final int H_SEQUENCE  = 24;   // long
+    private static final int H_STATELEN  = 32;
+
+    /** the RAM image is mapped this many bytes at a time */
+    private static final long WINDOW = 1L << 28;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the checkpoint file
+     **/
+    private File m_file;
+
+    /**
+     * the open file (null until the first save or restore)
+     **/
+    private FileChannel m_channel = null;
+
+    /**
+     * the mapped header
+     **/
+    private MappedByteBuffer m_header = null;
+
+    /**
+     * the mapped windows of the RAM image (mapped when first needed) and an
+     * int view of each one
+     **/
+    private MappedByteBuffer m_windows[] = null;
+    private IntBuffer m_views[] = null;
+
+    /**
+     * set when the RAM image in the file can't be trusted to match the
+     * RAM so the next save has to write every page
+     **/
+    private boolean m_full = true;
+
+    /**
+     * the number of checkpoints written to the file
+     **/
+    private long m_sequence = 0;
+
+    /**
+     * the number of pages copied by the most recent save
+     **/
+    private int m_pagesWritten = 0;
+
+    /**
+     * how long the most recent save or restore took (in milliseconds)
+     **/
+    private long m_lastMillis = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * constructor
+     *
+     * @param fileName the name of the checkpoint file.  It is not touched
+     *                 until the first save or restore.
+     */
+    public Checkpoint(String fileName)
+    {
+        m_file = new File(fileName);
+    }//ctor
+
+    /**
+     * exists
+     *
+     * @return true if the file holds a complete checkpoint
+     */
+    public boolean exists()
+    {
+        if (!m_file.isFile() || m_file.length() < HEADER_SIZE)
+            return false;
+        try
+        {
+            open(0);
+            return m_header.getInt(H_MAGIC) == MAGIC
+                && m_header.getInt(H_VERSION) == VERSION
+                && m_header.getInt(H_COMPLETE) != 0;
+        }
+        catch(IOException e)
+        {
+            return false;
+        }
+    }//exists
+
+    /**
+     * save
+     *
+     * writes a checkpoint.  The machine must not be running while this is
+     * done.  Afterwards every page of the RAM is marked clean.
+     *
+     * @param ram   the RAM to save
+     * @param state the rest of the machine state
+     */
+    public void save(RAM ram, byte[] state) throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+        long ramBytes = (long)ram.getSize() * 4;
+        open(ramBytes);
+        if (m_header.getLong(H_RAMSIZE) != ram.getSize())
+            m_full = true;
+
+        //Until this save is done the file doesn't hold a usable checkpoint
+        m_header.putInt(H_COMPLETE, 0);
+        m_header.force();
+
+        //Copy the pages that have changed.  Pages that don't exist are all
+        //zeroes and are only recorded as missing in the page map.
+        boolean touched[] = new boolean[m_windows.length];
+        byte present[] = new byte[mapBytes(ram)];
+        int buf[] = new int[RAM.PAGE_SIZE];
+        m_pagesWritten = 0;
+        for(int page = 0; page < ram.getNumPages(); page++)
+        {
+            if (!ram.isPresent(page))
+                continue;
+            present[page >>> 3] |= 1 << (page & 7);
+            if (!m_full && !ram.isDirty(page))
+                continue;
+
+            int addr = page << RAM.PAGE_SHIFT;
+            int end = (int)Math.min((long)addr + RAM.PAGE_SIZE, ram.getSize());
+            int win = (int)(((long)addr * 4) / WINDOW);
+            IntBuffer view = getView(win, ramBytes);
+            int index = (int)((((long)addr * 4) % WINDOW) / 4);
+            ram.read(addr, buf, 0, end - addr);
+            view.position(index);
+            view.put(buf, 0, end - addr);
+            touched[win] = true;
+            m_pagesWritten++;
+        }
+        for(int win = 0; win < touched.length; win++)
+            if (touched[win])
+                m_windows[win].force();
+
+        //The page map and then the machine state go after the RAM image
+        MappedByteBuffer mb = m_channel.map(FileChannel.MapMode.READ_WRITE,
+                                            HEADER_SIZE + ramBytes, present.length);
+        mb.put(present);
+        mb.force();
+        MappedByteBuffer sb = m_channel.map(FileChannel.MapMode.READ_WRITE,
+                                            HEADER_SIZE + ramBytes + present.length,
+                                            state.length);
+        sb.put(state);
+        sb.force();
+
+        //Now the checkpoint is complete
+        m_sequence++;
+        m_header.putInt(H_MAGIC, MAGIC);
+        m_header.putInt(H_VERSION, VERSION);
+        m_header.putInt(H_PAGESIZE, RAM.PAGE_SIZE);
+        m_header.putLong(H_RAMSIZE, ram.getSize());
+        m_header.putLong(H_SEQUENCE, m_sequence);
+        m_header.putInt(H_STATELEN, state.length);
+        m_header.putInt(H_COMPLETE, 1);
+        m_header.force();
+
+        ram.clean();
+        m_full = false;
+        m_lastMillis = System.currentTimeMillis() - startTime;
+    }//save
+
+    /**
+     * restore
+     *
+     * copies the RAM image in the checkpoint into the given RAM
+     *
+     * @param ram   the RAM to restore.  It must be the same size as the one
+     *              that was saved.
+     * @return the machine state that was saved with the RAM image or null if
+     *         the file doesn't hold a complete checkpoint of a RAM this size
+     */
+    public byte[] restore(RAM ram) throws IOException
+    {
+        if (!exists())
+            return null;
+
+        long startTime = System.currentTimeMillis();
+        long ramBytes = (long)ram.getSize() * 4;
+        if (m_header.getLong(H_RAMSIZE) != ram.getSize()
+            || m_header.getInt(H_PAGESIZE) != RAM.PAGE_SIZE)
+            return null;
+        open(ramBytes);
+
+        byte present[] = new byte[mapBytes(ram)];
+        MappedByteBuffer mb = m_channel.map(FileChannel.MapMode.READ_ONLY,
+                                            HEADER_SIZE + ramBytes, present.length);
+        mb.get(present);
+
+        //Copy in the pages that were saved.  The rest were all zeroes so
+        //they only need clearing if the RAM has them.
+        int buf[] = new int[RAM.PAGE_SIZE];
+        for(int page = 0; page < ram.getNumPages(); page++)
+        {
+            int addr = page << RAM.PAGE_SHIFT;
+            int end = (int)Math.min((long)addr + RAM.PAGE_SIZE, ram.getSize());
+            if ((present[page >>> 3] & (1 << (page & 7))) == 0)
+            {
+                if (ram.isPresent(page))
+                    ram.fill(addr, end - addr, 0);
+                continue;
+            }
+
+            int win = (int)(((long)addr * 4) / WINDOW);
+            IntBuffer view = getView(win, ramBytes);
+            int index = (int)((((long)addr * 4) % WINDOW) / 4);
+            view.position(index);
+            view.get(buf, 0, end - addr);
+            ram.write(addr, buf, 0, end - addr);
+        }
+
+        byte state[] = new byte[m_header.getInt(H_STATELEN)];
+        MappedByteBuffer sb = m_channel.map(FileChannel.MapMode.READ_ONLY,
+                                            HEADER_SIZE + ramBytes + present.length,
+                                            state.length);
+        sb.get(state);
+
+        //The file and the RAM match now so the next save can be incremental
+        ram.clean();
+        m_full = false;
+        m_sequence = m_header.getLong(H_SEQUENCE);
+        m_lastMillis = System.currentTimeMillis() - startTime;
+        return state;
+    }//restore
+
+    /**
+     * close
+     *
+     * closes the file.  It is reopened by the next save or restore (which
+     * will then write every page).
+     */
+    public void close()
+    {
+        if (m_channel == null)
+            return;
+        try
+        {
+            m_channel.close();
+        }
+        catch(IOException e) { /* nothing more can be done */ }
+        m_channel = null;
+        m_header = null;
+        m_windows = null;
+        m_views = null;
+        m_full = true;
+    }//close
+
+    /**
+     * getSequence
+     *
+     * @return the number of checkpoints that have been written to the file
+     */
+    public long getSequence()
+    {
+        return m_sequence;
+    }
+
+    /**
+     * getPagesWritten
+     *
+     * @return the number of RAM pages copied by the most recent save
+     */
+    public int getPagesWritten()
+    {
+        return m_pagesWritten;
+    }
+
+    /**
+     * getLastMillis
+     *
+     * @return how long the most recent save or restore took (in ms)
+     */
+    public long getLastMillis()
+    {
+        return m_lastMillis;
+    }
+
+    /**
+     * open
+     *
+     * opens the file (if it isn't already) and maps the header.  When the
+     * size of the RAM image is known the window table is set up as well.
+     *
+     * @param ramBytes the size of the RAM image (0 if not known yet)
+     */
+    private void open(long ramBytes) throws IOException
+    {
+        if (m_channel == null)
+        {
+            m_channel = FileChannel.open(m_file.toPath(), StandardOpenOption.CREATE,
+                                         StandardOpenOption.READ, StandardOpenOption.WRITE);
+            m_header = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (m_header.getInt(H_MAGIC) == MAGIC)
+                m_sequence = m_header.getLong(H_SEQUENCE);
+        }
+
+        int numWindows = (int)((ramBytes + WINDOW - 1) / WINDOW);
+        if (ramBytes > 0 && (m_windows == null || m_windows.length != numWindows))
+        {
+            m_windows = new MappedByteBuffer[numWindows];
+            m_views = new IntBuffer[numWindows];
+        }
+    }//open
+
+    /**
+     * mapBytes
+     *
+     * @param ram  a RAM
+     * @return the size of the page map for it (a bit per page)
+     */
+    private static int mapBytes(RAM ram)
+    {
+        return (ram.getNumPages() + 7) / 8;
+    }
+
+    /**
+     * getView
+     *
+     * @param win      the index of a window of the RAM image
+     * @param ramBytes the size of the RAM image
+     * @return an int view of the window (mapping it if necessary)
+     */
+    private IntBuffer getView(int win, long ramBytes) throws IOException
+    {
+        if (m_views[win] == null)
+        {
+            long offset = win * WINDOW;
+            long size = Math.min(WINDOW, ramBytes - offset);
+            m_windows[win] = m_channel.map(FileChannel.MapMode.READ_WRITE,
+                                           HEADER_SIZE + offset, size);
+            m_views[win] = m_windows[win].asIntBuffer();
+        }
+        return m_views[win];
+    }//getView
+};//class Checkpoint
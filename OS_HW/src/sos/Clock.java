@@ -0,0 +1,374 @@
+package sos;
+
+/**
+ * This class keeps simulated time for a CPU.  Instead of really waiting for
+ * things like RAM latency, each instruction charges a number of cycles to the
+ * clock.  Every opcode has its own cost and each RAM access made by LOAD,
+ * SAVE, PUSH or POP (or by fetching code that isn't in the instruction cache)
+ * costs extra.
+ *
+ * The CPU adds up cycles in a local variable while it runs and only stores
+ * them here when it stops (e.g., for a trap), so the OS and devices always
+ * see the time as of the last instruction that was handed to them.
+ *
+ * The costs should be set before the machine starts running.  Compiled blocks
+ * remember what one pass through them costs.
+ *
+ * Normally simulated time has nothing to do with real time.  For interactive
+ * demos the clock can be paced so that the simulation never runs faster than
+ * the simulated cycle time.
+ *
+ * @see CPU#getClock
+ * @see RAM#getLatency
+ */
+public class Clock
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /** the default length of a cycle in nanoseconds (i.e., a 1GHz CPU) */
+    public static final double DEFAULT_CYCLE_NANOS = 1.0;
+
+    /** the default cost of refilling the TLB (not counting memory) */
+    public static final int DEFAULT_TLB_REFILL_CYCLES = 10;
+
+    /** the number of words a burst moves per cycle once it has started */
+    public static final int BURST_WORDS_PER_CYCLE = 4;
+
+    /** the highest opcode that has a cost */
+    private static final int MAXOP = 15;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the number of cycles that have passed
+     **/
+    volatile long m_cycles = 0;
+
+    /**
+     * the total cost (in cycles) of every opcode the CPU may execute
+     * including fused ones and memory accesses.  It is indexed by opcode+1
+     * so that ILLEGAL can be charged too.  The CPU reads this directly.
+     **/
+    int m_cost[] = new int[InstructionCache.FUSED_SET_PUSH_TRAP + 2];
+
+    /**
+     * the same as m_cost but without any memory accesses.  It is used when
+     * a Cache works out what each memory access costs.
+     **/
+    int m_opCost[] = new int[InstructionCache.FUSED_SET_PUSH_TRAP + 2];
+
+    /**
+     * the cost of each opcode not counting memory accesses
+     **/
+    private int m_opCycles[] = new int[MAXOP + 1];
+
+    /**
+     * the cost of one RAM access
+     **/
+    private int m_memCycles;
+
+    /**
+     * the cost of refilling the TLB on a miss, not counting the RAM access
+     * that reads the page table entry
+     **/
+    private int m_tlbRefillCycles = DEFAULT_TLB_REFILL_CYCLES;
+
+    /**
+     * the length of a cycle in nanoseconds
+     **/
+    private double m_cycleNanos = DEFAULT_CYCLE_NANOS;
+
+    /**
+     * specifies whether the simulation is held back to real time and, if
+     * so, the real and simulated time when pacing started
+     **/
+    private boolean m_paced = false;
+    private long m_paceStartNanos = 0;
+    private long m_paceStartCycles = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * constructor
+     *
+     * @param memCycles the number of cycles each RAM access costs
+     */
+    public Clock(int memCycles)
+    {
+        java.util.Arrays.fill(m_opCycles, 1);
+        m_opCycles[CPU.MUL] = 3;
+        m_opCycles[CPU.DIV] = 20;
+        m_opCycles[CPU.TRAP] = 10;
+        m_memCycles = Math.max(0, memCycles);
+        updateCosts();
+    }//ctor
+
+    /**
+     * getCycles
+     *
+     * @return the number of cycles that have passed
+     */
+    public long getCycles()
+    {
+        return m_cycles;
+    }
+
+    /**
+     * getNanos
+     *
+     * @return the simulated time that has passed in nanoseconds
+     */
+    public long getNanos()
+    {
+        return (long)(m_cycles * m_cycleNanos);
+    }
+
+    /**
+     * advance
+     *
+     * charges extra time (e.g., for work done by the OS or a device).  It
+     * should only be called while the CPU isn't running.
+     *
+     * @param cycles the number of cycles to add
+     */
+    public void advance(long cycles)
+    {
+        m_cycles += cycles;
+    }//advance
+
+    /**
+     * setCycles
+     *
+     * sets the time (e.g., when a checkpoint is restored).  The CPU must not
+     * be running.
+     *
+     * @param cycles the new number of cycles
+     */
+    public void setCycles(long cycles)
+    {
+        m_cycles = cycles;
+        m_paceStartCycles = cycles;
+        m_paceStartNanos = System.nanoTime();
+    }//setCycles
+
+    /**
+     * getOpCycles
+     *
+     * @param op an opcode
+     * @return what the opcode costs, not counting any memory access
+     */
+    public int getOpCycles(int op)
+    {
+        return m_opCycles[op];
+    }
+
+    /**
+     * setOpCycles
+     *
+     * @param op     an opcode
+     * @param cycles what the opcode should cost (not counting any memory
+     *               access)
+     */
+    public void setOpCycles(int op, int cycles)
+    {
+        m_opCycles[op] = Math.max(0, cycles);
+        updateCosts();
+    }//setOpCycles
+
+    /**
+     * getMemCycles
+     *
+     * @return the number of cycles each RAM access costs
+     */
+    public int getMemCycles()
+    {
+        return m_memCycles;
+    }
+
+    /**
+     * setMemCycles
+     *
+     * @param cycles the number of cycles each RAM access should cost
+     */
+    public void setMemCycles(int cycles)
+    {
+        m_memCycles = Math.max(0, cycles);
+        updateCosts();
+    }//setMemCycles
+
+    /**
+     * getBurstCycles
+     *
+     * @param words the size of a block moved to or from RAM in one go
+     * @return what moving it costs: the RAM latency once and then
+     *         BURST_WORDS_PER_CYCLE words each cycle
+     */
+    public long getBurstCycles(int words)
+    {
+        return m_memCycles + (words + BURST_WORDS_PER_CYCLE - 1) / BURST_WORDS_PER_CYCLE;
+    }
+
+    /**
+     * getTLBMissCycles
+     *
+     * @return what a TLB miss costs: the refill itself plus reading the page
+     *         table entry from RAM
+     */
+    public int getTLBMissCycles()
+    {
+        return m_tlbRefillCycles + m_memCycles;
+    }
+
+    /**
+     * setTLBRefillCycles
+     *
+     * @param cycles what refilling the TLB should cost (not counting the
+     *               RAM access)
+     */
+    public void setTLBRefillCycles(int cycles)
+    {
+        m_tlbRefillCycles = Math.max(0, cycles);
+    }//setTLBRefillCycles
+
+    /**
+     * getCycleNanos
+     *
+     * @return the length of a cycle in nanoseconds
+     */
+    public double getCycleNanos()
+    {
+        return m_cycleNanos;
+    }
+
+    /**
+     * setCycleNanos
+     *
+     * @param nanos the length of a cycle in nanoseconds
+     */
+    public void setCycleNanos(double nanos)
+    {
+        m_cycleNanos = nanos;
+    }
+
+    /**
+     * setPaced
+     *
+     * turns wall clock pacing on or off.  This is only meant for interactive
+     * demos since it slows the simulation down to the simulated speed.
+     *
+     * @param paced true to keep the simulation from running ahead of real
+     *              time
+     */
+    public void setPaced(boolean paced)
+    {
+        m_paced = paced;
+        m_paceStartNanos = System.nanoTime();
+        m_paceStartCycles = m_cycles;
+    }//setPaced
+
+    /**
+     * isPaced
+     *
+     * @return true if the simulation is held back to real time
+     */
+    public boolean isPaced()
+    {
+        return m_paced;
+    }
+
+    /**
+     * pace
+     *
+     * sleeps until real time catches up with simulated time.  The CPU calls
+     * this every so often while the clock is paced.
+     */
+    public void pace()
+    {
+        if (!m_paced)
+            return;
+
+        long ahead = (long)((m_cycles - m_paceStartCycles) * m_cycleNanos)
+                     - (System.nanoTime() - m_paceStartNanos);
+        if (ahead <= 0)
+            return;
+        try
+        {
+            Thread.sleep(ahead / 1000000, (int)(ahead % 1000000));
+        }
+        catch(InterruptedException ie) {/* do nothing*/ }
+    }//pace
+
+    /**
+     * blockCycles
+     *
+     * @param ic     the instruction cache holding a compiled block
+     * @param offset the offset of the block
+     * @param count  the number of instructions that were executed by the
+     *               block (whole passes and possibly part of one more)
+     * @return what executing them cost
+     */
+    public long blockCycles(InstructionCache ic, int offset, int count)
+    {
+        int len = ic.getBlockLength(offset);
+        long passCost = ic.m_blockCycles[offset];
+        if (passCost == 0)
+        {
+            passCost = partCycles(ic, offset, len);
+            ic.m_blockCycles[offset] = (int)passCost;
+        }
+
+        long cycles = (count / len) * passCost;
+        if (count % len != 0)
+            cycles += partCycles(ic, offset, count % len);
+        return cycles;
+    }//blockCycles
+
+    /**
+     * @return the cost of the first n (single) instructions starting at the
+     *         given offset
+     */
+    private int partCycles(InstructionCache ic, int offset, int n)
+    {
+        int cycles = 0;
+        for(int i = 0; i < n; i++)
+            cycles += m_cost[ic.decodeSingle(offset + i * CPU.INSTRSIZE) + 1];
+        return cycles;
+    }
+
+    /**
+     * rebuilds m_cost after the cost of an opcode or of memory has changed
+     */
+    private void updateCosts()
+    {
+        m_cost = costTable(m_memCycles);
+        m_opCost = costTable(0);
+    }//updateCosts
+
+    /**
+     * @return a table of what each opcode costs (indexed by opcode+1) given
+     *         the cost of a memory access
+     */
+    private int[] costTable(int memCycles)
+    {
+        int c[] = new int[InstructionCache.FUSED_SET_PUSH_TRAP + 2];
+        java.util.Arrays.fill(c, 1);
+        for(int op = 0; op <= MAXOP; op++)
+            c[op + 1] = m_opCycles[op];
+        c[CPU.POP + 1]  += memCycles;
+        c[CPU.PUSH + 1] += memCycles;
+        c[CPU.LOAD + 1] += memCycles;
+        c[CPU.SAVE + 1] += memCycles;
+
+        c[InstructionCache.FUSED_ADD_BNE + 1] = c[CPU.ADD + 1] + c[CPU.BNE + 1];
+        c[InstructionCache.FUSED_SET_PUSH + 1] = c[CPU.SET + 1] + c[CPU.PUSH + 1];
+        c[InstructionCache.FUSED_SET_PUSH_TRAP + 1] = c[CPU.SET + 1] + c[CPU.PUSH + 1]
+                                                     + c[CPU.TRAP + 1];
+        return c;
+    }//costTable
+};//class Clock
@@ -0,0 +1,504 @@
+package sos;
+
+import java.io.PrintStream;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * This class adds a real-time scheduling class to another (best-effort)
+ * scheduling policy.  A real-time process is periodic: every period it is
+ * released to do one job which must be done within its (relative) deadline.
+ * It says that a job is done with the NEXTPERIOD system call and then sleeps
+ * until its next release.  Ready real-time processes always run before
+ * best-effort ones and among themselves the one whose job has the earliest
+ * deadline runs first (EDF).  Best-effort processes share whatever time is
+ * left according to their own policy.
+ *
+ * A real-time process has to be admitted when it is created.  It declares
+ * its period, deadline and budget (the most cycles one of its jobs takes)
+ * and is only admitted if the density of all the admitted processes (the sum
+ * of budget / min(deadline, period)) stays within a limit.  With a limit of
+ * 1 (or less) on a single core every deadline is met as long as the budgets
+ * hold; the budgets are not enforced.  For each real-time process the number
+ * of jobs, how many missed their deadline and a histogram of how late they
+ * were are kept.
+ *
+ * Both the ready and the sleeping real-time processes are kept in priority
+ * queues so each decision takes O(log n) time in the number of real-time
+ * processes.
+ *
+ * Times are cycles of the clock given to the constructor.
+ *
+ * @see Scheduler
+ * @see SOS#createProcess(Program, int, long, long, long)
+ */
+public class EDFScheduler implements Scheduler
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * The lateness histogram has a bucket for jobs that met their deadline
+     * and then one for each power of two: bucket k (k > 0) counts jobs that
+     * were between 2^(k-1) and 2^k - 1 cycles late.
+     */
+    public static final int HISTOGRAM_BUCKETS = 40;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the policy for best-effort processes
+     **/
+    private Scheduler m_bestEffort;
+
+    /**
+     * the clock that release times and deadlines are measured with
+     **/
+    private Clock m_clock;
+
+    /**
+     * the highest density the admitted processes may have together and the
+     * density they have now
+     **/
+    private double m_maxDensity;
+    private double m_density = 0;
+
+    /**
+     * the number of processes that were refused admission
+     **/
+    private long m_rejected = 0;
+
+    /**
+     * every real-time process (ready, running or sleeping) by process id.
+     * Ones that have exited are kept for the report.
+     **/
+    private TreeMap<Integer, Task> m_tasks = new TreeMap<Integer, Task>();
+
+    /**
+     * the ready real-time processes by deadline and the sleeping ones by
+     * the time they are released
+     **/
+    private PriorityQueue<Task> m_ready;
+    private PriorityQueue<Task> m_sleeping;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * constructor
+     *
+     * @param bestEffort the policy for best-effort processes
+     * @param clock      the clock that release times and deadlines are
+     *                   measured with
+     * @param maxDensity the highest density the admitted processes may
+     *                   have together (e.g., 0.9 to keep a tenth of the
+     *                   time for best-effort processes)
+     */
+    public EDFScheduler(Scheduler bestEffort, Clock clock, double maxDensity)
+    {
+        m_bestEffort = bestEffort;
+        m_clock = clock;
+        m_maxDensity = maxDensity;
+        m_ready = new PriorityQueue<Task>(16, new Comparator<Task>()
+        {
+            public int compare(Task a, Task b)
+            {
+                if (a.deadline != b.deadline)
+                    return (a.deadline < b.deadline) ? -1 : 1;
+                return a.pid - b.pid;
+            }
+        });
+        m_sleeping = new PriorityQueue<Task>(16, new Comparator<Task>()
+        {
+            public int compare(Task a, Task b)
+            {
+                if (a.release != b.release)
+                    return (a.release < b.release) ? -1 : 1;
+                return a.pid - b.pid;
+            }
+        });
+    }//ctor
+
+    /**
+     * getName
+     *
+     * @return a short description of the policy
+     */
+    public String getName()
+    {
+        String limit = Double.isInfinite(m_maxDensity) ? "no limit" : String.format("%.2f", m_maxDensity);
+        return "EDF (density " + String.format("%.2f", m_density) + " of " + limit
+            + ") over " + m_bestEffort.getName();
+    }
+
+    /**
+     * getBestEffort
+     *
+     * @return the policy for best-effort processes
+     */
+    public Scheduler getBestEffort()
+    {
+        return m_bestEffort;
+    }
+
+    /**
+     * canAdmit
+     *
+     * @param period   the time between releases of the process' jobs
+     * @param deadline how long after its release each job must be done
+     * @param budget   the most time one job takes
+     * @return true if a process with these parameters would be admitted
+     */
+    public boolean canAdmit(long period, long deadline, long budget)
+    {
+        if (period <= 0 || deadline <= 0 || budget <= 0 || budget > deadline)
+            return false;
+        return m_density + density(period, deadline, budget) <= m_maxDensity;
+    }//canAdmit
+
+    /**
+     * admit
+     *
+     * makes a process real-time if it can be admitted.  This must be done
+     * before the process is added.  Its first job is released when it is.
+     *
+     * @param pid      the process id
+     * @param period   the time between releases of the process' jobs
+     * @param deadline how long after its release each job must be done
+     * @param budget   the most time one job takes
+     * @return true if the process was admitted
+     */
+    public boolean admit(int pid, long period, long deadline, long budget)
+    {
+        if (!canAdmit(period, deadline, budget))
+        {
+            reject();
+            return false;
+        }
+        m_density += density(period, deadline, budget);
+        m_tasks.put(pid, new Task(pid, period, deadline, budget));
+        return true;
+    }//admit
+
+    /**
+     * reject
+     *
+     * counts a process that was refused admission (e.g., because the OS
+     * found out with canAdmit before loading it)
+     */
+    public void reject()
+    {
+        m_rejected++;
+    }//reject
+
+    /**
+     * @return what fraction of the time the given process needs
+     */
+    private static double density(long period, long deadline, long budget)
+    {
+        return (double)budget / Math.min(deadline, period);
+    }
+
+    /**
+     * isRealTime
+     *
+     * @param pid a process id
+     * @return true if the process is a real-time process that hasn't exited
+     */
+    public boolean isRealTime(int pid)
+    {
+        Task t = m_tasks.get(pid);
+        return t != null && !t.exited;
+    }
+
+    /**
+     * add
+     *
+     * releases the first job of a real-time process or gives a best-effort
+     * process to the best-effort policy
+     */
+    public void add(int pid)
+    {
+        Task t = m_tasks.get(pid);
+        if (t == null)
+        {
+            m_bestEffort.add(pid);
+            return;
+        }
+        t.release = m_clock.getCycles();
+        t.deadline = t.release + t.relDeadline;
+        m_ready.add(t);
+    }//add
+
+    /**
+     * dispatch
+     *
+     * @param core the core that will run the process
+     * @return the ready real-time process with the earliest deadline or,
+     *         if there is none, the best-effort process picked by the
+     *         best-effort policy (-1 if no process is ready)
+     */
+    public int dispatch(int core)
+    {
+        releaseDue();
+        Task t = m_ready.poll();
+        if (t != null)
+            return t.pid;
+        return m_bestEffort.dispatch(core);
+    }//dispatch
+
+    /**
+     * getQuantum
+     *
+     * @param pid a process that has just been dispatched
+     * @return its time slice (none for real-time processes) but no more
+     *         than the cycles until the next real-time release so the
+     *         released process can preempt it in time
+     */
+    public long getQuantum(int pid)
+    {
+        long quantum = isRealTime(pid) ? 0 : m_bestEffort.getQuantum(pid);
+        Task next = m_sleeping.peek();
+        if (next == null)
+            return quantum;
+        long untilRelease = Math.max(1, next.release - m_clock.getCycles());
+        return (quantum == 0) ? untilRelease : Math.min(quantum, untilRelease);
+    }//getQuantum
+
+    /**
+     * yield
+     *
+     * puts a real-time process back with the deadline it has.  A
+     * best-effort process goes back to its policy; it only counts as having
+     * used up its time slice if it did (and wasn't just stopped for a
+     * release).
+     */
+    public void yield(int pid, long ran, boolean expired)
+    {
+        Task t = m_tasks.get(pid);
+        if (t != null && !t.exited)
+        {
+            m_ready.add(t);
+            return;
+        }
+        long quantum = m_bestEffort.getQuantum(pid);
+        m_bestEffort.yield(pid, ran, expired && quantum > 0 && ran >= quantum);
+    }//yield
+
+    /**
+     * block
+     *
+     * leaves a real-time process out of the queues until it wakes up
+     */
+    public void block(int pid, long ran)
+    {
+        if (!isRealTime(pid))
+            m_bestEffort.block(pid, ran);
+    }//block
+
+    /**
+     * wakeup
+     *
+     * puts a real-time process back with the deadline it has
+     */
+    public void wakeup(int pid)
+    {
+        if (isRealTime(pid))
+            m_ready.add(m_tasks.get(pid));
+        else
+            m_bestEffort.wakeup(pid);
+    }//wakeup
+
+    /**
+     * exit
+     *
+     * counts the current job of a real-time process as done and gives its
+     * share of the time back
+     */
+    public void exit(int pid)
+    {
+        Task t = m_tasks.get(pid);
+        if (t == null || t.exited)
+        {
+            m_bestEffort.exit(pid);
+            return;
+        }
+        if (t.release <= m_clock.getCycles())
+            t.finishJob(m_clock.getCycles());
+        m_ready.remove(t);
+        m_sleeping.remove(t);
+        t.exited = true;
+        m_density = Math.max(0, m_density - density(t.period, t.relDeadline, t.budget));
+    }//exit
+
+    /**
+     * complete
+     *
+     * the running real-time process is done with its job.  It sleeps until
+     * its next job is released (at once if that time has already passed).
+     *
+     * @param pid the process id
+     * @return false if the process isn't a real-time process (the caller
+     *         should treat it as having yielded)
+     */
+    public boolean complete(int pid)
+    {
+        if (!isRealTime(pid))
+            return false;
+        Task t = m_tasks.get(pid);
+        t.finishJob(m_clock.getCycles());
+        t.release += t.period;
+        t.deadline = t.release + t.relDeadline;
+        if (t.release <= m_clock.getCycles())
+            m_ready.add(t);
+        else
+            m_sleeping.add(t);
+        return true;
+    }//complete
+
+    /**
+     * getNextWakeup
+     *
+     * @return when the next sleeping real-time process is released (-1 if
+     *         there is none)
+     */
+    public long getNextWakeup()
+    {
+        Task next = m_sleeping.peek();
+        if (next != null)
+            return next.release;
+        return m_bestEffort.getNextWakeup();
+    }//getNextWakeup
+
+    /**
+     * Moves every sleeping process whose next job has been released to the
+     * ready queue
+     */
+    private void releaseDue()
+    {
+        long now = m_clock.getCycles();
+        while (!m_sleeping.isEmpty() && m_sleeping.peek().release <= now)
+            m_ready.add(m_sleeping.poll());
+    }//releaseDue
+
+    /**
+     * getRejected
+     *
+     * @return the number of processes that were refused admission
+     */
+    public long getRejected()
+    {
+        return m_rejected;
+    }
+
+    /**
+     * getMisses
+     *
+     * @return the number of jobs of all the real-time processes that
+     *         missed their deadline
+     */
+    public long getMisses()
+    {
+        long misses = 0;
+        for (Task t : m_tasks.values())
+            misses += t.misses;
+        return misses;
+    }
+
+    /**
+     * printReport
+     *
+     * prints for each real-time process its parameters, how many jobs it
+     * did, how many of them were late and its lateness histogram (the
+     * buckets that aren't empty)
+     *
+     * @param out where to print the report
+     */
+    public void printReport(PrintStream out)
+    {
+        out.println("EDF: " + m_tasks.size() + " real-time processes admitted, "
+                    + m_rejected + " rejected, " + getMisses() + " deadline misses");
+        for (Map.Entry<Integer, Task> e : m_tasks.entrySet())
+        {
+            Task t = e.getValue();
+            out.println(String.format("    process %-6d period %10d deadline %10d budget %8d:"
+                                      + " %8d jobs %6d missed, max lateness %d",
+                                      t.pid, t.period, t.relDeadline, t.budget,
+                                      t.jobs, t.misses, t.maxLateness));
+            StringBuilder sb = new StringBuilder("        lateness:");
+            for (int k = 0; k < HISTOGRAM_BUCKETS; k++)
+            {
+                if (t.histogram[k] == 0)
+                    continue;
+                String range = (k == 0) ? "<=0" : ((k == 1) ? "1" : ((1L << (k - 1)) + "-" + ((1L << k) - 1)));
+                sb.append(" [" + range + "] " + t.histogram[k]);
+            }
+            out.println(sb);
+        }
+    }//printReport
+
+    //======================================================================
+    // Inner Classes
+    //----------------------------------------------------------------------
+
+    /**
+     * class Task
+     *
+     * what the scheduler knows about one real-time process
+     */
+    private static class Task
+    {
+        /** the process id */
+        private int pid;
+        /** its period, relative deadline and budget */
+        private long period;
+        private long relDeadline;
+        private long budget;
+        /** when its current job was released and when it is due */
+        private long release = 0;
+        private long deadline = 0;
+        /** true once the process has exited */
+        private boolean exited = false;
+        /** the number of jobs done and how many were late */
+        private long jobs = 0;
+        private long misses = 0;
+        /** the most cycles a job was late and the lateness histogram */
+        private long maxLateness = 0;
+        private long histogram[] = new long[HISTOGRAM_BUCKETS];
+
+        /**
+         * constructor
+         */
+        public Task(int pid, long period, long relDeadline, long budget)
+        {
+            this.pid = pid;
+            this.period = period;
+            this.relDeadline = relDeadline;
+            this.budget = budget;
+        }
+
+        /**
+         * records that the current job was done at the given time
+         */
+        public void finishJob(long now)
+        {
+            long lateness = now - deadline;
+            jobs++;
+            if (lateness <= 0)
+            {
+                histogram[0]++;
+                return;
+            }
+            misses++;
+            maxLateness = Math.max(maxLateness, lateness);
+            int k = 64 - Long.numberOfLeadingZeros(lateness);
+            histogram[Math.min(k, HISTOGRAM_BUCKETS - 1)]++;
+        }//finishJob
+    }//class Task
+};//class EDFScheduler
@@ -0,0 +1,429 @@
+package sos;
+
+/**
+ * This class holds a pre-decoded copy of a process' code so that the CPU does
+ * not have to fetch and decode the same instructions from RAM over and over.
+ * It is built once when a program is loaded and is indexed by the offset of
+ * an instruction from the process' BASE register.
+ *
+ * Any write into the code range (e.g., a SAVE instruction) must be reported
+ * via {@link #write} so that the affected instructions are decoded again the
+ * next time they are executed.
+ *
+ * When fusion is enabled, common multi-instruction idioms are decoded into a
+ * single "superinstruction" stored at the offset of the first instruction of
+ * the sequence.  The instructions after it keep their own decoded form, so a
+ * branch into the middle of a fused sequence still works.
+ *
+ * @see CPU
+ * @see SOS
+ */
+public class InstructionCache
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /** marks an instruction whose opcode or register operands are invalid */
+    public static final int ILLEGAL   = -1;
+    /** marks an instruction that has not been decoded yet (or was overwritten) */
+    public static final int UNDECODED = -2;
+
+    //These constants define the fused superinstructions.  They are chosen so
+    //they can never collide with a real opcode.
+    public static final int FUSED_ADD_BNE       = 100;  // ADD rA rB rC; BNE rX rY label
+    public static final int FUSED_SET_PUSH      = 101;  // SET rX n; PUSH rX
+    public static final int FUSED_SET_PUSH_TRAP = 102;  // SET rX n; PUSH rX; TRAP
+
+    /** the most words a fused sequence can cover */
+    public static final int FUSE_SPAN = 3 * CPU.INSTRSIZE;
+
+    //======================================================================
+    //Static variables
+    //----------------------------------------------------------------------
+
+    /**
+     * specifies whether newly decoded instructions may be fused
+     **/
+    private static boolean s_fusion = true;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * a mirror of the raw code words as they appear in RAM
+     **/
+    int m_words[];
+
+    /**
+     * the decoded opcode of the instruction starting at each offset.  The CPU
+     * reads these arrays directly to avoid a method call per instruction.
+     **/
+    int m_ops[];
+
+    /**
+     * the three operands of the instruction starting at each offset
+     **/
+    int m_arg1[];
+    int m_arg2[];
+    int m_arg3[];
+
+    /**
+     * the number of words covered by this cache
+     **/
+    int m_length = 0;
+
+    /**
+     * how many times each offset has been reached by a taken branch.  Once a
+     * count reaches the BlockCompiler threshold the block is compiled.
+     **/
+    private int m_heat[];
+
+    /**
+     * the compiled block starting at each offset (if any) and the number of
+     * instructions it contains
+     **/
+    BlockCompiler.Block m_blocks[];
+    private int m_blockLen[];
+    
+    /**
+     * the number of cycles one pass through each compiled block costs (0 if
+     * it hasn't been worked out yet)
+     *
+     * @see Clock#blockCycles
+     **/
+    int m_blockCycles[];
+
+    /**
+     * the number of compiled blocks in m_blocks
+     **/
+    private int m_numBlocks = 0;
+
+    /**
+     * the program this code was loaded from (used for reports; may be null)
+     **/
+    private Program m_program = null;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * constructor
+     *
+     * @param code the program as it was loaded into RAM (see Program#export)
+     */
+    public InstructionCache(int[] code)
+    {
+        this(code, code.length);
+    }//ctor
+
+    /**
+     * constructor
+     *
+     * @param code  the program as it was loaded into RAM (see Program#export)
+     * @param limit the number of words the process may access.  Code beyond
+     *              this is not cached (and will fault when it is reached).
+     */
+    public InstructionCache(int[] code, int limit)
+    {
+        m_length = Math.max(0, Math.min(code.length, limit));
+        m_words = java.util.Arrays.copyOf(code, m_length);
+        m_ops = new int[m_length];
+        m_arg1 = new int[m_length];
+        m_arg2 = new int[m_length];
+        m_arg3 = new int[m_length];
+        m_heat = new int[m_length];
+        m_blocks = new BlockCompiler.Block[m_length];
+        m_blockLen = new int[m_length];
+        m_blockCycles = new int[m_length];
+
+        for(int i = 0; i < m_length; i++)
+        {
+            if (i + 1 < m_length) m_arg1[i] = m_words[i + 1];
+            if (i + 2 < m_length) m_arg2[i] = m_words[i + 2];
+            if (i + 3 < m_length) m_arg3[i] = m_words[i + 3];
+        }
+        for(int i = 0; i < m_length; i++)
+            decode(i);
+    }//ctor
+
+    /**
+     * setFusion
+     *
+     * turns superinstruction fusion on or off for caches built (or
+     * instructions re-decoded) from now on.  Turning it off is useful for
+     * comparing performance and for debugging.
+     *
+     * @param enabled true to fuse common instruction sequences
+     */
+    public static void setFusion(boolean enabled)
+    {
+        s_fusion = enabled;
+    }//setFusion
+
+    /**
+     * isFusion
+     *
+     * @return true if superinstruction fusion is enabled
+     */
+    public static boolean isFusion()
+    {
+        return s_fusion;
+    }//isFusion
+
+    /**
+     * setProgram
+     *
+     * records which program this code was loaded from so that reports (e.g.,
+     * from a Profiler) can refer to source lines and labels
+     */
+    public void setProgram(Program prog)
+    {
+        m_program = prog;
+    }//setProgram
+
+    /**
+     * getProgram
+     *
+     * @return the program this code was loaded from (may be null)
+     */
+    public Program getProgram()
+    {
+        return m_program;
+    }//getProgram
+
+    /**
+     * getLength
+     *
+     * @return the number of words covered by this cache
+     */
+    public int getLength()
+    {
+        return m_length;
+    }
+
+    /**
+     * contains
+     *
+     * @param offset an offset from the process' BASE register
+     * @return true if a complete instruction starting at the offset is cached
+     */
+    public boolean contains(int offset)
+    {
+        return offset >= 0 && offset <= m_length - CPU.INSTRSIZE;
+    }
+
+    /**
+     * getInstr
+     *
+     * @param offset the offset of an instruction from BASE
+     * @return the raw instruction starting at the given offset
+     */
+    public int[] getInstr(int offset)
+    {
+        int instr[] = new int[CPU.INSTRSIZE];
+        for(int i = 0; i < CPU.INSTRSIZE; i++)
+            instr[i] = m_words[offset + i];
+
+        return instr;
+    }//getInstr
+
+    /**
+     * decode
+     *
+     * decodes the instruction that starts at the given offset (fusing it with
+     * the instructions that follow it if possible).  Instructions that would
+     * run past the end of the cache are left undecoded so that the CPU falls
+     * back to fetching them from RAM.
+     *
+     * @param offset the offset of the instruction from BASE
+     * @return the decoded opcode
+     */
+    public int decode(int offset)
+    {
+        if (!contains(offset))
+        {
+            if (offset >= 0 && offset < m_length)
+                m_ops[offset] = UNDECODED;
+            return UNDECODED;
+        }
+
+        int op = decodeSingle(offset);
+        if (s_fusion)
+            op = fuse(offset, op);
+        m_ops[offset] = op;
+        return op;
+    }//decode
+
+    /**
+     * decodeSingle
+     *
+     * @param offset the offset of the instruction from BASE
+     * @return the decoded opcode of the single instruction at the offset
+     *         (never a fused opcode), or UNDECODED if it isn't cached
+     */
+    public int decodeSingle(int offset)
+    {
+        if (!contains(offset))
+            return UNDECODED;
+
+        return decode(m_words[offset], m_arg1[offset], m_arg2[offset], m_arg3[offset]);
+    }//decodeSingle
+
+    /**
+     * fuse
+     *
+     * checks whether the instruction at the given offset starts one of the
+     * sequences that have a fused form.  Every instruction in the sequence
+     * must be legal.  The CPU is responsible for raising any fault (e.g., a
+     * stack overflow in a PUSH) at the same point the unfused code would.
+     *
+     * @param offset the offset of the first instruction
+     * @param op     the decoded opcode of the first instruction
+     * @return the fused opcode or op if no fusion applies
+     */
+    private int fuse(int offset, int op)
+    {
+        int next = offset + CPU.INSTRSIZE;
+        int second = decodeSingle(next);
+
+        if (op == CPU.ADD && second == CPU.BNE)
+            return FUSED_ADD_BNE;
+
+        if (op == CPU.SET && second == CPU.PUSH && m_arg1[offset] == m_arg1[next])
+        {
+            if (decodeSingle(next + CPU.INSTRSIZE) == CPU.TRAP)
+                return FUSED_SET_PUSH_TRAP;
+            return FUSED_SET_PUSH;
+        }
+
+        return op;
+    }//fuse
+
+    /**
+     * write
+     *
+     * records that a word in the code range has been overwritten and
+     * invalidates every (possibly fused) instruction that overlaps it.
+     *
+     * @param offset the offset of the overwritten word from BASE
+     * @param val    the new value of the word
+     */
+    public void write(int offset, int val)
+    {
+        if (offset < 0 || offset >= m_length)
+            return;
+
+        m_words[offset] = val;
+        if (offset >= 1) m_arg1[offset - 1] = val;
+        if (offset >= 2) m_arg2[offset - 2] = val;
+        if (offset >= 3) m_arg3[offset - 3] = val;
+        for(int i = Math.max(0, offset - FUSE_SPAN + 1); i <= offset; i++)
+            m_ops[i] = UNDECODED;
+
+        //Throw away any compiled block that contains the word
+        if (m_numBlocks > 0)
+        {
+            int first = Math.max(0, offset - BlockCompiler.MAX_BLOCK * CPU.INSTRSIZE);
+            for(int i = first; i <= offset; i++)
+            {
+                if (m_blocks[i] != null && offset < i + m_blockLen[i] * CPU.INSTRSIZE)
+                {
+                    m_blocks[i] = null;
+                    m_blockCycles[i] = 0;
+                    m_heat[i] = 0;
+                    m_numBlocks--;
+                }
+            }
+        }
+    }//write
+
+    /**
+     * enter
+     *
+     * is called by the CPU each time a branch to the given offset is taken.
+     * It counts how hot the offset is and compiles the block that starts
+     * there once it is hot enough.
+     *
+     * @param offset the branch target (offset from BASE)
+     * @return the compiled block starting at the offset or null if there
+     *         isn't one (yet)
+     */
+    public BlockCompiler.Block enter(int offset)
+    {
+        if (!contains(offset))
+            return null;
+
+        BlockCompiler.Block blk = m_blocks[offset];
+        if (blk != null || !BlockCompiler.isEnabled())
+            return blk;
+
+        if (++m_heat[offset] == BlockCompiler.getThreshold())
+        {
+            blk = BlockCompiler.compile(this, offset);
+            if (blk != null)
+            {
+                m_blocks[offset] = blk;
+                m_blockLen[offset] = BlockCompiler.blockLength(this, offset);
+                m_numBlocks++;
+            }
+        }
+        return blk;
+    }//enter
+
+    /**
+     * getBlockLength
+     *
+     * @param offset the offset of a compiled block
+     * @return the number of instructions in one pass through the block
+     */
+    public int getBlockLength(int offset)
+    {
+        return m_blockLen[offset];
+    }//getBlockLength
+
+    /**
+     * decode
+     *
+     * checks an instruction's opcode and register operands.  This is the one
+     * place where register indices are validated; the CPU trusts the result.
+     *
+     * @return the opcode or ILLEGAL if the instruction can't be executed
+     */
+    public static int decode(int opcode, int arg1, int arg2, int arg3)
+    {
+        switch(opcode)
+        {
+            case CPU.SET:
+            case CPU.PUSH:
+            case CPU.POP:
+                return isReg(arg1) ? opcode : ILLEGAL;
+            case CPU.ADD:
+            case CPU.SUB:
+            case CPU.MUL:
+            case CPU.DIV:
+                return (isReg(arg1) && isReg(arg2) && isReg(arg3)) ? opcode : ILLEGAL;
+            case CPU.COPY:
+            case CPU.BNE:
+            case CPU.BLT:
+            case CPU.LOAD:
+            case CPU.SAVE:
+                return (isReg(arg1) && isReg(arg2)) ? opcode : ILLEGAL;
+            case CPU.BRANCH:
+            case CPU.TRAP:
+                return opcode;
+            default:
+                return ILLEGAL;
+        }//switch
+    }//decode
+
+    /**
+     * @return true if the given index names a general purpose register
+     */
+    private static boolean isReg(int index)
+    {
+        return index >= 0 && index < CPU.NUMGENREG;
+    }
+};//class InstructionCache
@@ -0,0 +1,209 @@
+package sos;
+
+import java.util.ArrayList;
+
+/**
+ * This class is a hash table from int keys (process and device ids) to
+ * objects.  Unlike a HashMap it doesn't box its keys or allocate an entry
+ * for each one, so looking up, adding and removing a key take constant time
+ * and create no garbage however many keys there are.
+ *
+ * Keys live in an open addressing table with linear probing.  Removing a key
+ * moves the keys after it back into the hole rather than leaving a marker,
+ * so lookups never slow down as keys come and go.  The table doubles when it
+ * is more than half full.
+ *
+ * Like the rest of the OS's state it isn't thread safe; the OS only uses it
+ * while holding its own lock.
+ *
+ * @see SOS
+ */
+public class IntMap<V>
+{
+    /** the number of slots a new map starts with (a power of two) */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * the key and value in each slot (a null value marks an empty slot)
+     **/
+    private int m_keys[];
+    private Object m_values[];
+
+    /**
+     * the number of keys in the map
+     **/
+    private int m_size = 0;
+
+    /**
+     * constructor
+     */
+    public IntMap()
+    {
+        m_keys = new int[INITIAL_CAPACITY];
+        m_values = new Object[INITIAL_CAPACITY];
+    }//ctor
+
+    /**
+     * get
+     *
+     * @param key a key
+     * @return the value the key maps to (null if it isn't in the map)
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key)
+    {
+        int mask = m_keys.length - 1;
+        for (int i = hash(key) & mask; m_values[i] != null; i = (i + 1) & mask)
+            if (m_keys[i] == key)
+                return (V)m_values[i];
+        return null;
+    }//get
+
+    /**
+     * containsKey
+     *
+     * @param key a key
+     * @return true if the key is in the map
+     */
+    public boolean containsKey(int key)
+    {
+        return get(key) != null;
+    }
+
+    /**
+     * put
+     *
+     * maps a key to a value, replacing the value it had
+     *
+     * @param key   the key
+     * @param value the value (not null)
+     */
+    public void put(int key, V value)
+    {
+        if (value == null)
+            throw new IllegalArgumentException("an IntMap can't hold null");
+        if (2 * (m_size + 1) > m_keys.length)
+            resize(2 * m_keys.length);
+
+        int mask = m_keys.length - 1;
+        int i = hash(key) & mask;
+        while (m_values[i] != null && m_keys[i] != key)
+            i = (i + 1) & mask;
+        if (m_values[i] == null)
+            m_size++;
+        m_keys[i] = key;
+        m_values[i] = value;
+    }//put
+
+    /**
+     * remove
+     *
+     * takes a key out of the map
+     *
+     * @param key the key
+     * @return the value it mapped to (null if it wasn't in the map)
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key)
+    {
+        int mask = m_keys.length - 1;
+        int i = hash(key) & mask;
+        while (m_values[i] != null && m_keys[i] != key)
+            i = (i + 1) & mask;
+        V value = (V)m_values[i];
+        if (value == null)
+            return null;
+
+        //Move back any key after the hole that would no longer be found
+        //by probing from its home slot
+        int hole = i;
+        for (i = (i + 1) & mask; m_values[i] != null; i = (i + 1) & mask)
+        {
+            int home = hash(m_keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask))
+            {
+                m_keys[hole] = m_keys[i];
+                m_values[hole] = m_values[i];
+                hole = i;
+            }
+        }
+        m_values[hole] = null;
+        m_size--;
+        return value;
+    }//remove
+
+    /**
+     * size
+     *
+     * @return the number of keys in the map
+     */
+    public int size()
+    {
+        return m_size;
+    }
+
+    /**
+     * clear
+     *
+     * takes every key out of the map
+     */
+    public void clear()
+    {
+        java.util.Arrays.fill(m_values, null);
+        m_size = 0;
+    }
+
+    /**
+     * keys
+     *
+     * @return the keys in the map in increasing order
+     */
+    public int[] keys()
+    {
+        int keys[] = new int[m_size];
+        int n = 0;
+        for (int i = 0; i < m_keys.length; i++)
+            if (m_values[i] != null)
+                keys[n++] = m_keys[i];
+        java.util.Arrays.sort(keys);
+        return keys;
+    }//keys
+
+    /**
+     * values
+     *
+     * @return the values in the map in the order of their keys
+     */
+    public ArrayList<V> values()
+    {
+        ArrayList<V> values = new ArrayList<V>(m_size);
+        for (int key : keys())
+            values.add(get(key));
+        return values;
+    }//values
+
+    /**
+     * Mixes the high bits of a key into the low ones, which pick its slot.
+     */
+    private static int hash(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Moves every key into a table with the given number of slots.
+     */
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity)
+    {
+        int oldKeys[] = m_keys;
+        Object oldValues[] = m_values;
+        m_keys = new int[capacity];
+        m_values = new Object[capacity];
+        m_size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldValues[i] != null)
+                put(oldKeys[i], (V)oldValues[i]);
+    }//resize
+};//class IntMap
@@ -0,0 +1,292 @@
+package sos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * This class is a multilevel feedback queue scheduling policy.  Ready
+ * processes wait in one of several round robin queues and a core always
+ * runs a process from the highest priority queue that isn't empty.  The
+ * policy learns which processes are CPU bound from how they use their time:
+ * <ul>
+ * <li>A new process starts at the top (level 0).</li>
+ * <li>Each level has an allotment of instructions, twice as many as the
+ *     level above it.  A process that uses up its allotment (whether in one
+ *     go or over several turns) drops a level.</li>
+ * <li>A process that gives up its core before then, e.g. to wait for a
+ *     device, keeps its level.</li>
+ * </ul>
+ * Processes that spend their time in I/O system calls (READ and WRITE) thus
+ * stay near the top and get a core as soon as they are ready while long
+ * computations sink to the bottom, where they share whatever time is left.
+ * So that they don't starve every process is moved back to the top each time
+ * a given number of instructions have been run.
+ *
+ * @see Scheduler
+ */
+public class MLFQScheduler implements Scheduler
+{
+    /**
+     * the ready queue of each level (level 0 is the highest priority)
+     **/
+    private ArrayList<ArrayDeque<Process>> m_levels = new ArrayList<ArrayDeque<Process>>();
+
+    /**
+     * every process the scheduler knows about (ready, running or blocked)
+     **/
+    private IntMap<Process> m_procs = new IntMap<Process>();
+
+    /**
+     * the allotment of the top level in instructions
+     **/
+    private long m_quantum;
+
+    /**
+     * how many instructions are run between moving every process back to
+     * the top (0 to never do so) and how many have been run since the last
+     * time
+     **/
+    private long m_boostInterval;
+    private long m_sinceBoost = 0;
+
+    /**
+     * constructor
+     *
+     * @param levels        the number of priority levels
+     * @param quantum       the allotment of the top level in instructions
+     *                      (each level below gets twice as many)
+     * @param boostInterval how many instructions are run between moving
+     *                      every process back to the top (0 to never do so)
+     */
+    public MLFQScheduler(int levels, long quantum, long boostInterval)
+    {
+        if (levels < 1 || quantum < 1)
+            throw new IllegalArgumentException("an MLFQ needs at least one level and a quantum");
+        for (int i = 0; i < levels; i++)
+            m_levels.add(new ArrayDeque<Process>());
+        m_quantum = quantum;
+        m_boostInterval = Math.max(0, boostInterval);
+    }//ctor
+
+    /**
+     * getName
+     *
+     * @return a short description of the policy
+     */
+    public String getName()
+    {
+        return "MLFQ, " + m_levels.size() + " levels, quantum " + m_quantum
+            + ", boost " + m_boostInterval;
+    }
+
+    /**
+     * getLevel
+     *
+     * @param pid a process id
+     * @return the level the process is at (-1 if it isn't known)
+     */
+    public int getLevel(int pid)
+    {
+        Process p = m_procs.get(pid);
+        return (p == null) ? -1 : p.level;
+    }
+
+    /**
+     * add
+     *
+     * puts a new process at the back of the top level
+     */
+    public void add(int pid)
+    {
+        Process p = new Process(pid);
+        m_procs.put(pid, p);
+        enqueue(p);
+    }//add
+
+    /**
+     * dispatch
+     *
+     * @param core the core that will run the process
+     * @return the process at the front of the highest level that has one
+     *         (-1 if no process is ready)
+     */
+    public int dispatch(int core)
+    {
+        for (ArrayDeque<Process> queue : m_levels)
+        {
+            Process p = queue.poll();
+            if (p != null)
+            {
+                p.queued = false;
+                return p.pid;
+            }
+        }
+        return -1;
+    }//dispatch
+
+    /**
+     * getQuantum
+     *
+     * @param pid a process that has just been dispatched
+     * @return what is left of its allotment at its level
+     */
+    public long getQuantum(int pid)
+    {
+        Process p = m_procs.get(pid);
+        if (p == null)
+            return m_quantum;
+        return Math.max(1, allotment(p.level) - p.used);
+    }//getQuantum
+
+    /**
+     * yield
+     *
+     * charges the process for the time it ran and puts it back in a queue,
+     * a level lower if it has used up its allotment
+     */
+    public void yield(int pid, long ran, boolean expired)
+    {
+        Process p = m_procs.get(pid);
+        if (p == null)
+            return;
+        charge(p, ran, expired);
+        enqueue(p);
+    }//yield
+
+    /**
+     * block
+     *
+     * charges the process for the time it ran.  It isn't put in a queue
+     * until it wakes up.
+     */
+    public void block(int pid, long ran)
+    {
+        Process p = m_procs.get(pid);
+        if (p != null)
+            charge(p, ran, false);
+    }//block
+
+    /**
+     * wakeup
+     *
+     * puts the process at the back of its level
+     */
+    public void wakeup(int pid)
+    {
+        Process p = m_procs.get(pid);
+        if (p != null)
+            enqueue(p);
+    }//wakeup
+
+    /**
+     * exit
+     *
+     * forgets the process (and takes it out of its queue if it is in one)
+     */
+    public void exit(int pid)
+    {
+        Process p = m_procs.remove(pid);
+        if (p != null && p.queued)
+            m_levels.get(p.level).remove(p);
+    }//exit
+
+    /**
+     * getNextWakeup
+     *
+     * @return -1 since processes never wait for time to pass
+     */
+    public long getNextWakeup()
+    {
+        return -1;
+    }
+
+    /**
+     * Puts a process at the back of the queue of its level.
+     */
+    private void enqueue(Process p)
+    {
+        m_levels.get(p.level).add(p);
+        p.queued = true;
+    }
+
+    /**
+     * @return the allotment of the given level
+     */
+    private long allotment(int level)
+    {
+        return m_quantum << level;
+    }
+
+    /**
+     * Adds the time a process ran to what it has used at its level and
+     * moves it down a level if its allotment is gone.  Moves every process
+     * back to the top when it is time to.  The process must not be in a
+     * queue.
+     */
+    private void charge(Process p, long ran, boolean expired)
+    {
+        p.used += ran;
+        if ((expired || p.used >= allotment(p.level)) && p.level < m_levels.size() - 1)
+        {
+            p.level++;
+            p.used = 0;
+        }
+        else if (p.used >= allotment(p.level))
+            p.used = 0;
+
+        m_sinceBoost += ran;
+        if (m_boostInterval > 0 && m_sinceBoost >= m_boostInterval)
+            boost();
+    }//charge
+
+    /**
+     * Moves every process back to the top level.  The ones that are ready
+     * keep their order (higher levels first).
+     */
+    private void boost()
+    {
+        ArrayDeque<Process> top = m_levels.get(0);
+        for (int level = 1; level < m_levels.size(); level++)
+        {
+            top.addAll(m_levels.get(level));
+            m_levels.get(level).clear();
+        }
+        for (Process p : m_procs.values())
+        {
+            p.level = 0;
+            p.used = 0;
+        }
+        m_sinceBoost = 0;
+    }//boost
+
+    //======================================================================
+    // Inner Classes
+    //----------------------------------------------------------------------
+
+    /**
+     * class Process
+     *
+     * what the scheduler knows about one process
+     */
+    private static class Process
+    {
+        /** the process id */
+        private int pid;
+        /** the level the process is at */
+        private int level = 0;
+        /** the instructions it has run at that level */
+        private long used = 0;
+        /** true if it is in the queue of its level */
+        private boolean queued = false;
+
+        /**
+         * constructor
+         *
+         * @param pid the process id
+         */
+        public Process(int pid)
+        {
+            this.pid = pid;
+        }
+    }//class Process
+};//class MLFQScheduler
@@ -0,0 +1,137 @@
+package sos;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * This class simulates a RAM whose words are kept in direct buffers outside
+ * the JVM heap.  A large simulated memory then doesn't make the heap (and
+ * garbage collection pauses) any bigger.  The memory is split into chunks
+ * since a single buffer can hold at most 2GB.
+ *
+ * Sizes are worked out with longs, so any RAM the CPU can address (2^31
+ * words, limited by its 32-bit registers) can be built.  The JVM only hands
+ * out as much direct memory as -XX:MaxDirectMemorySize allows (by default
+ * the same as the maximum heap size).
+ *
+ * @see RAM#create
+ */
+public class OffHeapRAM extends RAM
+{
+    //constants
+    /**
+     * Each chunk holds this many words (as a power of two)
+     **/
+    private static final int CHUNK_SHIFT = 28;
+    private static final int CHUNK_MASK  = (1 << CHUNK_SHIFT) - 1;
+
+    //member variables
+    /**
+     * The chunks of simulated RAM
+     **/
+    private IntBuffer m_chunks[];
+
+    /**
+     * constructor
+     *
+     * @param size number of integers ("words") in ram
+     * @param latency the number of nanoseconds each access takes in simulated
+     *                time
+     */
+    public OffHeapRAM(int size, int latency)
+    {
+        super(size, latency, false);
+
+        long words = size;
+        int numChunks = (int)((words + CHUNK_MASK) >>> CHUNK_SHIFT);
+        m_chunks = new IntBuffer[numChunks];
+        for(int i = 0; i < numChunks; i++)
+        {
+            long chunkWords = Math.min(1L << CHUNK_SHIFT, words - ((long)i << CHUNK_SHIFT));
+            m_chunks[i] = ByteBuffer.allocateDirect((int)(chunkWords * 4))
+                                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+    }//ctor
+
+    /**
+     * load
+     *
+     * @param addr  the location to retrieve from
+     * @return      the value at the given location
+     */
+    @Override
+    protected int load(int addr)
+    {
+        return m_chunks[addr >>> CHUNK_SHIFT].get(addr & CHUNK_MASK);
+    }//load
+
+    /**
+     * store
+     *
+     * @param addr  the address to write to
+     * @param val   the value to write
+     */
+    @Override
+    protected void store(int addr, int val)
+    {
+        m_chunks[addr >>> CHUNK_SHIFT].put(addr & CHUNK_MASK, val);
+    }//store
+
+    /**
+     * loadBlock
+     *
+     * @param addr  the first location to retrieve from
+     * @param dst   where to put the words
+     * @param off   the index in dst of the first word
+     * @param len   the number of words
+     */
+    @Override
+    protected void loadBlock(int addr, int[] dst, int off, int len)
+    {
+        while (len > 0)
+        {
+            IntBuffer chunk = part(addr, len);
+            int n = chunk.remaining();
+            chunk.get(dst, off, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }
+    }//loadBlock
+
+    /**
+     * storeBlock
+     *
+     * @param addr  the first address to write to
+     * @param src   the words to write
+     * @param off   the index in src of the first word
+     * @param len   the number of words
+     */
+    @Override
+    protected void storeBlock(int addr, int[] src, int off, int len)
+    {
+        while (len > 0)
+        {
+            IntBuffer chunk = part(addr, len);
+            int n = chunk.remaining();
+            chunk.put(src, off, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }
+    }//storeBlock
+
+    /**
+     * @return a view of as much of a block as lies in one chunk.  It has its
+     *         own position so cores can move blocks at the same time.
+     */
+    private IntBuffer part(int addr, int len)
+    {
+        IntBuffer chunk = m_chunks[addr >>> CHUNK_SHIFT].duplicate();
+        int start = addr & CHUNK_MASK;
+        chunk.position(start);
+        chunk.limit((int)Math.min((long)start + len, chunk.capacity()));
+        return chunk;
+    }
+};//class OffHeapRAM
@@ -0,0 +1,328 @@
+package sos;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class records where a CPU spends its time.  It keeps a counter for
+ * each opcode and a hit histogram for each instruction of each program that
+ * runs.  Using the source map kept by {@link Program}, the histogram can be
+ * reported per label and per source line, or written out as collapsed stacks
+ * for a flame graph.
+ *
+ * The profiler can count every instruction (exact mode, a sample interval of
+ * 1) or only look at roughly every Nth instruction (sampled mode).  Sample
+ * intervals are jittered so that loops whose length divides the interval
+ * aren't always sampled at the same instruction.
+ *
+ * While a profiler is attached the CPU executes instructions one at a time
+ * (no fusion and no compiled blocks) so that every instruction can be seen.
+ * With no profiler attached the CPU pays nothing for this class.
+ *
+ * @see CPU#setProfiler
+ * @see Program
+ */
+public class Profiler
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /** the name of each opcode (indexed by opcode) */
+    private static final String OPNAMES[] = {
+        "SET", "ADD", "SUB", "MUL", "DIV", "COPY", "BRANCH", "BNE", "BLT",
+        "POP", "PUSH", "LOAD", "SAVE", "??", "??", "TRAP"
+    };
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the (average) number of instructions between samples
+     **/
+    private int m_interval;
+
+    /**
+     * the number of samples that landed on each opcode.  The last slot is
+     * for illegal instructions.
+     **/
+    private long m_opCounts[] = new long[OPNAMES.length + 1];
+
+    /**
+     * the per-offset hit histogram of each instruction cache that has been
+     * sampled, in the order they were first seen
+     **/
+    private LinkedHashMap<InstructionCache, long[]> m_hits =
+        new LinkedHashMap<InstructionCache, long[]>();
+
+    /**
+     * the most recently used entry of m_hits
+     **/
+    private InstructionCache m_lastCache = null;
+    private long m_lastHits[] = null;
+
+    /**
+     * samples of code that wasn't in an instruction cache
+     **/
+    private long m_uncached = 0;
+
+    /**
+     * the total number of samples taken
+     **/
+    private long m_samples = 0;
+
+    /**
+     * the state of the random number generator used for jitter
+     **/
+    private int m_seed = 0x2545F491;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * constructor
+     *
+     * @param interval  how often to sample.  1 counts every instruction.
+     */
+    public Profiler(int interval)
+    {
+        m_interval = Math.max(1, interval);
+    }//ctor
+
+    /**
+     * getInterval
+     *
+     * @return the average number of instructions between samples
+     */
+    public int getInterval()
+    {
+        return m_interval;
+    }
+
+    /**
+     * isExact
+     *
+     * @return true if every instruction is counted
+     */
+    public boolean isExact()
+    {
+        return m_interval == 1;
+    }
+
+    /**
+     * getSamples
+     *
+     * @return the total number of samples taken
+     */
+    public long getSamples()
+    {
+        return m_samples;
+    }
+
+    /**
+     * getOpCount
+     *
+     * @param op an opcode
+     * @return the number of samples that landed on the given opcode
+     */
+    public long getOpCount(int op)
+    {
+        return (op >= 0 && op < OPNAMES.length) ? m_opCounts[op] : m_opCounts[OPNAMES.length];
+    }
+
+    /**
+     * nextInterval
+     *
+     * @return the number of instructions until the next sample should be
+     *         taken (on average the sample interval)
+     */
+    public int nextInterval()
+    {
+        if (m_interval == 1)
+            return 1;
+
+        //xorshift
+        m_seed ^= m_seed << 13;
+        m_seed ^= m_seed >>> 17;
+        m_seed ^= m_seed << 5;
+        return m_interval / 2 + 1 + ((m_seed >>> 1) % m_interval);
+    }//nextInterval
+
+    /**
+     * sample
+     *
+     * records that the CPU is about to execute an instruction
+     *
+     * @param ic     the instruction cache of the running process (may be null)
+     * @param offset the offset of the instruction from BASE
+     * @param op     the (single, decoded) opcode of the instruction
+     */
+    public void sample(InstructionCache ic, int offset, int op)
+    {
+        m_samples++;
+        m_opCounts[(op >= 0 && op < OPNAMES.length) ? op : OPNAMES.length]++;
+
+        if (ic == null || offset < 0 || offset >= ic.getLength())
+        {
+            m_uncached++;
+            return;
+        }
+
+        if (ic != m_lastCache)
+        {
+            long hits[] = m_hits.get(ic);
+            if (hits == null)
+            {
+                hits = new long[ic.getLength()];
+                m_hits.put(ic, hits);
+            }
+            m_lastCache = ic;
+            m_lastHits = hits;
+        }
+        m_lastHits[offset]++;
+    }//sample
+
+    /**
+     * reset
+     *
+     * throws away everything that has been recorded so far
+     */
+    public void reset()
+    {
+        java.util.Arrays.fill(m_opCounts, 0);
+        m_hits.clear();
+        m_lastCache = null;
+        m_lastHits = null;
+        m_uncached = 0;
+        m_samples = 0;
+    }//reset
+
+    /**
+     * printReport
+     *
+     * prints the samples per opcode, per label and per source line.  In
+     * sampled mode the estimated instruction counts (samples times the
+     * interval) are shown next to the samples.
+     *
+     * @param out where to print the report
+     */
+    public void printReport(PrintStream out)
+    {
+        out.println("PROFILE: " + m_samples + (isExact() ? " instructions" :
+                    " samples (1 per ~" + m_interval + " instructions)"));
+
+        out.println("  by opcode:");
+        for(int op = 0; op <= OPNAMES.length; op++)
+        {
+            if (m_opCounts[op] > 0)
+                out.println(row(opName(op), m_opCounts[op]));
+        }
+
+        for(Map.Entry<InstructionCache, long[]> e : m_hits.entrySet())
+        {
+            Program prog = e.getKey().getProgram();
+            long hits[] = e.getValue();
+            out.println("  " + programName(prog) + " by label:");
+            LinkedHashMap<String, Long> labels = new LinkedHashMap<String, Long>();
+            for(int off = 0; off < hits.length; off++)
+            {
+                if (hits[off] == 0) continue;
+                String label = (prog == null) ? "?" : prog.getSourceLabel(off);
+                Long total = labels.get(label);
+                labels.put(label, (total == null ? 0 : total) + hits[off]);
+            }
+            for(Map.Entry<String, Long> l : labels.entrySet())
+                out.println(row(":" + l.getKey(), l.getValue()));
+
+            out.println("  " + programName(prog) + " by line:");
+            for(int off = 0; off < hits.length; off++)
+            {
+                if (hits[off] == 0) continue;
+                String where = (prog == null) ? ("@" + off)
+                               : ("line " + prog.getSourceLine(off) + " @" + off);
+                out.println(row(where, hits[off]));
+            }
+        }
+
+        if (m_uncached > 0)
+            out.println(row("(uncached code)", m_uncached));
+    }//printReport
+
+    /**
+     * writeCollapsed
+     *
+     * writes the samples in the "collapsed stack" format understood by flame
+     * graph tools: one line per source line of the form
+     * <code>program;label;line N count</code>.
+     *
+     * @param out where to write the stacks
+     */
+    public void writeCollapsed(PrintStream out)
+    {
+        for(Map.Entry<InstructionCache, long[]> e : m_hits.entrySet())
+        {
+            Program prog = e.getKey().getProgram();
+            long hits[] = e.getValue();
+
+            //Several offsets can share a source line (e.g., the exit code
+            //appended to every program) so merge them first
+            LinkedHashMap<String, Long> stacks = new LinkedHashMap<String, Long>();
+            for(int off = 0; off < hits.length; off++)
+            {
+                if (hits[off] == 0) continue;
+                String stack = programName(prog) + ";"
+                    + ((prog == null) ? "?" : prog.getSourceLabel(off)) + ";"
+                    + ((prog == null) ? ("@" + off) : ("line " + prog.getSourceLine(off)));
+                Long total = stacks.get(stack);
+                stacks.put(stack, (total == null ? 0 : total) + hits[off]);
+            }
+            for(Map.Entry<String, Long> s : stacks.entrySet())
+                out.println(s.getKey() + " " + s.getValue());
+        }
+        if (m_uncached > 0)
+            out.println("(uncached) " + m_uncached);
+    }//writeCollapsed
+
+    /**
+     * opName
+     *
+     * @param op an opcode
+     * @return the name of the opcode (ILLEGAL if there's no such opcode)
+     */
+    public static String opName(int op)
+    {
+        return (op >= 0 && op < OPNAMES.length) ? OPNAMES[op] : "ILLEGAL";
+    }
+
+    /**
+     * @return a name for the given program suitable for a report
+     */
+    private static String programName(Program prog)
+    {
+        if (prog == null || prog.getFileName() == null)
+            return "(unknown)";
+        return prog.getFileName().replace(';', '_').replace(' ', '_');
+    }
+
+    /**
+     * @return one line of the report
+     */
+    private String row(String name, long samples)
+    {
+        String line = "    " + name;
+        while (line.length() < 28)
+            line += " ";
+        line += samples;
+        if (!isExact())
+        {
+            while (line.length() < 42)
+                line += " ";
+            line += "~" + (samples * m_interval);
+        }
+        double pct = (m_samples == 0) ? 0 : (100.0 * samples / m_samples);
+        return line + String.format("  (%.1f%%)", pct);
+    }
+};//class Profiler
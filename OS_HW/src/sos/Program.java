@@ -47,6 +47,23 @@ public class Program
      **/
     private int m_lineNum = 0;
 
+    /**
+     * the source map: the line number each instruction was parsed from and
+     * the name of the label it follows (indexed by instruction, not word)
+     **/
+    private ArrayList<Integer> m_srcLines = null;
+    private ArrayList<String> m_srcLabels = null;
+
+    /**
+     * the most recently parsed label
+     **/
+    private String m_currLabel = "(start)";
+
+    /**
+     * the name of the file the program was loaded from
+     **/
+    private String m_fileName = null;
+
     /**
      * identifies which line of a file is currently being parsed (handy for
      * syntax error messages).
@@ -72,6 +89,8 @@ public class Program
         m_prog = new ArrayList<Integer>();
         m_labels = new ArrayList<Label>();
         m_orphans = new ArrayList<Label>();
+        m_srcLines = new ArrayList<Integer>();
+        m_srcLabels = new ArrayList<String>();
     }
 
     /**
@@ -103,6 +122,47 @@ public class Program
     {
         return m_defaultAllocSize;
     }//getDefaultAllocSize
+
+    /**
+     * getFileName
+     *
+     * @return the name of the file the program was loaded from (or null)
+     */
+    public String getFileName()
+    {
+        return m_fileName;
+    }//getFileName
+
+    /**
+     * getSourceLine
+     *
+     * @param addr an address relative to the start of the program
+     * @return the line number of the instruction containing the address, or
+     *         0 if it isn't part of the source (e.g., the exit code that is
+     *         added to every program)
+     */
+    public int getSourceLine(int addr)
+    {
+        int i = addr / CPU.INSTRSIZE;
+        if (addr < 0 || i >= m_srcLines.size())
+            return 0;
+        return m_srcLines.get(i);
+    }//getSourceLine
+
+    /**
+     * getSourceLabel
+     *
+     * @param addr an address relative to the start of the program
+     * @return the name of the label that encloses the instruction containing
+     *         the address.  Code before the first label is in "(start)".
+     */
+    public String getSourceLabel(int addr)
+    {
+        int i = addr / CPU.INSTRSIZE;
+        if (addr < 0 || i >= m_srcLabels.size())
+            return "(unknown)";
+        return m_srcLabels.get(i);
+    }//getSourceLabel
     
     /**
      * skipWhite
@@ -195,6 +255,7 @@ public class Program
         l.name = getToken(line, i);
         l.addr = m_prog.size();
         m_labels.add(l);
+        m_currLabel = l.name;
 
         if (m_verbose) 
             System.out.print("parsed label '" + l.name + "' at address " + l.addr);
@@ -374,8 +435,10 @@ public class Program
         
         if (m_verbose) System.out.print("" + instr + "=" + intInstr);
 
-        //Add the code to the program
+        //Add the code to the program and remember where it came from
         m_prog.add(intInstr);
+        m_srcLines.add(m_lineNum);
+        m_srcLabels.add(m_currLabel);
 
         //Read the arguments of the instruction.  Fill in zero values so that
         //all instructions are exactly CPU.INSTRSIZE ints
@@ -492,6 +555,7 @@ public class Program
     {
         int retVal = 0;         // return value (success is default)
         m_verbose = verbose;    // init verbose mode
+        m_fileName = fileName;
         
         //Step 1:  Open the file
         BufferedReader file=null;    // contains the pidgin asm
@@ -575,6 +639,11 @@ public class Program
         m_prog.add(new Integer(0));
         m_prog.add(new Integer(0));
         m_prog.add(new Integer(0));
+        for(int i = 0; i < 3; i++)
+        {
+            m_srcLines.add(0);
+            m_srcLabels.add("(exit)");
+        }
 
         return retVal;
     }//load
@@ -3,6 +3,15 @@ package sos;
 /**
  * This class simulates a random access memory for the CPU class.
  *
+ * The words themselves are kept in an ordinary int array on the JVM heap.
+ * Subclasses can keep them somewhere else by overriding {@link #load} and
+ * {@link #store}; nothing else needs to know where they are.  Blocks of
+ * words can be moved in one go; subclasses that can do that faster than a
+ * word at a time override {@link #loadBlock}, {@link #storeBlock} and
+ * {@link #fillBlock} as well.
+ *
+ * @see OffHeapRAM
+ * @see SparseRAM
  * @see CPU
  * @see SOS
  * @see Program
@@ -10,6 +19,21 @@ package sos;
  */
 public class RAM
 {
+    //constants
+    /**
+     * RAM is divided into pages of this many words (as a power of two) to
+     * keep track of which parts of it have been changed
+     **/
+    public static final int PAGE_SHIFT = 10;
+    public static final int PAGE_SIZE  = 1 << PAGE_SHIFT;
+    
+    /**
+     * These constants select where {@link #create} keeps the words
+     **/
+    public static final int HEAP     = 0;    /* an int array on the JVM heap */
+    public static final int OFF_HEAP = 1;    /* direct buffers outside the heap */
+    public static final int SPARSE   = 2;    /* pages created when first written */
+    
     //member variables
     /**
      * The size of the RAM (expressed as a number of integers)
@@ -17,27 +41,80 @@ public class RAM
     private int m_size = 0;
     
     /**
-     * This array contains the simulated RAM itself
+     * This array contains the simulated RAM itself (null when a subclass
+     * keeps it elsewhere)
      **/
     private int m_mem[] = null;
     
     /**
-     * This describes how long it takes the simulated RAM to retrieve a given value.  
+     * This describes how long it takes the simulated RAM to retrieve a given
+     * value (in nanoseconds).  Nothing actually waits for it; the CPU charges
+     * it to its simulated clock.
+     *
+     * @see Clock
      **/
     private int m_latency;
     
+    /**
+     * One flag per page that is set whenever a word in the page is written.
+     * A byte per page (rather than a bit) means cores writing to nearby
+     * pages at the same time can't lose each other's updates.
+     **/
+    private byte m_dirty[] = null;
+    
     /**
      * the constructor does nothing special
      *
      * @param size number of integers ("words") in ram
-     * @param latency the number of nanoseconds to delay for RAM latency
+     * @param latency the number of nanoseconds each access takes in simulated
+     *                time
      */
     public RAM(int size, int latency)
+    {
+        this(size, latency, true);
+    }//ctor
+    
+    /**
+     * constructor for subclasses
+     *
+     * @param size number of integers ("words") in ram
+     * @param latency the number of nanoseconds each access takes in simulated
+     *                time
+     * @param onHeap  false if the subclass keeps the words itself
+     */
+    protected RAM(int size, int latency, boolean onHeap)
     {
         m_size = size;
-        m_mem = new int[m_size]; //All values are zero by default
+        if (onHeap)
+            m_mem = new int[m_size]; //All values are zero by default
         m_latency = latency;
+        m_dirty = new byte[(int)(((long)m_size + PAGE_SIZE - 1) >> PAGE_SHIFT)];
+        java.util.Arrays.fill(m_dirty, (byte)1);
     }//ctor
+    
+    /**
+     * create
+     *
+     * builds a RAM that keeps its words in the given place
+     *
+     * @param size    number of integers ("words") in ram
+     * @param latency the number of nanoseconds each access takes in simulated
+     *                time
+     * @param backend HEAP, OFF_HEAP or SPARSE
+     * @return the new RAM
+     */
+    public static RAM create(int size, int latency, int backend)
+    {
+        switch(backend)
+        {
+            case OFF_HEAP:
+                return new OffHeapRAM(size, latency);
+            case SPARSE:
+                return new SparseRAM(size, latency);
+            default:
+                return new RAM(size, latency);
+        }
+    }//create
 
     /**
      * getSize
@@ -49,10 +126,22 @@ public class RAM
         return m_size;
     }
 
+    /**
+     * getResidentWords
+     *
+     * @return the number of words that actually take up host memory.  It
+     *         is only less than the size for a RAM that is created lazily.
+     */
+    public long getResidentWords()
+    {
+        return m_size;
+    }
+
     /**
      * getLatency
      *
-     * @return the time in nanoseconds required to retrieve a value from RAM
+     * @return the (simulated) time in nanoseconds required to retrieve a
+     *         value from RAM
      */
     public int getLatency()
     {
@@ -70,7 +159,26 @@ public class RAM
     {
         int instr[] = new int[CPU.INSTRSIZE];
         for(int i = 0; i < CPU.INSTRSIZE; i++)
-            instr[i] = m_mem[pc+i];
+            instr[i] = load(pc+i);
+
+        return instr;
+    }//fetch
+
+    /**
+     * fetch
+     * 
+     * retrieves an entire instruction from the simulated RAM into a buffer
+     * supplied by the caller so that no memory is allocated.
+     *
+     * @param pc    the address of the instruction
+     * @param instr a buffer of at least CPU.INSTRSIZE ints
+     * @return      the filled-in buffer
+     * @see CPU#INSTRSIZE
+     */
+    public int[] fetch(int pc, int[] instr)
+    {
+        for(int i = 0; i < CPU.INSTRSIZE; i++)
+            instr[i] = load(pc+i);
 
         return instr;
     }//fetch
@@ -85,17 +193,7 @@ public class RAM
      */
     public int read(int addr)
     {
-        //Simulate RAM latency
-        if (m_latency > 0)
-        {
-            try
-            {
-                Thread.sleep(0, m_latency);
-            }
-            catch(InterruptedException ie) {/* do nothing*/ }
-        }
-        
-        return m_mem[addr];
+        return load(addr);
     }//read
 
     /**
@@ -108,16 +206,258 @@ public class RAM
      */
     public void write(int addr, int val)
     {
-        //Simulate RAM latency 
-        if (m_latency > 0)
+        store(addr, val);
+        m_dirty[addr >>> PAGE_SHIFT] = 1;
+    }//write
+
+    /**
+     * read
+     *
+     * loads a block of words from the simulated RAM in one burst
+     *
+     * @param addr  the first location to retrieve from
+     * @param dst   where to put the words
+     * @param off   the index in dst of the first word
+     * @param len   the number of words
+     */
+    public void read(int addr, int[] dst, int off, int len)
+    {
+        loadBlock(addr, dst, off, len);
+    }//read
+
+    /**
+     * write
+     *
+     * saves a block of words to the simulated RAM in one burst
+     *
+     * @param addr  the first address to write to
+     * @param src   the words to write
+     * @param off   the index in src of the first word
+     * @param len   the number of words
+     */
+    public void write(int addr, int[] src, int off, int len)
+    {
+        storeBlock(addr, src, off, len);
+        markDirty(addr, len);
+    }//write
+
+    /**
+     * fill
+     *
+     * sets a block of words to the same value (e.g., zeroing a page)
+     *
+     * @param addr  the first address to write to
+     * @param len   the number of words
+     * @param val   the value to write
+     */
+    public void fill(int addr, int len, int val)
+    {
+        fillBlock(addr, len, val);
+        markDirty(addr, len);
+    }//fill
+
+    /**
+     * copy
+     *
+     * copies a block of words from one place in the simulated RAM to
+     * another.  The two blocks may overlap.
+     *
+     * @param from  the first address to copy from
+     * @param to    the first address to copy to
+     * @param len   the number of words
+     */
+    public void copy(int from, int to, int len)
+    {
+        if (m_mem != null)
+            System.arraycopy(m_mem, from, m_mem, to, len);
+        else
         {
-            try
+            //Go a page at a time through a buffer, backwards if the blocks
+            //overlap with the destination above the source
+            int buf[] = new int[Math.min(len, PAGE_SIZE)];
+            boolean backwards = to > from && to < from + len;
+            for(int done = 0; done < len; done += buf.length)
             {
-                Thread.sleep(0, m_latency);
+                int n = Math.min(buf.length, len - done);
+                int at = backwards ? len - done - n : done;
+                loadBlock(from + at, buf, 0, n);
+                storeBlock(to + at, buf, 0, n);
             }
-            catch(InterruptedException ie) {/* do nothing*/ }
         }
-        
+        markDirty(to, len);
+    }//copy
+
+    /**
+     * peek
+     *
+     * loads an integer on behalf of the machine itself (e.g., taking a
+     * checkpoint) rather than a program.  It works like read but doesn't
+     * count as a memory access.
+     *
+     * @param addr  the location to retrieve from
+     * @return      the value at the given location
+     */
+    public int peek(int addr)
+    {
+        return load(addr);
+    }//peek
+
+    /**
+     * poke
+     *
+     * saves an integer on behalf of the machine itself
+     *
+     * @param addr  the address to write to
+     * @param val   the value to write
+     * @see #peek
+     */
+    public void poke(int addr, int val)
+    {
+        store(addr, val);
+        m_dirty[addr >>> PAGE_SHIFT] = 1;
+    }//poke
+
+    /**
+     * load
+     *
+     * is where every read of a word ends up.  Subclasses that keep the words
+     * somewhere other than the heap override this and {@link #store}.
+     *
+     * @param addr  the location to retrieve from
+     * @return      the value at the given location
+     */
+    protected int load(int addr)
+    {
+        return m_mem[addr];
+    }//load
+
+    /**
+     * store
+     *
+     * is where every write of a word ends up
+     *
+     * @param addr  the address to write to
+     * @param val   the value to write
+     * @see #load
+     */
+    protected void store(int addr, int val)
+    {
         m_mem[addr] = val;
-    }//write
-};
+    }//store
+
+    /**
+     * loadBlock
+     *
+     * is where every block read ends up.  By default it reads one word at a
+     * time unless the words are on the heap.
+     *
+     * @param addr  the first location to retrieve from
+     * @param dst   where to put the words
+     * @param off   the index in dst of the first word
+     * @param len   the number of words
+     */
+    protected void loadBlock(int addr, int[] dst, int off, int len)
+    {
+        if (m_mem != null)
+            System.arraycopy(m_mem, addr, dst, off, len);
+        else
+            for(int i = 0; i < len; i++)
+                dst[off + i] = load(addr + i);
+    }//loadBlock
+
+    /**
+     * storeBlock
+     *
+     * is where every block write ends up
+     *
+     * @param addr  the first address to write to
+     * @param src   the words to write
+     * @param off   the index in src of the first word
+     * @param len   the number of words
+     * @see #loadBlock
+     */
+    protected void storeBlock(int addr, int[] src, int off, int len)
+    {
+        if (m_mem != null)
+            System.arraycopy(src, off, m_mem, addr, len);
+        else
+            for(int i = 0; i < len; i++)
+                store(addr + i, src[off + i]);
+    }//storeBlock
+
+    /**
+     * fillBlock
+     *
+     * is where every fill ends up
+     *
+     * @param addr  the first address to write to
+     * @param len   the number of words
+     * @param val   the value to write
+     * @see #loadBlock
+     */
+    protected void fillBlock(int addr, int len, int val)
+    {
+        if (m_mem != null)
+            java.util.Arrays.fill(m_mem, addr, addr + len, val);
+        else
+            for(int i = 0; i < len; i++)
+                store(addr + i, val);
+    }//fillBlock
+
+    /**
+     * marks every page that holds part of a block as changed
+     */
+    private void markDirty(int addr, int len)
+    {
+        if (len <= 0)
+            return;
+        int last = (int)(((long)addr + len - 1) >>> PAGE_SHIFT);
+        for(int page = addr >>> PAGE_SHIFT; page <= last; page++)
+            m_dirty[page] = 1;
+    }//markDirty
+
+    /**
+     * getNumPages
+     *
+     * @return the number of pages in this RAM (the last one may be partial)
+     */
+    public int getNumPages()
+    {
+        return m_dirty.length;
+    }
+
+    /**
+     * isDirty
+     *
+     * @param page  a page number
+     * @return true if the page has been written since the last call to
+     *         {@link #clean}.  Every page starts out dirty.
+     */
+    public boolean isDirty(int page)
+    {
+        return m_dirty[page] != 0;
+    }
+
+    /**
+     * isPresent
+     *
+     * @param page  a page number
+     * @return false if the page has never been written and so holds only
+     *         zeroes without taking up any host memory.  Only a RAM that is
+     *         created lazily has pages like that.
+     */
+    public boolean isPresent(int page)
+    {
+        return true;
+    }
+
+    /**
+     * clean
+     *
+     * marks every page as unchanged
+     */
+    public void clean()
+    {
+        java.util.Arrays.fill(m_dirty, (byte)0);
+    }//clean
+};//class RAM
@@ -0,0 +1,148 @@
+package sos;
+
+import java.util.ArrayDeque;
+
+/**
+ * This class is the default scheduling policy: ready processes wait in a
+ * single first come first served queue and each one may run for the same
+ * time slice before it goes to the back of the queue.  A process that
+ * gives up its core or wakes up goes to the back as well.
+ *
+ * @see Scheduler
+ */
+public class RoundRobinScheduler implements Scheduler
+{
+    /**
+     * the processes that are ready to run, in the order they will run
+     **/
+    private ArrayDeque<Integer> m_ready = new ArrayDeque<Integer>();
+
+    /**
+     * the same processes by id so that exit needn't search the queue for a
+     * process that isn't in it (the usual case, since a process exits while
+     * it is running)
+     **/
+    private IntMap<Boolean> m_queued = new IntMap<Boolean>();
+
+    /**
+     * the time slice in instructions (0 to let each process run until it
+     * gives up its core)
+     **/
+    private long m_quantum;
+
+    /**
+     * constructor
+     *
+     * @param quantum the time slice in instructions (0 to let each process
+     *                run until it gives up its core)
+     */
+    public RoundRobinScheduler(long quantum)
+    {
+        m_quantum = Math.max(0, quantum);
+    }//ctor
+
+    /**
+     * getName
+     *
+     * @return a short description of the policy
+     */
+    public String getName()
+    {
+        return "round robin, quantum " + m_quantum;
+    }
+
+    /**
+     * add
+     *
+     * @param pid a new process
+     */
+    public void add(int pid)
+    {
+        enqueue(pid);
+    }
+
+    /**
+     * dispatch
+     *
+     * @param core the core that will run the process
+     * @return the process at the front of the queue (-1 if there is none)
+     */
+    public int dispatch(int core)
+    {
+        Integer pid = m_ready.poll();
+        if (pid == null)
+            return -1;
+        m_queued.remove(pid);
+        return pid;
+    }
+
+    /**
+     * getQuantum
+     *
+     * @param pid a process that has just been dispatched
+     * @return the time slice (the same for every process)
+     */
+    public long getQuantum(int pid)
+    {
+        return m_quantum;
+    }
+
+    /**
+     * yield
+     *
+     * puts the process at the back of the queue
+     */
+    public void yield(int pid, long ran, boolean expired)
+    {
+        enqueue(pid);
+    }
+
+    /**
+     * block
+     *
+     * does nothing since a running process isn't in the queue
+     */
+    public void block(int pid, long ran)
+    {
+    }
+
+    /**
+     * wakeup
+     *
+     * puts the process at the back of the queue
+     */
+    public void wakeup(int pid)
+    {
+        enqueue(pid);
+    }
+
+    /**
+     * exit
+     *
+     * takes the process out of the queue if it is there
+     */
+    public void exit(int pid)
+    {
+        if (m_queued.remove(pid) != null)
+            m_ready.remove(pid);
+    }
+
+    /**
+     * getNextWakeup
+     *
+     * @return -1 since processes never wait for time to pass
+     */
+    public long getNextWakeup()
+    {
+        return -1;
+    }
+
+    /**
+     * Puts a process at the back of the queue.
+     */
+    private void enqueue(int pid)
+    {
+        m_ready.add(pid);
+        m_queued.put(pid, Boolean.TRUE);
+    }
+};//class RoundRobinScheduler
@@ -1,8 +1,16 @@
 package sos;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Vector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * This class contains the simulated operating system (SOS).  Realistically it
@@ -24,7 +32,37 @@ public class SOS implements CPU.TrapHandler
     public static final int SYSCALL_CLOSE    = 4;    /* release a device */
     public static final int SYSCALL_READ     = 5;    /* get input from device */
     public static final int SYSCALL_WRITE    = 6;    /* send output to device */
+    public static final int SYSCALL_NEXTPERIOD = 7;  /* wait for the next period */
     public static final int SYSCALL_COREDUMP = 9;    /* print process state and exit */
+    public static final int SYSCALL_READV    = 10;   /* read a buffer from a device */
+    public static final int SYSCALL_WRITEV   = 11;   /* write a buffer to a device */
+    
+    //These constants are the return codes the device system calls push
+    public static final int SUCCESS             = 0;   /* the call worked */
+    public static final int ERROR_NO_DEVICE     = -1;  /* there is no such device */
+    public static final int ERROR_NOT_OPEN      = -2;  /* the process hasn't opened it */
+    public static final int ERROR_NOT_READABLE  = -3;  /* it can't be read from */
+    public static final int ERROR_NOT_WRITEABLE = -4;  /* it can't be written to */
+    public static final int ERROR_BAD_BUFFER    = -5;  /* the buffer isn't all in the process' memory */
+    
+    //These constants are the exit status of a process (see ProcessRecord)
+    public static final int EXIT_NORMAL              = 0;  /* it made the EXIT system call */
+    public static final int EXIT_ILLEGAL_MEMORY      = 1;  /* it touched memory it doesn't own */
+    public static final int EXIT_DIVIDE_BY_ZERO      = 2;  /* it divided by zero */
+    public static final int EXIT_ILLEGAL_INSTRUCTION = 3;  /* it ran something that isn't an instruction */
+    public static final int EXIT_OUT_OF_MEMORY       = 4;  /* no frame was left for a page it touched */
+    
+    //These constants select how a process' block of RAM is found
+    public static final int ALLOC_FIRST_FIT = 0;  /* the lowest free block that fits */
+    public static final int ALLOC_BEST_FIT  = 1;  /* the smallest free block that fits */
+    public static final int ALLOC_NEXT_FIT  = 2;  /* first fit from where the last one ended */
+    public static final int ALLOC_BUDDY     = 3;  /* power of two blocks from a buddy allocator */
+    
+    /**
+     * When checkpoints are being taken each core stops to see whether one is
+     * due at least this often (in instructions)
+     */
+    public static final long CHECKPOINT_SLICE = 100000;
     
     //======================================================================
     //Member variables
@@ -36,24 +74,212 @@ public class SOS implements CPU.TrapHandler
     public static final boolean m_verbose = false;
     
     /**
-     * The CPU the operating system is managing.
+     * The CPUs (cores) the operating system is managing.  They all share the
+     * same RAM.
      **/
-    private CPU m_CPU = null;
+    private CPU m_CPUs[] = null;
     
     /**
-     * The RAM attached to the CPU.
+     * The RAM attached to the CPUs.
      **/
     private RAM m_RAM = null;
     
     /**
-     * The ID of the current process
+     * The process currently running on each core (null if the core is idle)
+     */
+    private ProcessControlBlock m_running[];
+    
+    /**
+     * Every process that has been created and hasn't exited yet, by id.
+     * Ids are handed out in increasing order so the order of the ids is
+     * the order the processes were created.
+     */
+    private IntMap<ProcessControlBlock> m_processes = null;
+    
+    /**
+     * Decides which of the processes that are ready to run gets a core next
+     * and for how long
+     */
+    private Scheduler m_scheduler = new RoundRobinScheduler(0);
+    
+    /**
+     * What happened to each process that has exited (in the order they
+     * exited)
+     */
+    private ArrayList<ProcessRecord> m_finished = new ArrayList<ProcessRecord>();
+    
+    /**
+     * The id that will be given to the next process that is created
+     */
+    private int m_nextProcessId = 42;
+    
+    /**
+     * The blocks of RAM that haven't been given to a process, in address
+     * order.  Neighboring free blocks are always merged.
+     */
+    private ArrayList<MemBlock> m_freeList = null;
+    
+    /**
+     * How a block is picked from the free list (ALLOC_FIRST_FIT, ...) and,
+     * for next fit, the address where the last allocated block ended
+     */
+    private int m_allocStrategy = ALLOC_FIRST_FIT;
+    private int m_nextFit = 0;
+    
+    /**
+     * The allocator that hands out RAM instead of the free list when the
+     * strategy is ALLOC_BUDDY (null otherwise)
+     */
+    private BuddyAllocator m_buddy = null;
+    
+    /**
+     * The number of allocations, how many of them failed, the host time
+     * they took (in total and at most), the sum of the fragmentation of the
+     * free list at each one (and of the blocks in use, for the buddy
+     * allocator), how many times processes were moved to merge the free
+     * blocks and how many words were moved
+     */
+    private long m_allocs = 0;
+    private long m_allocFailures = 0;
+    private long m_allocNanos = 0;
+    private long m_maxAllocNanos = 0;
+    private double m_fragmentationSum = 0;
+    private double m_internalFragmentationSum = 0;
+    private long m_compactions = 0;
+    private long m_wordsMoved = 0;
+    
+    /**
+     * Set when RAM has been compacted and cleared when a block is freed.
+     * Compacting again in between would move nothing.
+     */
+    private boolean m_compacted = false;
+    
+    /**
+     * Specifies whether processes get paged virtual memory.  If so each
+     * process sees its memory at addresses starting at 0 and RAM is handed
+     * out a page (frame) at a time instead of in one contiguous block.
+     */
+    private boolean m_paging = false;
+    
+    /**
+     * The frames of RAM that haven't been given to a process (used as a
+     * stack) and how many of them there are
+     */
+    private int m_freeFrames[] = null;
+    private int m_numFreeFrames = 0;
+    
+    /**
+     * The number of page faults that have been handled
+     */
+    private long m_pageFaults = 0;
+    
+    /**
+     * The number of times a process was given a core, how many times one was
+     * taken off a core before it was done and what switching cost in host
+     * time (nanoseconds) and simulated time (cycles)
+     */
+    private long m_contextSwitches = 0;
+    private long m_preemptions = 0;
+    private long m_switchNanos = 0;
+    private long m_switchCycles = 0;
+    
+    /**
+     * The cycles cores spent idle waiting for a process to become ready
+     */
+    private long m_idleCycles = 0;
+    
+    /**
+     * The instruction count of each core at which the time slice of the
+     * process it is running ends (Long.MAX_VALUE if it has none)
+     */
+    private long m_sliceEnd[];
+    
+    /**
+     * The device requests that are being handled, in the order they will
+     * be done.  This plays the part of an interrupt controller: once the
+     * simulated time of a core has passed the time a request is due the
+     * core takes the I/O completion interrupt for it.
+     */
+    private PriorityQueue<IORequest> m_pendingIO = new PriorityQueue<IORequest>();
+    
+    /**
+     * Specifies whether a process that uses a slow device gives up its core
+     * while the device works (true) or keeps it and waits (false)
+     */
+    private boolean m_asyncIO = true;
+    
+    /**
+     * The number of requests made to slow devices, the cycles processes
+     * waited for them in total and the number of requests started so far
+     * (each one is numbered so that requests due at the same time complete
+     * in the order they were started)
+     */
+    private long m_ioWaits = 0;
+    private long m_ioWaitCycles = 0;
+    private long m_ioStarted = 0;
+    
+    /**
+     * Identifies which core the calling host thread is running.  Threads
+     * that SOS didn't start (e.g., the one that calls CPU.run() directly in
+     * a single core simulation) are treated as core 0.
+     */
+    private ThreadLocal<Integer> m_coreId = new ThreadLocal<Integer>();
+    
+    /**
+     * The devices "installed" in the system, by id, and how many have been
+     * installed (each one gets the next index in the processes' sets of
+     * open devices)
+     */
+    private IntMap<DeviceInfo> m_devices = null;
+    private int m_numDevices = 0;
+    
+    /**
+     * The same devices by index so that the ones a process has open can be
+     * found from its set of open devices
+     */
+    private ArrayList<DeviceInfo> m_deviceIndex = new ArrayList<DeviceInfo>();
+    
+    /**
+     * Set while each core is handling a system call, and the process (if
+     * any) that faulted during it.  The OS is still working with that
+     * process' registers and stack then so it is only ended once the system
+     * call is done.
+     */
+    private boolean m_inSysCall[];
+    private ProcessControlBlock m_doomed[];
+    
+    /**
+     * The number of processes that were ended because of a fault
+     */
+    private long m_faults = 0;
+    
+    /**
+     * Where checkpoints are saved (null if they aren't)
+     */
+    private Checkpoint m_checkpoint = null;
+    
+    /**
+     * How many instructions each core runs between periodic checkpoints (0
+     * to only take them on request) and the instruction count at which each
+     * core will ask for the next one
+     */
+    private long m_checkpointInterval = 0;
+    private long m_nextCheckpoint[];
+    
+    /**
+     * Set when a checkpoint should be taken the next time every running core
+     * has stopped at a safe point
      */
-    private ProcessControlBlock m_currProcess;
+    private volatile boolean m_checkpointRequested = false;
     
     /**
-     * The list of devices "installed" in the system.
+     * The number of cores that are still running, how many of them are
+     * waiting for a checkpoint to be taken and how many checkpoints have been
+     * taken while waiting (so the waiters know when to go on)
      */
-    private Vector<DeviceInfo> m_devices = null;
+    private int m_activeCores = 0;
+    private int m_parkedCores = 0;
+    private long m_safepoints = 0;
 
     /*======================================================================
      * Constructors & Debugging
@@ -64,14 +290,40 @@ public class SOS implements CPU.TrapHandler
      * The constructor does nothing special
      */
     public SOS(CPU c, RAM r)
+    {
+        this(new CPU[]{c}, r);
+    }//SOS ctor
+    
+    /**
+     * Creates an OS that manages several CPUs (cores) sharing one RAM.
+     * 
+     * @param cpus  the cores.  Each one is run on its own host thread by
+     *              {@link #run}.
+     * @param r     the RAM shared by all the cores
+     */
+    public SOS(CPU[] cpus, RAM r)
     {
         //Init member list
-        m_CPU = c;
+        m_CPUs = cpus.clone();
         m_RAM = r;
-        m_currProcess = new ProcessControlBlock(42);
-        m_devices = new Vector<DeviceInfo>();
+        m_running = new ProcessControlBlock[m_CPUs.length];
+        m_processes = new IntMap<ProcessControlBlock>();
+        m_freeList = new ArrayList<MemBlock>();
+        m_freeList.add(new MemBlock(0, m_RAM.getSize()));
+        m_devices = new IntMap<DeviceInfo>();
+        m_nextCheckpoint = new long[m_CPUs.length];
+        Arrays.fill(m_nextCheckpoint, Long.MAX_VALUE);
+        m_sliceEnd = new long[m_CPUs.length];
+        Arrays.fill(m_sliceEnd, Long.MAX_VALUE);
+        m_inSysCall = new boolean[m_CPUs.length];
+        m_doomed = new ProcessControlBlock[m_CPUs.length];
         
-        m_CPU.registerTrapHandler(this);
+        //Every core is idle until it is given a process
+        for (CPU cpu : m_CPUs)
+        {
+            cpu.registerTrapHandler(this);
+            cpu.halt();
+        }
     }//SOS ctor
     
     /**
@@ -97,65 +349,1676 @@ public class SOS implements CPU.TrapHandler
      *----------------------------------------------------------------------
      */
 
-    //None yet!
+    /**
+     * setPaging
+     *
+     * Turns paged virtual memory on or off.  With paging all of RAM is split
+     * into frames that are given to processes as they need them.  This must
+     * be done before any process is created.
+     *
+     * @param paging true to give processes paged virtual memory
+     */
+    public synchronized void setPaging(boolean paging)
+    {
+        m_paging = paging;
+        m_numFreeFrames = 0;
+        m_freeFrames = null;
+        if (!paging)
+            return;
+        
+        //Hand out low frames first
+        m_freeFrames = new int[m_RAM.getSize() >>> RAM.PAGE_SHIFT];
+        for (int frame = m_freeFrames.length - 1; frame >= 0; frame--)
+            m_freeFrames[m_numFreeFrames++] = frame;
+    }//setPaging
     
-    /*======================================================================
-     * Device Management Methods
-     *----------------------------------------------------------------------
+    /**
+     * isPaging
+     *
+     * @return true if processes get paged virtual memory
      */
-
+    public boolean isPaging()
+    {
+        return m_paging;
+    }
+    
     /**
-     * registerDevice
+     * getFreeFrames
      *
-     * adds a new device to the list of devices managed by the OS
+     * @return the number of frames of RAM that no process is using
+     */
+    public synchronized int getFreeFrames()
+    {
+        return m_numFreeFrames;
+    }
+    
+    /**
+     * getPageFaults
      *
-     * @param dev     the device driver
-     * @param id      the id to assign to this device
-     * 
+     * @return the number of page faults that have been handled
      */
-    public void registerDevice(Device dev, int id)
+    public synchronized long getPageFaults()
     {
-        m_devices.add(new DeviceInfo(dev, id));
-    }//registerDevice
+        return m_pageFaults;
+    }
     
-    /*======================================================================
-     * Process Management Methods
-     *----------------------------------------------------------------------
+    /**
+     * Takes a frame off the free list and fills it with zeroes (charging
+     * the calling core for one burst).
+     *
+     * @return the frame number or -1 if there are no free frames
      */
-
-    //None yet!
+    private int allocFrame()
+    {
+        if (m_numFreeFrames == 0)
+            return -1;
+        int frame = m_freeFrames[--m_numFreeFrames];
+        m_RAM.fill(frame << RAM.PAGE_SHIFT, RAM.PAGE_SIZE, 0);
+        getClock().advance(getClock().getBurstCycles(RAM.PAGE_SIZE));
+        return frame;
+    }//allocFrame
     
-    /*======================================================================
-     * Program Management Methods
-     *----------------------------------------------------------------------
+    /**
+     * Gives every frame a process has back to the free list.
      */
-
+    private void freeFrames(ProcessControlBlock pcb)
+    {
+        if (pcb.pageTable == null)
+            return;
+        for (int page = 0; page < pcb.pageTable.length; page++)
+        {
+            if (pcb.pageTable[page] >= 0)
+            {
+                m_freeFrames[m_numFreeFrames++] = pcb.pageTable[page];
+                pcb.pageTable[page] = -1;
+            }
+        }
+    }//freeFrames
+    
+    /**
+     * @return the physical address of a word of a process given the address
+     *         the process uses for it (-1 if its page isn't mapped)
+     */
+    private static int physical(int[] pageTable, int addr)
+    {
+        if (pageTable == null)
+            return addr;
+        int frame = pageTable[addr >>> RAM.PAGE_SHIFT];
+        if (frame < 0)
+            return -1;
+        return (frame << RAM.PAGE_SHIFT) | (addr & (RAM.PAGE_SIZE - 1));
+    }//physical
+    
+    /**
+     * setAllocStrategy
+     *
+     * Sets how the block of RAM for a new process is picked from the free
+     * blocks (when paging is off).  Switching to or from ALLOC_BUDDY must be
+     * done before any process is created since the buddy allocator keeps
+     * its own free blocks.
+     *
+     * @param strategy ALLOC_FIRST_FIT, ALLOC_BEST_FIT, ALLOC_NEXT_FIT or
+     *                 ALLOC_BUDDY
+     */
+    public synchronized void setAllocStrategy(int strategy)
+    {
+        m_allocStrategy = strategy;
+        m_buddy = (strategy == ALLOC_BUDDY) ? new BuddyAllocator(m_RAM.getSize()) : null;
+    }//setAllocStrategy
+    
+    /**
+     * getBuddyAllocator
+     *
+     * @return the buddy allocator (null unless the strategy is ALLOC_BUDDY)
+     */
+    public BuddyAllocator getBuddyAllocator()
+    {
+        return m_buddy;
+    }
+    
+    /**
+     * getFreeWords
+     *
+     * @return the number of words of RAM in free blocks
+     */
+    public synchronized int getFreeWords()
+    {
+        if (m_buddy != null)
+            return m_buddy.getFreeWords();
+        int words = 0;
+        for (MemBlock b : m_freeList)
+            words += b.getSize();
+        return words;
+    }
+    
+    /**
+     * getFragmentation
+     *
+     * @return how fragmented the free RAM is: the fraction of it that isn't
+     *         in the largest free block (0 if it is all in one block)
+     */
+    public synchronized double getFragmentation()
+    {
+        if (m_buddy != null)
+        {
+            int free = m_buddy.getFreeWords();
+            return (free == 0) ? 0 : 1.0 - (double)m_buddy.getLargestFree() / free;
+        }
+        long free = 0;
+        int largest = 0;
+        for (MemBlock b : m_freeList)
+        {
+            free += b.getSize();
+            largest = Math.max(largest, b.getSize());
+        }
+        return (free == 0) ? 0 : 1.0 - (double)largest / free;
+    }//getFragmentation
+    
+    /**
+     * getAverageFragmentation
+     *
+     * @return the average fragmentation of the free RAM at the times
+     *         blocks were allocated
+     */
+    public synchronized double getAverageFragmentation()
+    {
+        return (m_allocs == 0) ? 0 : m_fragmentationSum / m_allocs;
+    }
+    
+    /**
+     * getInternalFragmentation
+     *
+     * @return the fraction of the RAM given to processes that they didn't
+     *         ask for (always 0 unless the strategy is ALLOC_BUDDY, which
+     *         rounds blocks up to a power of two)
+     */
+    public synchronized double getInternalFragmentation()
+    {
+        return (m_buddy == null) ? 0 : m_buddy.getInternalFragmentation();
+    }
+    
+    /**
+     * getAverageInternalFragmentation
+     *
+     * @return the average internal fragmentation at the times blocks were
+     *         allocated
+     */
+    public synchronized double getAverageInternalFragmentation()
+    {
+        return (m_allocs == 0) ? 0 : m_internalFragmentationSum / m_allocs;
+    }
+    
+    /**
+     * getAllocations
+     *
+     * @return the number of blocks that were asked for
+     */
+    public synchronized long getAllocations()
+    {
+        return m_allocs;
+    }
+    
+    /**
+     * getAllocFailures
+     *
+     * @return the number of blocks that couldn't be allocated
+     */
+    public synchronized long getAllocFailures()
+    {
+        return m_allocFailures;
+    }
+    
+    /**
+     * getAllocNanos
+     *
+     * @return the host time spent allocating blocks (including compaction)
+     */
+    public synchronized long getAllocNanos()
+    {
+        return m_allocNanos;
+    }
+    
+    /**
+     * getMaxAllocNanos
+     *
+     * @return the longest host time one allocation took
+     */
+    public synchronized long getMaxAllocNanos()
+    {
+        return m_maxAllocNanos;
+    }
+    
+    /**
+     * getCompactions
+     *
+     * @return the number of times processes were moved to merge free blocks
+     */
+    public synchronized long getCompactions()
+    {
+        return m_compactions;
+    }
+    
+    /**
+     * getWordsMoved
+     *
+     * @return the number of words of process memory that were moved
+     */
+    public synchronized long getWordsMoved()
+    {
+        return m_wordsMoved;
+    }
+    
+    /**
+     * Finds a block of RAM of the given size for a process.  If no free
+     * block is big enough but there is enough free RAM altogether the
+     * processes are moved together first.
+     *
+     * @param size the number of words
+     * @return the address of the block or -1 if there isn't enough RAM
+     */
+    private int allocBlock(int size)
+    {
+        m_allocs++;
+        m_fragmentationSum += getFragmentation();
+        m_internalFragmentationSum += getInternalFragmentation();
+        
+        //Sampling the fragmentation scans the free list so it isn't timed
+        long startTime = System.nanoTime();
+        
+        if (m_buddy != null)
+        {
+            int addr = m_buddy.alloc(size);
+            if (addr < 0)
+                m_allocFailures++;
+            long nanos = System.nanoTime() - startTime;
+            m_allocNanos += nanos;
+            m_maxAllocNanos = Math.max(m_maxAllocNanos, nanos);
+            return addr;
+        }
+        
+        int i = findFree(size);
+        if (i < 0 && !m_compacted && getFreeWords() >= size)
+        {
+            compact();
+            i = findFree(size);
+        }
+        
+        int addr = -1;
+        if (i < 0)
+            m_allocFailures++;
+        else
+        {
+            //Take the block from the bottom of the free one
+            MemBlock b = m_freeList.get(i);
+            addr = b.getAddr();
+            if (b.getSize() == size)
+                m_freeList.remove(i);
+            else
+            {
+                b.addr += size;
+                b.size -= size;
+            }
+            m_nextFit = addr + size;
+        }
+        
+        long nanos = System.nanoTime() - startTime;
+        m_allocNanos += nanos;
+        m_maxAllocNanos = Math.max(m_maxAllocNanos, nanos);
+        return addr;
+    }//allocBlock
+    
+    /**
+     * @return the index in the free list of the block the allocation
+     *         strategy picks for the given size (-1 if none is big enough)
+     */
+    private int findFree(int size)
+    {
+        int n = m_freeList.size();
+        switch (m_allocStrategy)
+        {
+            case ALLOC_BEST_FIT:
+                int best = -1;
+                for (int i = 0; i < n; i++)
+                {
+                    int blockSize = m_freeList.get(i).getSize();
+                    if (blockSize >= size && (best < 0 || blockSize < m_freeList.get(best).getSize()))
+                        best = i;
+                }
+                return best;
+            case ALLOC_NEXT_FIT:
+                //Start with the first block at or after where the last
+                //allocation ended and wrap around
+                int first = 0;
+                while (first < n && m_freeList.get(first).getAddr() + m_freeList.get(first).getSize() <= m_nextFit)
+                    first++;
+                for (int j = 0; j < n; j++)
+                {
+                    int i = (first + j) % n;
+                    if (m_freeList.get(i).getSize() >= size)
+                        return i;
+                }
+                return -1;
+            default:
+                for (int i = 0; i < n; i++)
+                    if (m_freeList.get(i).getSize() >= size)
+                        return i;
+                return -1;
+        }
+    }//findFree
+    
+    /**
+     * Gives a block of RAM back to the free list, merging it with the free
+     * blocks next to it.
+     *
+     * @param addr the address of the block
+     * @param size the number of words
+     */
+    private void freeBlock(int addr, int size)
+    {
+        if (m_buddy != null)
+        {
+            m_buddy.free(addr, size);
+            return;
+        }
+        m_compacted = false;
+        
+        //Find the first free block above this one
+        int lo = 0;
+        int hi = m_freeList.size();
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (m_freeList.get(mid).getAddr() < addr)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        
+        MemBlock prev = (lo > 0) ? m_freeList.get(lo - 1) : null;
+        MemBlock next = (lo < m_freeList.size()) ? m_freeList.get(lo) : null;
+        if (prev != null && prev.getAddr() + prev.getSize() == addr)
+        {
+            prev.size += size;
+            if (next != null && prev.getAddr() + prev.getSize() == next.getAddr())
+            {
+                prev.size += next.getSize();
+                m_freeList.remove(lo);
+            }
+        }
+        else if (next != null && addr + size == next.getAddr())
+        {
+            next.addr = addr;
+            next.size += size;
+        }
+        else
+            m_freeList.add(lo, new MemBlock(addr, size));
+    }//freeBlock
+    
+    /**
+     * Moves processes down in RAM so that the free blocks between them
+     * become one.  A process that is running on another core stays where it
+     * is since that core may be using its memory right now.  Moving is
+     * charged to the calling core as a burst to read each process and one
+     * to write it.
+     */
+    private void compact()
+    {
+        //The processes that have a block of RAM, in address order
+        ArrayList<MemBlock> used = new ArrayList<MemBlock>();
+        IntMap<ProcessControlBlock> owners = new IntMap<ProcessControlBlock>();
+        for (ProcessControlBlock pcb : m_processes.values())
+        {
+            if (pcb.pageTable != null)
+                continue;
+            int regs[] = registersOf(pcb);
+            used.add(new MemBlock(regs[CPU.BASE], regs[CPU.LIM] - regs[CPU.BASE] + 1));
+            owners.put(regs[CPU.BASE], pcb);
+        }
+        java.util.Collections.sort(used);
+        
+        Clock clock = getClock();
+        int next = 0;
+        m_freeList.clear();
+        for (MemBlock b : used)
+        {
+            ProcessControlBlock pcb = owners.get(b.getAddr());
+            if (b.getAddr() > next && !isRunningElsewhere(pcb))
+            {
+                //Slide the process down and move its registers with it
+                int delta = next - b.getAddr();
+                int regs[] = registersOf(pcb);
+                m_RAM.copy(b.getAddr(), next, b.getSize());
+                clock.advance(2 * clock.getBurstCycles(b.getSize()));
+                m_wordsMoved += b.getSize();
+                regs[CPU.BASE] += delta;
+                regs[CPU.LIM] += delta;
+                regs[CPU.PC] += delta;
+                regs[CPU.SP] += delta;
+                b.addr = next;
+            }
+            if (b.getAddr() > next)
+                m_freeList.add(new MemBlock(next, b.getAddr() - next));
+            next = b.getAddr() + b.getSize();
+        }
+        if (next < m_RAM.getSize())
+            m_freeList.add(new MemBlock(next, m_RAM.getSize() - next));
+        m_compactions++;
+        m_compacted = true;
+        debugPrintln("Compacted RAM: " + m_freeList.size() + " free blocks");
+    }//compact
+    
+    /**
+     * @return the registers of the given process: those of its core if it
+     *         is running or else the ones saved in its PCB
+     */
+    private int[] registersOf(ProcessControlBlock pcb)
+    {
+        for (int core = 0; core < m_CPUs.length; core++)
+            if (m_running[core] == pcb)
+                return m_CPUs[core].getRegisters();
+        return pcb.registers;
+    }
+    
+    /**
+     * @return true if the given process is running on a core other than the
+     *         one the calling thread is running (which is stopped in the OS)
+     */
+    private boolean isRunningElsewhere(ProcessControlBlock pcb)
+    {
+        for (int core = 0; core < m_CPUs.length; core++)
+            if (m_running[core] == pcb && core != getCore())
+                return true;
+        return false;
+    }
+    
+    /**
+     * Copies a block of words into a process' memory (or out of it).  The
+     * words are moved in bursts; with paging there is one for each page
+     * since the pages needn't be in consecutive frames.
+     * 
+     * @param pageTable the process' page table (null if it has none)
+     * @param addr      the address the process uses for the first word
+     * @param words     the words to copy in (or where to copy them out to)
+     * @param len       the number of words
+     * @param toRAM     true to copy into the process' memory
+     * @return what the bursts cost (in cycles)
+     */
+    private long transfer(int[] pageTable, int addr, int[] words, int len, boolean toRAM)
+    {
+        Clock clock = getClock();
+        long cycles = 0;
+        for (int done = 0; done < len; )
+        {
+            int n = len - done;
+            if (pageTable != null)
+                n = Math.min(n, RAM.PAGE_SIZE - ((addr + done) & (RAM.PAGE_SIZE - 1)));
+            int phys = physical(pageTable, addr + done);
+            if (toRAM)
+                m_RAM.write(phys, words, done, n);
+            else
+                m_RAM.read(phys, words, done, n);
+            cycles += clock.getBurstCycles(n);
+            done += n;
+        }
+        return cycles;
+    }//transfer
+    
+    /*======================================================================
+     * Device Management Methods
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * registerDevice
+     *
+     * adds a new device to the list of devices managed by the OS
+     *
+     * @param dev     the device driver
+     * @param id      the id to assign to this device
+     * 
+     */
+    public void registerDevice(Device dev, int id)
+    {
+        registerDevice(dev, id, 0);
+    }//registerDevice
+    
+    /**
+     * registerDevice
+     *
+     * adds a new device that takes some time to handle each request.  A
+     * process that reads or writes it waits in the device's queue until its
+     * request is done; meanwhile its core runs other processes (see
+     * {@link #setAsyncIO}).  The device handles one request at a time.
+     *
+     * @param dev     the device driver
+     * @param id      the id to assign to this device
+     * @param latency the cycles each request takes (0 to handle requests
+     *                right away, which is what the other version does)
+     */
+    public synchronized void registerDevice(Device dev, int id, long latency)
+    {
+        DeviceInfo di = new DeviceInfo(dev, id, m_numDevices++);
+        di.latency = Math.max(0, latency);
+        m_devices.put(id, di);
+        m_deviceIndex.add(di);
+    }//registerDevice
+    
+    /**
+     * setAsyncIO
+     *
+     * Sets whether a process that reads or writes a slow device gives up
+     * its core while the device works (the default) or its core waits for
+     * the device with it (for comparison).
+     *
+     * @param async true to let other processes run while the device works
+     */
+    public synchronized void setAsyncIO(boolean async)
+    {
+        m_asyncIO = async;
+    }//setAsyncIO
+    
+    /**
+     * getIOWaits
+     *
+     * @return the number of requests made to slow devices
+     */
+    public synchronized long getIOWaits()
+    {
+        return m_ioWaits;
+    }
+    
+    /**
+     * getIOWaitCycles
+     *
+     * @return the simulated time processes spent waiting for slow devices
+     *         (from each request until it was done)
+     */
+    public synchronized long getIOWaitCycles()
+    {
+        return m_ioWaitCycles;
+    }
+    
+    /**
+     * Queues a request for a slow device on behalf of the current process
+     * and makes the process wait until it is done.  The process gives up
+     * its core meanwhile unless I/O is synchronous, in which case the core
+     * waits too.  Either way the result is pushed onto the process' stack
+     * when the request is done.
+     *
+     * @param di    the device
+     * @param read  true to read, false to write
+     * @param addr  the address argument of the request
+     * @param value the value to write (ignored when reading)
+     */
+    private void requestIO(DeviceInfo di, boolean read, int addr, int value)
+    {
+        requestIO(new IORequest(getCurrProcess(), di, read, addr, value, getClock().getCycles()));
+    }//requestIO
+    
+    /**
+     * Queues a request (made by the current process) for a slow device and
+     * makes the process wait until it is done (see the other version).
+     *
+     * @param req  the request
+     */
+    private void requestIO(IORequest req)
+    {
+        int core = getCore();
+        CPU cpu = m_CPUs[core];
+        Clock clock = cpu.getClock();
+        ProcessControlBlock pcb = req.pcb;
+        DeviceInfo di = req.device;
+        di.queue.add(req);
+        if (di.queue.size() == 1)
+            startIO(req, req.issued);
+        m_ioWaits++;
+        
+        if (!m_asyncIO)
+        {
+            //Spin until the device gets to this request and is done with it
+            while (!req.done)
+            {
+                long wait = m_pendingIO.peek().due - clock.getCycles();
+                if (wait > 0)
+                    clock.advance(wait);
+                checkIOInterrupts(core);
+            }
+            preempt(core, false);
+            return;
+        }
+        
+        m_scheduler.block(pcb.getProcessId(), cpu.getInstrCount() - pcb.dispatchedAt);
+        req.blocked = true;
+        save(core);
+        m_running[core] = null;
+        debugPrintln("Process " + pcb.getProcessId() + " is waiting for device " + di.getId());
+        dispatch(core);
+    }//requestIO
+    
+    /**
+     * Starts the device working on a request.
+     *
+     * @param req   the request (the first one in its device's queue)
+     * @param time  the time (in cycles) the device starts working on it
+     */
+    private void startIO(IORequest req, long time)
+    {
+        req.due = time + req.device.latency;
+        req.seq = m_ioStarted++;
+        m_pendingIO.add(req);
+    }//startIO
+    
+    /**
+     * Takes the I/O completion interrupt for every request that is done as
+     * of the given core's time.
+     *
+     * @param core  the index of the core
+     * @return true if a process that was waiting was woken up
+     */
+    private boolean checkIOInterrupts(int core)
+    {
+        long now = m_CPUs[core].getClock().getCycles();
+        boolean woke = false;
+        while (!m_pendingIO.isEmpty() && m_pendingIO.peek().due <= now)
+            woke |= interruptIOComplete(m_pendingIO.poll());
+        return woke;
+    }//checkIOInterrupts
+    
+    /**
+     * Handles the I/O completion interrupt of a device: the device does the
+     * request, the result is pushed onto the stack of the process that made
+     * it (the value read, if any, and then a return code) and the process
+     * is woken up.  The device then starts on the next request in its
+     * queue.
+     *
+     * @param req  the request that is done
+     * @return true if the process that made it was waiting off its core
+     */
+    private boolean interruptIOComplete(IORequest req)
+    {
+        DeviceInfo di = req.device;
+        ProcessControlBlock pcb = req.pcb;
+        if (req.count >= 0)
+        {
+            transferVector(pcb, di, req.read, req.addr, req.buffer, req.count);
+            pushStack(pcb, req.count);
+        }
+        else if (req.read)
+            pushStack(pcb, di.getDevice().read(req.addr));
+        else
+            di.getDevice().write(req.addr, req.value);
+        pushStack(pcb, SUCCESS);
+        req.done = true;
+        m_ioWaitCycles += req.due - req.issued;
+        
+        di.queue.poll();
+        IORequest next = di.queue.peek();
+        if (next != null)
+            startIO(next, req.due);
+        
+        if (!req.blocked)
+            return false;
+        if (pcb.scheduled)
+            m_scheduler.wakeup(pcb.getProcessId());
+        else
+        {
+            pcb.scheduled = true;
+            m_scheduler.add(pcb.getProcessId());
+        }
+        debugPrintln("Process " + pcb.getProcessId() + " is done with device " + di.getId());
+        return true;
+    }//interruptIOComplete
+    
+    /**
+     * Pushes a value onto the stack of a process that may not be running
+     * (like CPU.pushStack does for the running one).  The process has just
+     * popped the arguments of its system call from there so the stack
+     * page is mapped.  The stack may run down into the code so the write
+     * is reported to the process' instruction cache.
+     *
+     * @return false if the stack is full
+     */
+    private boolean pushStack(ProcessControlBlock pcb, int val)
+    {
+        int regs[] = registersOf(pcb);
+        if (regs[CPU.SP] <= regs[CPU.BASE])
+            return false;
+        int phys = physical(pcb.pageTable, regs[CPU.SP] - 1);
+        if (phys < 0)
+            return false;
+        regs[CPU.SP]--;
+        m_RAM.write(phys, val);
+        if (pcb.icache != null)
+            pcb.icache.write(regs[CPU.SP] - regs[CPU.BASE], val);
+        return true;
+    }//pushStack
+    
+    /*======================================================================
+     * Process Management Methods
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * @return the index of the core that the calling thread is running
+     */
+    private int getCore()
+    {
+        Integer core = m_coreId.get();
+        return (core == null) ? 0 : core;
+    }
+    
+    /**
+     * @return the CPU that the calling thread is running
+     */
+    private CPU getCPU()
+    {
+        return m_CPUs[getCore()];
+    }
+    
+    /**
+     * getClock
+     * 
+     * @return the simulated clock of the core the calling thread is running
+     *         (core 0 for threads that aren't running a core)
+     */
+    public Clock getClock()
+    {
+        return getCPU().getClock();
+    }
+    
+    /**
+     * @return the process running on the calling thread's core
+     */
+    private ProcessControlBlock getCurrProcess()
+    {
+        return m_running[getCore()];
+    }
+    
+    /**
+     * Give the process the scheduler picks to the given core.  If no process
+     * is ready the core is halted.
+     * 
+     * @param core  the index of the core
+     */
+    private void dispatch(int core)
+    {
+        int pid = m_scheduler.dispatch(core);
+        
+        //If nothing is ready but a process will be once enough time has
+        //passed or a device is done the core idles until then
+        Clock clock = m_CPUs[core].getClock();
+        while (pid < 0)
+        {
+            long now = clock.getCycles();
+            long wakeup = m_scheduler.getNextWakeup();
+            if (wakeup <= now)
+                wakeup = Long.MAX_VALUE;
+            if (!m_pendingIO.isEmpty())
+                wakeup = Math.min(wakeup, Math.max(now, m_pendingIO.peek().due));
+            if (wakeup == Long.MAX_VALUE)
+                break;
+            m_idleCycles += wakeup - now;
+            clock.advance(wakeup - now);
+            checkIOInterrupts(core);
+            pid = m_scheduler.dispatch(core);
+        }
+        start(core, m_processes.get(pid));
+    }//dispatch
+    
+    /**
+     * Starts the time slice of the process that was just given the given
+     * core.
+     * 
+     * @param core  the index of the core
+     * @param pcb   the process
+     */
+    private void startSlice(int core, ProcessControlBlock pcb)
+    {
+        long quantum = m_scheduler.getQuantum(pcb.getProcessId());
+        long now = m_CPUs[core].getInstrCount();
+        pcb.dispatchedAt = now;
+        m_sliceEnd[core] = (quantum <= 0) ? Long.MAX_VALUE : now + quantum;
+        armTimer(core);
+    }//startSlice
+    
+    /**
+     * Sets the timer of the given core to go off when the time slice of its
+     * process ends or the next device request is due, whichever is first.
+     * The timer counts instructions and each one takes at least a cycle so
+     * it never goes off before a request is due (but may a little after).
+     * 
+     * @param core  the index of the core
+     */
+    private void armTimer(int core)
+    {
+        CPU cpu = m_CPUs[core];
+        IORequest next = m_pendingIO.peek();
+        if (m_sliceEnd[core] == Long.MAX_VALUE && next == null)
+        {
+            cpu.setTimer(0);
+            return;
+        }
+        long until = m_sliceEnd[core] - cpu.getInstrCount();
+        if (next != null)
+            until = Math.min(until, next.due - cpu.getClock().getCycles());
+        cpu.setTimer(Math.max(1, until));
+    }//armTimer
+    
+    /**
+     * Give the given process to the given core (or halt the core if there is
+     * no process).
+     * 
+     * @param core  the index of the core
+     * @param pcb   the process (null if there is none)
+     */
+    private void start(int core, ProcessControlBlock pcb)
+    {
+        long startTime = System.nanoTime();
+        m_running[core] = pcb;
+        if (pcb == null)
+        {
+            debugPrintln("Core " + core + " has nothing to run and is halting");
+            m_CPUs[core].halt();
+            return;
+        }
+        
+        pcb.restore(m_CPUs[core]);
+        startSlice(core, pcb);
+        m_CPUs[core].resume();
+        
+        //Loading the registers is one burst from RAM
+        Clock clock = m_CPUs[core].getClock();
+        long cycles = clock.getBurstCycles(CPU.NUMREG);
+        clock.advance(cycles);
+        if (pcb.firstRun < 0)
+            pcb.firstRun = clock.getCycles();
+        m_switchCycles += cycles;
+        m_contextSwitches++;
+        m_switchNanos += System.nanoTime() - startTime;
+        debugPrintln("Process " + pcb.getProcessId() + " dispatched to core " + core);
+    }//start
+    
+    /**
+     * Takes the process running on the given core off it (while it is still
+     * ready to run) and gives the core the process the scheduler picks next.
+     * If that is the same process it just carries on.
+     * 
+     * @param core     the index of the core
+     * @param expired  true if the process used up its time slice, false if
+     *                 it gave up the core itself
+     */
+    private void preempt(int core, boolean expired)
+    {
+        CPU cpu = m_CPUs[core];
+        ProcessControlBlock pcb = m_running[core];
+        m_scheduler.yield(pcb.getProcessId(), cpu.getInstrCount() - pcb.dispatchedAt, expired);
+        ProcessControlBlock next = m_processes.get(m_scheduler.dispatch(core));
+        if (next == pcb)
+        {
+            startSlice(core, pcb);
+            return;
+        }
+        
+        save(core);
+        if (expired)
+            m_preemptions++;
+        debugPrintln("Process " + pcb.getProcessId() + " preempted on core " + core);
+        start(core, next);
+    }//preempt
+    
+    /**
+     * Saves the registers of the process running on the given core so it
+     * can be taken off the core.
+     * 
+     * @param core  the index of the core
+     */
+    private void save(int core)
+    {
+        long startTime = System.nanoTime();
+        CPU cpu = m_CPUs[core];
+        m_running[core].save(cpu);
+        
+        //Saving the registers is one burst to RAM
+        Clock clock = cpu.getClock();
+        long cycles = clock.getBurstCycles(CPU.NUMREG);
+        clock.advance(cycles);
+        m_switchCycles += cycles;
+        m_switchNanos += System.nanoTime() - startTime;
+    }//save
+    
+    /**
+     * setScheduler
+     * 
+     * Sets the policy that decides which process runs next.  This must be
+     * done before any process is created.
+     * 
+     * @param sched  the scheduler
+     */
+    public synchronized void setScheduler(Scheduler sched)
+    {
+        m_scheduler = sched;
+    }//setScheduler
+    
+    /**
+     * getScheduler
+     * 
+     * @return the policy that decides which process runs next
+     */
+    public Scheduler getScheduler()
+    {
+        return m_scheduler;
+    }
+    
+    /**
+     * setQuantum
+     * 
+     * Schedules processes round robin: each one may run this long before
+     * the next process that is ready gets its core.  This must be done
+     * before any process is created.
+     * 
+     * @param quantum  the time slice in instructions (0 to let each process
+     *                 run until it gives up its core)
+     */
+    public void setQuantum(long quantum)
+    {
+        setScheduler(new RoundRobinScheduler(quantum));
+    }//setQuantum
+    
+    /**
+     * getIdleCycles
+     * 
+     * @return the simulated time cores spent waiting for a process to
+     *         become ready
+     */
+    public synchronized long getIdleCycles()
+    {
+        return m_idleCycles;
+    }
+    
+    /**
+     * getFinished
+     * 
+     * @return what happened to each process that has exited so far
+     */
+    public synchronized List<ProcessRecord> getFinished()
+    {
+        return new ArrayList<ProcessRecord>(m_finished);
+    }
+    
+    /**
+     * clearFinished
+     * 
+     * Forgets the processes that have exited so far so that a long running
+     * stream of processes doesn't fill the host's memory with their records.
+     */
+    public synchronized void clearFinished()
+    {
+        m_finished.clear();
+    }
+    
+    /**
+     * getFaults
+     * 
+     * @return the number of processes that were ended because of a fault
+     */
+    public synchronized long getFaults()
+    {
+        return m_faults;
+    }
+    
+    /**
+     * getContextSwitches
+     * 
+     * @return the number of times a process has been given a core
+     */
+    public synchronized long getContextSwitches()
+    {
+        return m_contextSwitches;
+    }
+    
+    /**
+     * getPreemptions
+     * 
+     * @return the number of times a process has been taken off its core
+     *         because its time slice was used up
+     */
+    public synchronized long getPreemptions()
+    {
+        return m_preemptions;
+    }
+    
+    /**
+     * getSwitchNanos
+     * 
+     * @return the host time spent saving and loading processes
+     */
+    public synchronized long getSwitchNanos()
+    {
+        return m_switchNanos;
+    }
+    
+    /**
+     * getSwitchCycles
+     * 
+     * @return the simulated time charged for saving and loading processes
+     */
+    public synchronized long getSwitchCycles()
+    {
+        return m_switchCycles;
+    }
+    
+    /**
+     * run
+     * 
+     * Runs every core until all of them have halted.  With more than one
+     * core each one gets its own host thread.
+     */
+    public void run()
+    {
+        synchronized (this)
+        {
+            m_activeCores = m_CPUs.length;
+            m_parkedCores = 0;
+        }
+        
+        if (m_CPUs.length == 1)
+        {
+            runCore(0);
+            return;
+        }
+        
+        Thread threads[] = new Thread[m_CPUs.length];
+        for (int i = 0; i < m_CPUs.length; i++)
+        {
+            final int core = i;
+            threads[i] = new Thread("CPU " + i)
+            {
+                public void run()
+                {
+                    m_coreId.set(core);
+                    runCore(core);
+                }
+            };
+            threads[i].start();
+        }
+        
+        //Wait for every core to finish
+        for (Thread t : threads)
+        {
+            try
+            {
+                t.join();
+            }
+            catch(InterruptedException ie) { /* keep waiting for the rest */ }
+        }
+    }//run
+    
+    /**
+     * runCore
+     * 
+     * Runs one core until it halts.  When checkpoints are being taken the
+     * core is run a slice at a time so it can stop for a checkpoint.
+     * 
+     * @param core  the index of the core
+     */
+    private void runCore(int core)
+    {
+        CPU cpu = m_CPUs[core];
+        long slice = (m_checkpoint == null) ? Long.MAX_VALUE : CHECKPOINT_SLICE;
+        while (cpu.run(slice) != CPU.RUN_HALT)
+        {
+            if (m_checkpointRequested || cpu.getInstrCount() >= m_nextCheckpoint[core])
+                safepoint();
+        }
+        coreStopped();
+    }//runCore
+    
+    /*======================================================================
+     * Program Management Methods
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * Create a process out of the given program and allocate the necessary space
+     * for that program in our RAM.  The process is given to an idle core
+     * right away if there is one; otherwise it waits for the scheduler to
+     * pick it.
+     * 
+     * @param prog      - The program to create the process for.
+     * @param allocSize - The amount of memory to allocate for the program.
+     * @return true if the process was created
+     */
+    public boolean createProcess(Program prog, int allocSize)
+    {
+        return createProcess(prog, allocSize, 0, 0, 0);
+    }//createProcess
+    
+    /**
+     * Create a real-time process out of the given program.  It is periodic:
+     * each period it is released to do a job which must be done (with the
+     * NEXTPERIOD system call) by its deadline.  The scheduler must be an
+     * EDFScheduler and the process is refused if admitting it could make
+     * processes miss their deadlines.
+     * 
+     * @param prog      - The program to create the process for.
+     * @param allocSize - The amount of memory to allocate for the program.
+     * @param period    - The cycles between releases of its jobs (0 for a
+     *                    best-effort process).
+     * @param deadline  - How many cycles after its release each job is due.
+     * @param budget    - The most cycles a job takes.
+     * @return true if the process was created
+     */
+    public synchronized boolean createProcess(Program prog, int allocSize,
+                                           long period, long deadline, long budget)
+    {
+        long arrival = getClock().getCycles();
+        
+        //See whether a real-time process can be admitted before loading it
+        if (period > 0)
+        {
+            if (!(m_scheduler instanceof EDFScheduler))
+            {
+                System.out.println("\nERROR: Real-time processes need an EDF scheduler");
+                return false;
+            }
+            EDFScheduler edf = (EDFScheduler)m_scheduler;
+            if (!edf.canAdmit(period, deadline, budget))
+            {
+                edf.reject();
+                System.out.println("\nERROR: Real-time process refused admission");
+                return false;
+            }
+        }
+        
+        //Compile the program into an array of int.
+        int[] compiledProg = prog.export();
+        
+        //Refuse to load code that could never run correctly.  Everything
+        //proved here is never checked again by the CPU.
+        String problem = Verifier.verify(prog, compiledProg, allocSize);
+        if (problem != null)
+        {
+            System.out.println("\nERROR: Program rejected: " + problem);
+            return false;
+        }
+        
+        //Each process gets a free block of RAM.  (Honor the value of the
+        //allocSize parameter given and leave space for a stack and heap.)
+        //With paging a process' memory starts at virtual address 0 and only
+        //the pages holding its code are given frames now.  The rest get one
+        //when they are first touched.
+        int base;
+        int pageTable[] = null;
+        if (m_paging)
+        {
+            base = 0;
+            pageTable = new int[(allocSize + RAM.PAGE_SIZE) >>> RAM.PAGE_SHIFT];
+            Arrays.fill(pageTable, -1);
+            int codePages = (compiledProg.length + RAM.PAGE_SIZE - 1) >>> RAM.PAGE_SHIFT;
+            if (codePages > m_numFreeFrames)
+            {
+                System.out.println("\nERROR: Not enough memory to load the program");
+                return false;
+            }
+            for (int page = 0; page < codePages; page++)
+                pageTable[page] = allocFrame();
+        }
+        else
+        {
+            base = allocBlock(allocSize + 1);
+            if (base < 0)
+            {
+                System.out.println("\nERROR: Not enough memory to load the program");
+                return false;
+            }
+        }
+        
+        //Copy the given program into the simulated RAM. 
+        long cycles = transfer(pageTable, base, compiledProg, compiledProg.length, true);
+        getClock().advance(cycles);
+        
+        //Set the BASE and LIMIT registers based upon the allocation size given,
+        //the PC at the beginning of the program and the SP at the opposite
+        //side of the process' memory.
+        ProcessControlBlock pcb = new ProcessControlBlock(m_nextProcessId++);
+        pcb.program = prog.getFileName();
+        pcb.arrival = arrival;
+        pcb.pageTable = pageTable;
+        pcb.registers[CPU.BASE] = base;
+        pcb.registers[CPU.LIM] = base + allocSize;
+        pcb.registers[CPU.PC] = base;
+        pcb.registers[CPU.SP] = base + allocSize - 1;
+        
+        //Decode the program once up front so the CPU doesn't have to.
+        pcb.codeLength = compiledProg.length;
+        pcb.icache = new InstructionCache(compiledProg, allocSize + 1);
+        pcb.icache.setProgram(prog);
+        
+        pcb.period = period;
+        pcb.deadline = deadline;
+        pcb.budget = budget;
+        if (period > 0)
+            ((EDFScheduler)m_scheduler).admit(pcb.getProcessId(), period, deadline, budget);
+        m_processes.put(pcb.getProcessId(), pcb);
+        m_scheduler.add(pcb.getProcessId());
+        prog.callCount++;
+        
+        //Start it right away if a core is free
+        for (int core = 0; core < m_CPUs.length; core++)
+        {
+            if (m_running[core] == null)
+            {
+                dispatch(core);
+                break;
+            }
+        }
+        return true;
+    }//createProcess
+        
+    /*======================================================================
+     * Checkpoint Methods
+     *----------------------------------------------------------------------
+     */
+
+    /**
+     * setCheckpoint
+     * 
+     * Saves checkpoints of the machine to the given file.  This must be
+     * done before the OS starts running.
+     * 
+     * @param cp        where to save checkpoints (null to stop saving them)
+     * @param interval  how many instructions each core runs between
+     *                  checkpoints.  If 0 they are only taken on request.
+     */
+    public synchronized void setCheckpoint(Checkpoint cp, long interval)
+    {
+        m_checkpoint = cp;
+        m_checkpointInterval = (cp == null) ? 0 : interval;
+        for (int core = 0; core < m_CPUs.length; core++)
+            m_nextCheckpoint[core] = nextCheckpointAt(core);
+    }//setCheckpoint
+    
+    /**
+     * @return the instruction count at which the given core should ask for
+     *         the next periodic checkpoint
+     */
+    private long nextCheckpointAt(int core)
+    {
+        if (m_checkpointInterval <= 0)
+            return Long.MAX_VALUE;
+        return m_CPUs[core].getInstrCount() + m_checkpointInterval;
+    }
+    
+    /**
+     * requestCheckpoint
+     * 
+     * Asks for a checkpoint to be taken as soon as every running core has
+     * reached a safe point.  This may be called from any thread.
+     */
+    public void requestCheckpoint()
+    {
+        m_checkpointRequested = true;
+    }//requestCheckpoint
+    
+    /**
+     * Called by a core that has stopped to take a checkpoint.  The last
+     * core to stop takes it and then lets all of them continue.
+     */
+    private synchronized void safepoint()
+    {
+        m_checkpointRequested = true;
+        m_parkedCores++;
+        if (m_parkedCores >= m_activeCores)
+        {
+            takeCheckpoint();
+            return;
+        }
+        
+        long taken = m_safepoints;
+        while (taken == m_safepoints)
+        {
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException ie) { /* keep waiting */ }
+        }
+    }//safepoint
+    
+    /**
+     * Called by a core that has halted for good.  If the other cores are all
+     * waiting for a checkpoint it is taken now.
+     */
+    private synchronized void coreStopped()
+    {
+        m_activeCores--;
+        if (m_checkpointRequested && m_parkedCores >= m_activeCores)
+            takeCheckpoint();
+    }//coreStopped
+    
+    /**
+     * Takes a checkpoint while every core is stopped and wakes them up.
+     */
+    private void takeCheckpoint()
+    {
+        checkpoint();
+        m_checkpointRequested = false;
+        m_parkedCores = 0;
+        m_safepoints++;
+        for (int core = 0; core < m_CPUs.length; core++)
+            m_nextCheckpoint[core] = nextCheckpointAt(core);
+        notifyAll();
+    }//takeCheckpoint
+    
+    /**
+     * checkpoint
+     * 
+     * Saves a checkpoint right away.  None of the cores may be running while
+     * this is done (use {@link #requestCheckpoint} while the OS is running).
+     * 
+     * @return true if the checkpoint was saved
+     */
+    public synchronized boolean checkpoint()
+    {
+        if (m_checkpoint == null)
+        {
+            System.out.println("\nERROR: No checkpoint file has been given");
+            return false;
+        }
+        
+        try
+        {
+            m_checkpoint.save(m_RAM, saveState());
+            debugPrintln("Checkpoint " + m_checkpoint.getSequence() + " saved ("
+                         + m_checkpoint.getPagesWritten() + " pages)");
+            return true;
+        }
+        catch(IOException e)
+        {
+            System.out.println("\nERROR: Could not save checkpoint: " + e);
+            return false;
+        }
+    }//checkpoint
+    
+    /**
+     * restore
+     * 
+     * Replaces the state of the machine with the most recent checkpoint.
+     * This must be done before the OS starts running and after the same
+     * devices have been registered as when the checkpoint was taken.
+     * 
+     * @return true if a checkpoint was restored
+     */
+    public synchronized boolean restore()
+    {
+        if (m_checkpoint == null)
+            return false;
+        
+        try
+        {
+            byte state[] = m_checkpoint.restore(m_RAM);
+            if (state == null)
+                return false;
+            restoreState(state);
+            debugPrintln("Checkpoint " + m_checkpoint.getSequence() + " restored");
+            return true;
+        }
+        catch(IOException e)
+        {
+            System.out.println("\nERROR: Could not restore checkpoint: " + e);
+            return false;
+        }
+    }//restore
+    
+    /**
+     * Writes the state of the CPUs and the process and device tables (i.e.,
+     * everything but the RAM) into a byte array.  Running processes are
+     * saved with the values their CPU registers have now.
+     */
+    private byte[] saveState() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        
+        out.writeInt(m_nextProcessId);
+        out.writeInt(m_allocStrategy);
+        out.writeInt(m_freeList.size());
+        for (MemBlock b : m_freeList)
+        {
+            out.writeInt(b.getAddr());
+            out.writeInt(b.getSize());
+        }
+        out.writeBoolean(m_paging);
+        out.writeLong(m_pageFaults);
+        out.writeInt(m_numFreeFrames);
+        for (int i = 0; i < m_numFreeFrames; i++)
+            out.writeInt(m_freeFrames[i]);
+        
+        out.writeInt(m_CPUs.length);
+        for (CPU cpu : m_CPUs)
+        {
+            out.writeLong(cpu.getInstrCount());
+            out.writeLong(cpu.getClock().getCycles());
+        }
+        
+        //Running processes first so they can get their cores back
+        out.writeInt(m_processes.size() + m_CPUs.length);
+        for (int core = 0; core < m_CPUs.length; core++)
+        {
+            ProcessControlBlock pcb = m_running[core];
+            if (pcb == null)
+                out.writeInt(-1);
+            else
+                writeProcess(out, pcb, core, m_CPUs[core].getRegisters());
+        }
+        for (ProcessControlBlock pcb : m_processes.values())
+            if (!Arrays.asList(m_running).contains(pcb))
+                writeProcess(out, pcb, -1, pcb.registers);
+            else
+                out.writeInt(-1);
+        
+        //The requests each device has yet to finish go with it.  Only
+        //processes that gave up their cores can have one.
+        out.writeInt(m_devices.size());
+        ArrayList<ProcessControlBlock> procs = m_processes.values();
+        for (DeviceInfo di : m_devices.values())
+        {
+            out.writeInt(di.getId());
+            out.writeInt(di.numOpen);
+            for (ProcessControlBlock pcb : procs)
+                if (di.containsProcess(pcb))
+                    out.writeInt(pcb.getProcessId());
+            out.writeInt(di.queue.size());
+            for (IORequest req : di.queue)
+            {
+                out.writeInt(req.pcb.getProcessId());
+                out.writeBoolean(req.read);
+                out.writeInt(req.addr);
+                out.writeInt(req.value);
+                out.writeInt(req.buffer);
+                out.writeInt(req.count);
+                out.writeLong(req.issued);
+                out.writeLong(req.due);
+            }
+        }
+        
+        out.flush();
+        return bytes.toByteArray();
+    }//saveState
+    
+    /**
+     * Writes one process table entry for saveState.
+     */
+    private void writeProcess(DataOutputStream out, ProcessControlBlock pcb,
+                              int core, int[] regs) throws IOException
+    {
+        out.writeInt(pcb.getProcessId());
+        out.writeInt(core);
+        out.writeInt(pcb.codeLength);
+        out.writeUTF(String.valueOf(pcb.program));
+        out.writeLong(pcb.arrival);
+        out.writeLong(pcb.firstRun);
+        out.writeLong(pcb.period);
+        out.writeLong(pcb.deadline);
+        out.writeLong(pcb.budget);
+        out.writeBoolean(isWaiting(pcb));
+        for (int i = 0; i < CPU.NUMREG; i++)
+            out.writeInt(regs[i]);
+        if (pcb.pageTable == null)
+            out.writeInt(-1);
+        else
+        {
+            out.writeInt(pcb.pageTable.length);
+            for (int frame : pcb.pageTable)
+                out.writeInt(frame);
+        }
+    }//writeProcess
+    
+    /**
+     * @return true if the given process is waiting for a device request
+     */
+    private boolean isWaiting(ProcessControlBlock pcb)
+    {
+        for (DeviceInfo di : m_devices.values())
+            for (IORequest req : di.queue)
+                if (req.pcb == pcb)
+                    return true;
+        return false;
+    }//isWaiting
+    
     /**
-     * Create a process out of the given program and allocate the necessary space
-     * for that program in our RAM.
-     * 
-     * @param prog      - The program to create the process for.
-     * @param allocSize - The amount of memory to allocate for the program.
+     * Replaces the state of the CPUs and the process and device tables with
+     * state written by saveState.  The RAM must already have been restored
+     * since the code of each process is decoded from it again.
      */
-    public void createProcess(Program prog, int allocSize)
+    private void restoreState(byte[] state) throws IOException
     {
-        //Compile the program into an array of int.
-        int[] compiledProg = prog.export();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
         
-        //Set the BASE and LIMIT registers based upon the allocation size given.
-        m_CPU.setBASE(0);
-        //Honor the value of the allocSize parameter given and leave space for a stack and heap.
-        m_CPU.setLIM(m_CPU.getBASE() + allocSize);
+        m_nextProcessId = in.readInt();
+        setAllocStrategy(in.readInt());
+        m_freeList.clear();
+        int numBlocks = in.readInt();
+        for (int i = 0; i < numBlocks; i++)
+            m_freeList.add(new MemBlock(in.readInt(), in.readInt()));
+        setPaging(in.readBoolean());
+        m_pageFaults = in.readLong();
+        m_numFreeFrames = in.readInt();
+        for (int i = 0; i < m_numFreeFrames; i++)
+            m_freeFrames[i] = in.readInt();
         
-        //Copy the given program into the simulated RAM. 
-        for(int i = 0; i < compiledProg.length; i++)
-            m_RAM.write(i + m_CPU.getBASE(), compiledProg[i]);
+        int numCores = in.readInt();
+        for (int core = 0; core < numCores; core++)
+        {
+            long count = in.readLong();
+            long cycles = in.readLong();
+            if (core < m_CPUs.length)
+            {
+                m_CPUs[core].setInstrCount(count);
+                m_CPUs[core].getClock().setCycles(cycles);
+            }
+        }
         
-        //Set the PC at the beginning of the program. 
-        m_CPU.setPC(m_CPU.getBASE());
-        //Set the SP to the opposite side of the RAM.
-        m_CPU.setSP(m_CPU.getLIM() - 1);
-    }//createProcess
+        //Rebuild the process table.  A process goes back to the core it was
+        //running on if this machine still has that core.  The others are
+        //handed to the scheduler again in the order they were created,
+        //except for those waiting for a device which are handed to it when
+        //the device is done.
+        Arrays.fill(m_running, null);
+        m_processes.clear();
+        m_pendingIO.clear();
+        int numProcs = in.readInt();
+        for (int i = 0; i < numProcs; i++)
+        {
+            int pid = in.readInt();
+            if (pid < 0)
+                continue;
+            int core = in.readInt();
+            ProcessControlBlock pcb = new ProcessControlBlock(pid);
+            pcb.codeLength = in.readInt();
+            pcb.program = in.readUTF();
+            pcb.arrival = in.readLong();
+            pcb.firstRun = in.readLong();
+            pcb.period = in.readLong();
+            pcb.deadline = in.readLong();
+            pcb.budget = in.readLong();
+            pcb.scheduled = !in.readBoolean();
+            for (int r = 0; r < CPU.NUMREG; r++)
+                pcb.registers[r] = in.readInt();
+            int numPages = in.readInt();
+            if (numPages >= 0)
+            {
+                pcb.pageTable = new int[numPages];
+                for (int page = 0; page < numPages; page++)
+                    pcb.pageTable[page] = in.readInt();
+            }
+            
+            int base = pcb.registers[CPU.BASE];
+            int code[] = new int[pcb.codeLength];
+            transfer(pcb.pageTable, base, code, code.length, false);
+            pcb.icache = new InstructionCache(code, pcb.registers[CPU.LIM] - base + 1);
+            if (m_buddy != null && pcb.pageTable == null)
+                m_buddy.reserve(base, pcb.registers[CPU.LIM] - base + 1);
+            m_processes.put(pid, pcb);
+            if (pcb.period > 0 && m_scheduler instanceof EDFScheduler)
+                ((EDFScheduler)m_scheduler).admit(pid, pcb.period, pcb.deadline, pcb.budget);
+            if (pcb.scheduled)
+                m_scheduler.add(pid);
+            
+            if (core >= 0 && core < m_CPUs.length)
+            {
+                m_running[core] = pcb;
+                m_scheduler.dispatch(core);
+                pcb.restore(m_CPUs[core]);
+                startSlice(core, pcb);
+                m_CPUs[core].resume();
+            }
+        }
+        
+        //Reopen devices for the processes that had them open and queue
+        //their requests again
+        for (DeviceInfo di : m_devices.values())
+        {
+            di.numOpen = 0;
+            di.queue.clear();
+        }
+        int numDevices = in.readInt();
+        for (int i = 0; i < numDevices; i++)
+        {
+            DeviceInfo di = m_devices.get(in.readInt());
+            int numOpen = in.readInt();
+            for (int j = 0; j < numOpen; j++)
+            {
+                ProcessControlBlock pcb = m_processes.get(in.readInt());
+                if (di != null && pcb != null)
+                    di.addProcess(pcb);
+            }
+            int numRequests = in.readInt();
+            for (int j = 0; j < numRequests; j++)
+            {
+                ProcessControlBlock pcb = m_processes.get(in.readInt());
+                boolean read = in.readBoolean();
+                int addr = in.readInt();
+                int value = in.readInt();
+                int buffer = in.readInt();
+                int count = in.readInt();
+                IORequest req = new IORequest(pcb, di, read, addr, value, in.readLong());
+                req.buffer = buffer;
+                req.count = count;
+                long due = in.readLong();
+                if (di == null || pcb == null)
+                    continue;
+                req.blocked = true;
+                di.queue.add(req);
+                if (due >= 0)
+                    startIO(req, due - di.latency);
+            }
+        }
+        
+        for (int core = 0; core < m_CPUs.length; core++)
+            if (m_running[core] == null)
+                dispatch(core);
+    }//restoreState
         
     /*======================================================================
      * Interrupt Handlers
@@ -168,20 +2031,85 @@ public class SOS implements CPU.TrapHandler
      * @param addr - The illegal address that is trying to be accessed
      */
     @Override
-    public void interruptIllegalMemoryAccess(int addr)
+    public synchronized void interruptIllegalMemoryAccess(int addr)
+    {
+        fault(EXIT_ILLEGAL_MEMORY, "Illegal Memory Access at Address " + addr);
+    }
+
+    /**
+     * Handle the timer going off.  Either the current process has used up
+     * its time slice, so the scheduler may give the core to another process,
+     * or a device request is due and its completion interrupt is taken.
+     */
+    @Override
+    public synchronized void interruptClock()
+    {
+        int core = getCore();
+        boolean woke = checkIOInterrupts(core);
+        if (m_running[core] == null)
+            return;
+        
+        //A process a device has woken up may get the core before the
+        //current one has used up its time slice
+        boolean expired = m_CPUs[core].getInstrCount() >= m_sliceEnd[core];
+        if (expired || woke)
+            preempt(core, expired);
+        else
+            armTimer(core);
+    }
+
+    /**
+     * Handle a page fault by giving the current process a frame full of
+     * zeroes for the page it touched.  Touching a page outside the process'
+     * memory is an illegal memory access.
+     * 
+     * @param addr - The virtual address that was accessed
+     */
+    @Override
+    public synchronized void interruptPageFault(int addr)
     {
-        System.out.println("\nERROR: Illegal Memory Access at Address " + addr);
-        System.exit(0);
+        ProcessControlBlock pcb = getCurrProcess();
+        int page = addr >>> RAM.PAGE_SHIFT;
+        if (pcb == null || pcb.pageTable == null || page >= pcb.pageTable.length)
+        {
+            interruptIllegalMemoryAccess(addr);
+            return;
+        }
+        
+        mapPage(pcb, addr);
     }
+    
+    /**
+     * Gives a process a frame full of zeroes for the page an address is in.
+     * If there is no free frame that is a fault and the process is ended.
+     * 
+     * @param pcb   the process (running on the calling thread's core)
+     * @param addr  a virtual address in the page
+     * @return true if the page was mapped
+     */
+    private boolean mapPage(ProcessControlBlock pcb, int addr)
+    {
+        int page = addr >>> RAM.PAGE_SHIFT;
+        int frame = allocFrame();
+        if (frame < 0)
+        {
+            fault(EXIT_OUT_OF_MEMORY, "Out of memory at Address " + addr);
+            return false;
+        }
+        pcb.pageTable[page] = frame;
+        m_pageFaults++;
+        debugPrintln("Process " + pcb.getProcessId() + " was given frame " + frame
+                     + " for page " + page);
+        return true;
+    }//mapPage
 
     /**
      * Interrupt the current process due to an attempt to divide by zero and end the process.
      */
     @Override
-    public void interruptDivideByZero()
+    public synchronized void interruptDivideByZero()
     {
-        System.out.println("\nERROR: Division by Zero");
-        System.exit(0);
+        fault(EXIT_DIVIDE_BY_ZERO, "Division by Zero");
     }
 
     /**
@@ -191,12 +2119,101 @@ public class SOS implements CPU.TrapHandler
      * @param instr - The illegal instruction that is trying to execute.
      */
     @Override
-    public void interruptIllegalInstruction(int[] instr)
+    public synchronized void interruptIllegalInstruction(int[] instr)
     {
-        System.out.println("\nERROR: Illegal Instruction Attempted: " + Arrays.toString(instr));
-        System.exit(0);
+        fault(EXIT_ILLEGAL_INSTRUCTION, "Illegal Instruction Attempted: " + Arrays.toString(instr));
     }
     
+    /**
+     * Reports a fault and ends the process running on the calling thread's
+     * core, which then runs the next ready process.  The rest of the system
+     * carries on.  A fault during a system call (e.g., there is no frame
+     * for the page the OS pushes a result onto) only marks the process and
+     * it is ended once the system call is done.
+     * 
+     * @param status  the exit status to record (one of the EXIT_ constants)
+     * @param reason  what went wrong
+     */
+    private void fault(int status, String reason)
+    {
+        System.out.println("\nERROR: " + reason);
+        int core = getCore();
+        ProcessControlBlock pcb = m_running[core];
+        if (pcb == null || pcb.fault != null)
+            return;
+        pcb.exitStatus = status;
+        pcb.fault = reason;
+        m_faults++;
+        if (m_inSysCall[core])
+            m_doomed[core] = pcb;
+        else
+            terminate(pcb);
+    }//fault
+    
+    /**
+     * Ends a process: its memory and devices are given back, any device
+     * requests it is waiting for are cancelled and what happened to it is
+     * recorded.  If it is running on the calling thread's core the core is
+     * given the next ready process.
+     * 
+     * @param pcb  the process (running on the calling thread's core or not
+     *             running at all)
+     */
+    private void terminate(ProcessControlBlock pcb)
+    {
+        int pid = pcb.getProcessId();
+        if (m_processes.get(pid) != pcb)
+            return; //It has already been ended
+        debugPrintln("Process " + pid + " has exited with status " + pcb.exitStatus);
+        
+        int regs[] = registersOf(pcb);
+        freeFrames(pcb);
+        if (pcb.pageTable == null)
+            freeBlock(regs[CPU.BASE], regs[CPU.LIM] - regs[CPU.BASE] + 1);
+        releaseDevices(pcb);
+        m_processes.remove(pid);
+        m_scheduler.exit(pid);
+        m_finished.add(new ProcessRecord(pid, pcb.program, pcb.arrival, pcb.firstRun,
+                                         getClock().getCycles(), pcb.exitStatus, pcb.fault));
+        
+        int core = getCore();
+        if (m_running[core] == pcb)
+            dispatch(core);
+    }//terminate
+    
+    /**
+     * Closes every device a process has open and takes its requests out of
+     * their queues.  A device that was working on one of them starts on the
+     * next request right away.
+     * 
+     * @param pcb  the process
+     */
+    private void releaseDevices(ProcessControlBlock pcb)
+    {
+        long now = getClock().getCycles();
+        for (int word = 0; word < pcb.openDevices.length; word++)
+        {
+            long bits = pcb.openDevices[word];
+            while (bits != 0)
+            {
+                DeviceInfo di = m_deviceIndex.get(word * 64 + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+                
+                IORequest head = di.queue.peek();
+                for (Iterator<IORequest> it = di.queue.iterator(); it.hasNext(); )
+                    if (it.next().pcb == pcb)
+                        it.remove();
+                if (head != null && head.pcb == pcb)
+                {
+                    m_pendingIO.remove(head);
+                    if (!di.queue.isEmpty())
+                        startIO(di.queue.peek(), now);
+                }
+                di.removeProcess(pcb);
+            }
+        }
+    }//releaseDevices
+    
     /*======================================================================
      * System Calls
      *----------------------------------------------------------------------
@@ -204,10 +2221,36 @@ public class SOS implements CPU.TrapHandler
     
     /**
      * Execute a system call based on the most recent value on the stack.
+     * System calls from different cores are handled one at a time.
+     */
+    public synchronized void systemCall()
+    {
+        int core = getCore();
+        m_inSysCall[core] = true;
+        try
+        {
+            doSystemCall();
+        }
+        finally
+        {
+            m_inSysCall[core] = false;
+        }
+        
+        //End a process that faulted during the call
+        ProcessControlBlock doomed = m_doomed[core];
+        if (doomed != null)
+        {
+            m_doomed[core] = null;
+            terminate(doomed);
+        }
+    }//systemCall
+    
+    /**
+     * Executes the system call whose id is on top of the stack.
      */
-    public void systemCall()
+    private void doSystemCall()
     {
-        switch (m_CPU.popStack())
+        switch (getCPU().popStack())
         {
             case SYSCALL_EXIT:
                 sysCallExit();
@@ -230,23 +2273,33 @@ public class SOS implements CPU.TrapHandler
             case SYSCALL_WRITE:
                 sysCallWrite();
                 break;
+            case SYSCALL_NEXTPERIOD:
+                sysCallNextPeriod();
+                break;
             case SYSCALL_COREDUMP:
                 sysCallCoreDump();
                 break;
+            case SYSCALL_READV:
+                sysCallVector(true);
+                break;
+            case SYSCALL_WRITEV:
+                sysCallVector(false);
+                break;
             default:
                 return; //This shouldn't happen
         }
-    }//systemCall
+    }//doSystemCall
 
     /**
      * Perform a core dump and end the current process.
      */
     private void sysCallCoreDump()
     {
-        m_CPU.regDump();
+        CPU cpu = getCPU();
+        cpu.regDump();
         for (int i = 0; i < 3; ++i)
-            if (m_CPU.getSP() <= m_CPU.getLIM()) 
-                System.out.println(m_CPU.popStack());
+            if (cpu.getSP() <= cpu.getLIM()) 
+                System.out.println(cpu.popStack());
         sysCallExit();
     }
 
@@ -255,7 +2308,7 @@ public class SOS implements CPU.TrapHandler
      */
     private void sysCallGetPID()
     {
-        m_CPU.pushStack(m_currProcess.processId);
+        getCPU().pushStack(getCurrProcess().processId);
     }
 
     /**
@@ -263,69 +2316,359 @@ public class SOS implements CPU.TrapHandler
      */
     private void sysCallOutput()
     {
-        System.out.println("\nOUTPUT: " + m_CPU.popStack());
+        System.out.println("\nOUTPUT: " + getCPU().popStack());
     }
 
     /**
-     * End the current process.
+     * End the current process and give its core the next one to run.
      */
     private void sysCallExit()
     {
-        System.exit(0);
+        terminate(getCurrProcess());
     }
     
     /**
-     * Register the current process to a new device
+     * Register the current process to a new device and push a return code
      */
     private void sysCallOpen()
     {
         //Get the device ID
-        int deviceID = m_CPU.popStack();
+        int deviceID = getCPU().popStack();
+        DeviceInfo di = findDevice(deviceID);
+        if (di == null)
+        {
+            getCPU().pushStack(ERROR_NO_DEVICE);
+            return;
+        }
         
         //Add the current process to the device to indicate that it's using the device
-        findDevice(deviceID).procs.add(m_currProcess);
+        di.addProcess(getCurrProcess());
+        getCPU().pushStack(SUCCESS);
     }
     
     /**
-     * 
+     * Unregister the current process from a device and push a return code
      */
     private void sysCallClose()
     {
         //Get the device ID
-        int deviceID = m_CPU.popStack();
+        int deviceID = getCPU().popStack();
+        DeviceInfo di = findDevice(deviceID);
+        if (di == null)
+        {
+            getCPU().pushStack(ERROR_NO_DEVICE);
+            return;
+        }
+        if (!di.containsProcess(getCurrProcess()))
+        {
+            getCPU().pushStack(ERROR_NOT_OPEN);
+            return;
+        }
         
         //Remove the current process from the device to indicate that the device is no longer used
-        findDevice(deviceID).procs.remove(m_currProcess);
+        di.removeProcess(getCurrProcess());
+        getCPU().pushStack(SUCCESS);
     }
     
+    /**
+     * Read a value from a device the current process has opened.  The
+     * device id and an address are on the stack; the value (if the read
+     * worked) and then a return code are pushed.  For a slow device the
+     * process waits for its request (see requestIO); otherwise it gives up
+     * its core afterwards as if it had to wait for the device.
+     */
     private void sysCallRead()
     {
-        
+        CPU cpu = getCPU();
+        int addr = cpu.popStack();
+        DeviceInfo di = findDevice(cpu.popStack());
+        int code = checkDevice(di);
+        if (code == SUCCESS && !di.getDevice().isReadable())
+            code = ERROR_NOT_READABLE;
+        if (code == SUCCESS && di.latency > 0)
+        {
+            requestIO(di, true, addr, 0);
+            return;
+        }
+        if (code == SUCCESS)
+            cpu.pushStack(di.getDevice().read(addr));
+        cpu.pushStack(code);
+        preempt(getCore(), false);
     }
     
+    /**
+     * Write a value to a device the current process has opened.  The
+     * device id, an address and the value are on the stack; a return code
+     * is pushed.  For a slow device the process waits for its request (see
+     * requestIO); otherwise it gives up its core afterwards as if it had to
+     * wait for the device.
+     */
     private void sysCallWrite()
     {
+        CPU cpu = getCPU();
+        int value = cpu.popStack();
+        int addr = cpu.popStack();
+        DeviceInfo di = findDevice(cpu.popStack());
+        int code = checkDevice(di);
+        if (code == SUCCESS && !di.getDevice().isWriteable())
+            code = ERROR_NOT_WRITEABLE;
+        if (code == SUCCESS && di.latency > 0)
+        {
+            requestIO(di, false, addr, value);
+            return;
+        }
+        if (code == SUCCESS)
+            di.getDevice().write(addr, value);
+        cpu.pushStack(code);
+        preempt(getCore(), false);
+    }
+    
+    /**
+     * Move a buffer of words between a device the current process has
+     * opened and the process' memory (READV and WRITEV).  The device id,
+     * the device address of the first word, the buffer's address and the
+     * number of words are on the stack.  Word i goes to or comes from
+     * device address addr + i (devices that ignore the address, like the
+     * console, just see a stream of words).  The number of words moved and
+     * then a return code are pushed.
+     *
+     * The whole buffer costs one trap and is copied in bursts.  A slow
+     * device takes its latency once for the whole buffer, as if it were
+     * one DMA transfer.
+     *
+     * @param read  true to read from the device, false to write to it
+     */
+    private void sysCallVector(boolean read)
+    {
+        CPU cpu = getCPU();
+        int count = cpu.popStack();
+        int buffer = cpu.popStack();
+        int addr = cpu.popStack();
+        DeviceInfo di = findDevice(cpu.popStack());
+        ProcessControlBlock pcb = getCurrProcess();
+        int code = checkDevice(di);
+        if (code == SUCCESS && read && !di.getDevice().isReadable())
+            code = ERROR_NOT_READABLE;
+        if (code == SUCCESS && !read && !di.getDevice().isWriteable())
+            code = ERROR_NOT_WRITEABLE;
+        if (code == SUCCESS && !mapBuffer(pcb, buffer, count))
+            code = ERROR_BAD_BUFFER;
+        if (code != SUCCESS)
+        {
+            cpu.pushStack(0);
+            cpu.pushStack(code);
+            preempt(getCore(), false);
+            return;
+        }
+        
+        if (di.latency > 0)
+        {
+            IORequest req = new IORequest(pcb, di, read, addr, 0, getClock().getCycles());
+            req.buffer = buffer;
+            req.count = count;
+            requestIO(req);
+            return;
+        }
+        transferVector(pcb, di, read, addr, buffer, count);
+        cpu.pushStack(count);
+        cpu.pushStack(SUCCESS);
+        preempt(getCore(), false);
+    }//sysCallVector
+    
+    /**
+     * Checks that a buffer is in the current process' memory and, with
+     * paging, maps the pages of it that aren't mapped yet.
+     *
+     * @param pcb     the process (running on the calling thread's core)
+     * @param buffer  the buffer's address (relative to BASE)
+     * @param count   the number of words in it
+     * @return true if the whole buffer can be used
+     */
+    private boolean mapBuffer(ProcessControlBlock pcb, int buffer, int count)
+    {
+        int regs[] = registersOf(pcb);
+        int start = regs[CPU.BASE] + buffer;
+        if (buffer < 0 || count < 0 || (long)start + count - 1 > regs[CPU.LIM])
+            return false;
+        if (pcb.pageTable == null || count == 0)
+            return true;
+        for (int page = start >>> RAM.PAGE_SHIFT; page <= (start + count - 1) >>> RAM.PAGE_SHIFT; page++)
+            if (pcb.pageTable[page] < 0 && !mapPage(pcb, page << RAM.PAGE_SHIFT))
+                return false;
+        return true;
+    }//mapBuffer
+    
+    /**
+     * Moves a buffer of words between a device and a process' memory (whose
+     * pages must all be mapped).  The copy is charged to the calling core
+     * as bursts.  Words read into the process' code are seen by its
+     * instruction cache.
+     *
+     * @param pcb     the process
+     * @param di      the device
+     * @param read    true to read from the device, false to write to it
+     * @param addr    the device address of the first word
+     * @param buffer  the buffer's address (relative to BASE)
+     * @param count   the number of words
+     */
+    private void transferVector(ProcessControlBlock pcb, DeviceInfo di, boolean read,
+                                int addr, int buffer, int count)
+    {
+        int start = registersOf(pcb)[CPU.BASE] + buffer;
+        int words[] = new int[count];
+        Device dev = di.getDevice();
+        if (read)
+        {
+            for (int i = 0; i < count; i++)
+                words[i] = dev.read(addr + i);
+            getClock().advance(transfer(pcb.pageTable, start, words, count, true));
+            if (pcb.icache != null)
+                for (int i = 0; i < count && buffer + i < pcb.codeLength; i++)
+                    pcb.icache.write(buffer + i, words[i]);
+        }
+        else
+        {
+            getClock().advance(transfer(pcb.pageTable, start, words, count, false));
+            for (int i = 0; i < count; i++)
+                dev.write(addr + i, words[i]);
+        }
+    }//transferVector
+    
+    /**
+     * The current (real-time) process is done with its job.  It sleeps until
+     * its next job is released and the core is given to another process.
+     * For a best-effort process this just gives up the core.
+     */
+    private void sysCallNextPeriod()
+    {
+        int core = getCore();
+        ProcessControlBlock pcb = m_running[core];
+        if (!(m_scheduler instanceof EDFScheduler)
+            || !((EDFScheduler)m_scheduler).complete(pcb.getProcessId()))
+        {
+            preempt(core, false);
+            return;
+        }
         
+        save(core);
+        debugPrintln("Process " + pcb.getProcessId() + " is waiting for its next period");
+        dispatch(core);
+    }
+    
+    /**
+     * @return SUCCESS if the given device exists and the current process
+     *         has opened it or else the error code for READ and WRITE
+     */
+    private int checkDevice(DeviceInfo di)
+    {
+        if (di == null)
+            return ERROR_NO_DEVICE;
+        if (!di.containsProcess(getCurrProcess()))
+            return ERROR_NOT_OPEN;
+        return SUCCESS;
     }
     
     /**
-     * Helper method to find a device with a given ID in the Vector of DeviceInfos
+     * Helper method to find a device with a given ID in the table of DeviceInfos
      * 
      * @param deviceID  The ID of the device to find
-     * @return  The DeviceInfo instance matching the given ID
+     * @return  The DeviceInfo instance matching the given ID (null if there
+     *          is none)
      */
     private DeviceInfo findDevice(int deviceID)
     {
-        for (DeviceInfo di : m_devices)
-            if (di.getId() == deviceID)
-                return di;
-        return null;
+        return m_devices.get(deviceID);
     }
     
     //======================================================================
     // Inner Classes
     //----------------------------------------------------------------------
 
+    /**
+     * class ProcessRecord
+     *
+     * This class records what happened to a process that has exited.  The
+     * times are in cycles of the clock of the core involved so they are
+     * only comparable with each other on a single core machine.
+     */
+    public static class ProcessRecord
+    {
+        /** the process id */
+        private int processId;
+        /** the file the program was loaded from */
+        private String program;
+        /** when the process was created, first given a core and exited */
+        private long arrival;
+        private long firstRun;
+        private long exit;
+        /** how it ended (one of the EXIT_ constants) and why if it faulted */
+        private int exitStatus;
+        private String fault;
+
+        /**
+         * constructor
+         */
+        private ProcessRecord(int pid, String program, long arrival, long firstRun, long exit,
+                              int exitStatus, String fault)
+        {
+            this.processId = pid;
+            this.program = program;
+            this.arrival = arrival;
+            this.firstRun = firstRun;
+            this.exit = exit;
+            this.exitStatus = exitStatus;
+            this.fault = fault;
+        }
+
+        /** @return the process id */
+        public int getProcessId()
+        {
+            return this.processId;
+        }
+
+        /** @return the file the program was loaded from */
+        public String getProgram()
+        {
+            return this.program;
+        }
+
+        /** @return when the process was created */
+        public long getArrival()
+        {
+            return this.arrival;
+        }
+
+        /** @return when the process exited */
+        public long getExit()
+        {
+            return this.exit;
+        }
+
+        /** @return how the process ended (EXIT_NORMAL if it made the EXIT system call) */
+        public int getExitStatus()
+        {
+            return this.exitStatus;
+        }
+
+        /** @return what went wrong if the process was ended by a fault (else null) */
+        public String getFault()
+        {
+            return this.fault;
+        }
+
+        /** @return how long the process waited for its first time on a core */
+        public long getResponseCycles()
+        {
+            return this.firstRun - this.arrival;
+        }
+
+        /** @return how long the process took from creation to exit */
+        public long getTurnaroundCycles()
+        {
+            return this.exit - this.arrival;
+        }
+    }//class ProcessRecord
+
     /**
      * class ProcessControlBlock
      *
@@ -337,6 +2680,72 @@ public class SOS implements CPU.TrapHandler
          * a unique id for this process
          */
         private int processId = 0;
+        
+        /**
+         * the values the CPU registers should have when this process runs
+         */
+        private int registers[] = new int[CPU.NUMREG];
+        
+        /**
+         * the pre-decoded code of this process
+         */
+        private InstructionCache icache = null;
+        
+        /**
+         * the number of words of code that were loaded at BASE
+         */
+        private int codeLength = 0;
+        
+        /**
+         * the file the program was loaded from (for reports)
+         */
+        private String program = null;
+        
+        /**
+         * when (in cycles) the process was created and first given a core
+         * (-1 if it hasn't been yet)
+         */
+        private long arrival = 0;
+        private long firstRun = -1;
+        
+        /**
+         * the period, relative deadline and budget (in cycles) of a
+         * real-time process (all 0 for a best-effort process)
+         */
+        private long period = 0;
+        private long deadline = 0;
+        private long budget = 0;
+        
+        /**
+         * the instruction count of its core when it was last given one
+         */
+        private long dispatchedAt = 0;
+        
+        /**
+         * the frame each page of this process is mapped to (-1 if none).
+         * It is null if the process uses physical addresses.
+         */
+        private int pageTable[] = null;
+        
+        /**
+         * false for a process that was waiting for a device when the
+         * checkpoint it was restored from was taken.  The scheduler is only
+         * told about it once the device is done.
+         */
+        private boolean scheduled = true;
+        
+        /**
+         * the devices this process has opened, one bit for each device
+         * (by the index it was given when it was installed)
+         */
+        private long openDevices[] = new long[1];
+        
+        /**
+         * how the process ended (one of the EXIT_ constants) and, if it was
+         * a fault, what went wrong
+         */
+        private int exitStatus = EXIT_NORMAL;
+        private String fault = null;
 
         /**
          * constructor
@@ -356,8 +2765,141 @@ public class SOS implements CPU.TrapHandler
         {
             return this.processId;
         }
+        
+        /**
+         * Load this process' registers, code and page table into the given
+         * CPU (and charge its cache accesses to this process).  The caller
+         * starts its time slice.
+         */
+        public void restore(CPU cpu)
+        {
+            System.arraycopy(registers, 0, cpu.getRegisters(), 0, CPU.NUMREG);
+            cpu.setInstructionCache(icache);
+            cpu.setPageTable(pageTable);
+            if (cpu.getCache() != null)
+                cpu.getCache().setProcess(processId);
+        }
+        
+        /**
+         * Save the registers of the given CPU (which is running this
+         * process) so the process can be restored later
+         */
+        public void save(CPU cpu)
+        {
+            System.arraycopy(cpu.getRegisters(), 0, registers, 0, CPU.NUMREG);
+        }
     }//class ProcessControlBlock
 
+    /**
+     * class MemBlock
+     *
+     * This class represents a block of RAM: its address and size.  Blocks
+     * are ordered by address.
+     */
+    private class MemBlock implements Comparable<MemBlock>
+    {
+        /** the address of the first word */
+        private int addr;
+        /** the number of words */
+        private int size;
+
+        /**
+         * constructor
+         *
+         * @param addr  the address of the first word
+         * @param size  the number of words
+         */
+        public MemBlock(int addr, int size)
+        {
+            this.addr = addr;
+            this.size = size;
+        }
+
+        /** @return the address of the first word */
+        public int getAddr()
+        {
+            return this.addr;
+        }
+
+        /** @return the number of words */
+        public int getSize()
+        {
+            return this.size;
+        }
+
+        /** orders blocks by address */
+        public int compareTo(MemBlock other)
+        {
+            return (this.addr < other.addr) ? -1 : ((this.addr == other.addr) ? 0 : 1);
+        }
+    }//class MemBlock
+
+    /**
+     * class IORequest
+     *
+     * This class represents a read or write request for a slow device.
+     * Requests are ordered by the time they are due.
+     */
+    private class IORequest implements Comparable<IORequest>
+    {
+        /** the process that made the request */
+        private ProcessControlBlock pcb;
+        /** the device it was made to */
+        private DeviceInfo device;
+        /** true for a read, false for a write */
+        private boolean read;
+        /** the address argument and (for a write) the value to write */
+        private int addr;
+        private int value;
+        /**
+         * for READV and WRITEV the buffer in the process' memory and the
+         * number of words in it (-1 for a single word)
+         */
+        private int buffer = 0;
+        private int count = -1;
+        /**
+         * when (in cycles) the request was made and when the device will
+         * be done with it (-1 until the device starts on it)
+         */
+        private long issued;
+        private long due = -1;
+        /** the order the device started on it in (among all requests) */
+        private long seq = 0;
+        /** true if the process gave up its core to wait for the request */
+        private boolean blocked = false;
+        /** true once the request is done */
+        private boolean done = false;
+
+        /**
+         * constructor
+         *
+         * @param pcb     the process making the request
+         * @param device  the device
+         * @param read    true for a read, false for a write
+         * @param addr    the address argument
+         * @param value   the value to write
+         * @param issued  when the request was made (in cycles)
+         */
+        public IORequest(ProcessControlBlock pcb, DeviceInfo device, boolean read,
+                         int addr, int value, long issued)
+        {
+            this.pcb = pcb;
+            this.device = device;
+            this.read = read;
+            this.addr = addr;
+            this.value = value;
+            this.issued = issued;
+        }
+
+        /** orders requests by the time they are due */
+        public int compareTo(IORequest other)
+        {
+            if (this.due != other.due)
+                return (this.due < other.due) ? -1 : 1;
+            return (this.seq < other.seq) ? -1 : ((this.seq == other.seq) ? 0 : 1);
+        }
+    }//class IORequest
+
     /**
      * class DeviceInfo
      *
@@ -370,8 +2912,21 @@ public class SOS implements CPU.TrapHandler
         private int id;
         /** a reference to the device driver for this device */
         private Device device;
-        /** a list of processes that have opened this device */
-        private Vector<ProcessControlBlock> procs;
+        /**
+         * the bit for this device in each process' set of open devices: the
+         * word it is in and the mask for it
+         */
+        private int word;
+        private long bit;
+        /** the number of processes that have opened this device */
+        private int numOpen = 0;
+        /** the cycles the device takes to handle a request (0 if none) */
+        private long latency = 0;
+        /**
+         * the requests waiting for the device.  The first one is the one
+         * it is working on.
+         */
+        private ArrayDeque<IORequest> queue = new ArrayDeque<IORequest>();
 
         /**
          * constructor
@@ -379,13 +2934,16 @@ public class SOS implements CPU.TrapHandler
          * @param d          a reference to the device driver for this device
          * @param initID     the id for this device.  The caller is responsible
          *                   for guaranteeing that this is a unique id.
+         * @param index      a number no other device has (its bit in the
+         *                   sets of open devices)
          */
-        public DeviceInfo(Device d, int initID)
+        public DeviceInfo(Device d, int initID, int index)
         {
             this.id = initID;
             this.device = d;
+            this.word = index >>> 6;
+            this.bit = 1L << index;
             d.setId(initID);
-            this.procs = new Vector<ProcessControlBlock>();
         }
 
         /** @return the device's id */
@@ -403,25 +2961,32 @@ public class SOS implements CPU.TrapHandler
         /** Register a new process as having opened this device */
         public void addProcess(ProcessControlBlock pi)
         {
-            procs.add(pi);
+            if (word >= pi.openDevices.length)
+                pi.openDevices = Arrays.copyOf(pi.openDevices, word + 1);
+            if ((pi.openDevices[word] & bit) == 0)
+                numOpen++;
+            pi.openDevices[word] |= bit;
         }
         
         /** Register a process as having closed this device */
         public void removeProcess(ProcessControlBlock pi)
         {
-            procs.remove(pi);
+            if (containsProcess(pi))
+                numOpen--;
+            if (word < pi.openDevices.length)
+                pi.openDevices[word] &= ~bit;
         }
 
         /** Does the given process currently have this device opened? */
         public boolean containsProcess(ProcessControlBlock pi)
         {
-            return procs.contains(pi);
+            return word < pi.openDevices.length && (pi.openDevices[word] & bit) != 0;
         }
         
         /** Is this device currently not opened by any process? */
         public boolean unused()
         {
-            return procs.size() == 0;
+            return numOpen == 0;
         }
     }//class DeviceInfo
 };//class SOS
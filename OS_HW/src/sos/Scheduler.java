@@ -0,0 +1,106 @@
+package sos;
+
+/**
+ * This interface defines a scheduling policy for the SOS.  The OS tells the
+ * scheduler whenever a process becomes ready to run (it was created, gave up
+ * its core or was woken up) or stops being ready (it blocked or exited) and
+ * asks it which process a core should run next and for how long.
+ *
+ * Processes are known by their ids.  The OS only calls a scheduler while
+ * holding its own lock so a scheduler needn't be thread safe.
+ *
+ * @see SOS#setScheduler
+ * @see RoundRobinScheduler
+ * @see MLFQScheduler
+ */
+public interface Scheduler
+{
+    /**
+     * getName
+     *
+     * @return a short description of the policy (and its settings) for
+     *         reports
+     */
+    public String getName();
+
+    /**
+     * add
+     *
+     * a new process has been created and is ready to run
+     *
+     * @param pid the process id
+     */
+    public void add(int pid);
+
+    /**
+     * dispatch
+     *
+     * picks the process that should run next and takes it out of the
+     * ready processes.  It runs until it yields, blocks or exits.
+     *
+     * @param core the core that will run it
+     * @return the process id or -1 if no process is ready
+     */
+    public int dispatch(int core);
+
+    /**
+     * getQuantum
+     *
+     * @param pid a process that has just been dispatched
+     * @return how many instructions it may run before it is preempted (0
+     *         to let it run until it gives up its core)
+     */
+    public long getQuantum(int pid);
+
+    /**
+     * yield
+     *
+     * a running process has given up its core but is still ready to run
+     *
+     * @param pid     the process id
+     * @param ran     the number of instructions it ran since it was
+     *                dispatched
+     * @param expired true if its time slice ran out, false if it gave up
+     *                the core itself (e.g., to wait for a device)
+     */
+    public void yield(int pid, long ran, boolean expired);
+
+    /**
+     * block
+     *
+     * a running process has given up its core and can't run again until it
+     * is woken up
+     *
+     * @param pid the process id
+     * @param ran the number of instructions it ran since it was dispatched
+     */
+    public void block(int pid, long ran);
+
+    /**
+     * wakeup
+     *
+     * a blocked process is ready to run again
+     *
+     * @param pid the process id
+     */
+    public void wakeup(int pid);
+
+    /**
+     * exit
+     *
+     * a process is gone and will never be ready again
+     *
+     * @param pid the process id
+     */
+    public void exit(int pid);
+
+    /**
+     * getNextWakeup
+     *
+     * @return the time (in cycles) at which a process that is waiting for
+     *         time to pass (rather than for something to happen) becomes
+     *         ready by itself, -1 if there is no such process.  A core that
+     *         has nothing to run idles until then.
+     */
+    public long getNextWakeup();
+};//interface Scheduler
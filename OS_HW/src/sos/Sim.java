@@ -1,5 +1,6 @@
 package sos;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -67,9 +68,173 @@ public class Sim
             return; //Error loading program so exit
         os.createProcess(prog,  500);
 
+        //This one is interactive so run it at (simulated) speed
+        cpu.getClock().setPaced(true);
         cpu.run();
     }//runIO
 
+    /**
+     * runSMP
+     *
+     * runs several counting programs on a machine with several CPU cores.
+     * Each core runs on its own host thread and all of them share one RAM.
+     *
+     * @param numCores  the number of cores to simulate
+     * @param numProcs  the number of processes to create
+     */
+    public static void runSMP(int numCores, int numProcs)
+    {
+        //Create the simulated hardware and OS
+        RAM ram = new RAM(numProcs * 501, 10);
+        CPU cpus[] = new CPU[numCores];
+        for (int i = 0; i < numCores; i++)
+            cpus[i] = new CPU(ram);
+        SOS os  = new SOS(cpus, ram);
+
+        //Load the programs into RAM
+        for (int i = 0; i < numProcs; i++)
+        {
+            Program prog = new Program();
+            if (prog.load("count10.asm", false) != 0)
+                return; //Error loading program so exit
+            os.createProcess(prog,  500);
+        }
+
+        os.run();
+    }//runSMP
+
+    /**
+     * runRoundRobin
+     *
+     * runs several programs at once on one core, switching between them
+     * whenever one has used up its time slice
+     *
+     * @param quantum  the time slice in instructions
+     */
+    public static void runRoundRobin(long quantum)
+    {
+        //Create the simulated hardware and OS
+        String programs[] = { "longcount.asm", "count10.asm", "factorial.asm", "getpid.asm" };
+        RAM ram = new RAM(programs.length * 501, 10);
+        CPU cpu = new CPU(ram);
+        SOS os  = new SOS(cpu, ram);
+        os.setQuantum(quantum);
+
+        //Load the programs into RAM
+        for (String fileName : programs)
+        {
+            Program prog = new Program();
+            if (prog.load(fileName, false) != 0)
+                return; //Error loading program so exit
+            os.createProcess(prog,  500);
+        }
+
+        os.run();
+        Bench.printSwitches(os, new CPU[]{cpu});
+    }//runRoundRobin
+
+    /**
+     * runCheckpointed
+     *
+     * runs a long counting program and saves a checkpoint every so often.
+     * If the checkpoint file already holds a checkpoint (e.g., because the
+     * simulation was stopped part way through) the simulation continues
+     * from there instead of starting over.
+     *
+     * @param fileName  the checkpoint file
+     * @param interval  the number of instructions between checkpoints
+     */
+    public static void runCheckpointed(String fileName, long interval)
+    {
+        //Create the simulated hardware and OS
+        RAM ram = new RAM(1000, 0);
+        ConsoleDevice cd = new ConsoleDevice();
+        CPU cpu = new CPU(ram);
+        SOS os  = new SOS(cpu, ram);
+
+        //Register the device drivers with the OS
+        os.registerDevice(cd, 1);
+        os.setCheckpoint(new Checkpoint(fileName), interval);
+
+        //Load the program into RAM unless it's already there
+        if (!os.restore())
+        {
+            Program prog = new Program();
+            if (prog.load("longcount.asm", false) != 0)
+                return; //Error loading program so exit
+            os.createProcess(prog,  500);
+        }
+        else
+        {
+            System.out.println("Restored from " + fileName + " after "
+                               + cpu.getInstrCount() + " instructions");
+        }
+        os.run();
+    }//runCheckpointed
+
+    /**
+     * runTraced
+     *
+     * runs a program that may use the keyboard and console while recording
+     * a trace of it.  In replay mode the program is run against an existing
+     * trace instead (taking keyboard input from the trace) and the first
+     * point where the run differs from the trace is reported.
+     *
+     * @param fileName  the program to run
+     * @param traceFile the trace file
+     * @param replay    true to check the run against the trace
+     */
+    public static void runTraced(String fileName, String traceFile, boolean replay)
+    {
+        //Create the simulated hardware and OS
+        RAM ram = new RAM(1000, 10);
+        KeyboardDevice kd = new KeyboardDevice();
+        ConsoleDevice cd = new ConsoleDevice();
+        CPU cpu = new CPU(ram);
+        SOS os  = new SOS(cpu, ram);
+
+        Trace trace;
+        try
+        {
+            trace = new Trace(traceFile, replay);
+        }
+        catch(IOException e)
+        {
+            System.out.println("\nError opening trace: " + traceFile + "\n" + e);
+            return;
+        }
+
+        //Register the device drivers with the OS
+        os.registerDevice(new TracedDevice(kd, trace), 0);
+        os.registerDevice(new TracedDevice(cd, trace), 1);
+
+        //Load the program into RAM
+        Program prog = new Program();
+        if (prog.load(fileName, false) != 0)
+            return; //Error loading program so exit
+        os.createProcess(prog,  500);
+
+        cpu.setTrace(trace);
+        os.run();
+        cpu.setTrace(null);
+        try
+        {
+            trace.close();
+        }
+        catch(IOException e)
+        {
+            System.out.println("\nError closing trace: " + traceFile);
+        }
+
+        if (!replay)
+            System.out.println("TRACE: " + trace.getCount() + " instructions, "
+                               + trace.getBytes() + " bytes");
+        else if (trace.getDivergence() == null)
+            System.out.println("REPLAY: " + trace.getCount() + " instructions matched");
+        else
+            System.out.println("REPLAY: diverged at " + trace.getDivergence());
+    }//runTraced
+
     /**
      * main
      *
@@ -0,0 +1,227 @@
+package sos;
+
+/**
+ * This class simulates a RAM that only uses host memory for the parts of it
+ * that have been written.  The words are kept in pages of RAM.PAGE_SIZE
+ * words that are created the first time something other than zero is
+ * written to them; reading a page that was never written gives zeroes.  A
+ * machine can then have a huge (nominal) memory while the host only holds
+ * what the guests actually use.
+ *
+ * Pages are found through a two level directory so that the directory
+ * itself stays small for a sparse RAM too.  Pages are never freed.
+ *
+ * @see RAM#create
+ */
+public class SparseRAM extends RAM
+{
+    //constants
+    /**
+     * Each second level table of the directory covers this many pages (as a
+     * power of two)
+     **/
+    private static final int TABLE_SHIFT = 10;
+    private static final int TABLE_SIZE  = 1 << TABLE_SHIFT;
+
+    /** the offset of a word in its page */
+    private static final int OFFSET_MASK = PAGE_SIZE - 1;
+
+    //member variables
+    /**
+     * The page directory.  m_dir[i][j] is page (i << TABLE_SHIFT) + j or
+     * null if it hasn't been written yet.
+     **/
+    private int m_dir[][][];
+
+    /**
+     * The number of pages that have been created
+     **/
+    private int m_numPages = 0;
+
+    /**
+     * constructor
+     *
+     * @param size number of integers ("words") in ram
+     * @param latency the number of nanoseconds each access takes in simulated
+     *                time
+     */
+    public SparseRAM(int size, int latency)
+    {
+        super(size, latency, false);
+        long pages = ((long)size + PAGE_SIZE - 1) >> PAGE_SHIFT;
+        m_dir = new int[(int)((pages + TABLE_SIZE - 1) >> TABLE_SHIFT)][][];
+    }//ctor
+
+    /**
+     * getResidentWords
+     *
+     * @return the number of words that take up host memory (whole pages)
+     */
+    @Override
+    public long getResidentWords()
+    {
+        return (long)m_numPages * PAGE_SIZE;
+    }
+
+    /**
+     * isPresent
+     *
+     * @param num  a page number
+     * @return true if the page has been created
+     */
+    @Override
+    public boolean isPresent(int num)
+    {
+        return page(num) != null;
+    }
+
+    /**
+     * load
+     *
+     * @param addr  the location to retrieve from
+     * @return      the value at the given location
+     */
+    @Override
+    protected int load(int addr)
+    {
+        int page[] = page(addr >>> PAGE_SHIFT);
+        return (page == null) ? 0 : page[addr & OFFSET_MASK];
+    }//load
+
+    /**
+     * store
+     *
+     * @param addr  the address to write to
+     * @param val   the value to write
+     */
+    @Override
+    protected void store(int addr, int val)
+    {
+        int page[] = page(addr >>> PAGE_SHIFT);
+        if (page == null)
+        {
+            if (val == 0)
+                return;
+            page = create(addr >>> PAGE_SHIFT);
+        }
+        page[addr & OFFSET_MASK] = val;
+    }//store
+
+    /**
+     * loadBlock
+     *
+     * @param addr  the first location to retrieve from
+     * @param dst   where to put the words
+     * @param off   the index in dst of the first word
+     * @param len   the number of words
+     */
+    @Override
+    protected void loadBlock(int addr, int[] dst, int off, int len)
+    {
+        while (len > 0)
+        {
+            int n = Math.min(len, PAGE_SIZE - (addr & OFFSET_MASK));
+            int page[] = page(addr >>> PAGE_SHIFT);
+            if (page == null)
+                java.util.Arrays.fill(dst, off, off + n, 0);
+            else
+                System.arraycopy(page, addr & OFFSET_MASK, dst, off, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }
+    }//loadBlock
+
+    /**
+     * storeBlock
+     *
+     * @param addr  the first address to write to
+     * @param src   the words to write
+     * @param off   the index in src of the first word
+     * @param len   the number of words
+     */
+    @Override
+    protected void storeBlock(int addr, int[] src, int off, int len)
+    {
+        while (len > 0)
+        {
+            int n = Math.min(len, PAGE_SIZE - (addr & OFFSET_MASK));
+            int page[] = page(addr >>> PAGE_SHIFT);
+            if (page == null && !isZero(src, off, n))
+                page = create(addr >>> PAGE_SHIFT);
+            if (page != null)
+                System.arraycopy(src, off, page, addr & OFFSET_MASK, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }
+    }//storeBlock
+
+    /**
+     * fillBlock
+     *
+     * @param addr  the first address to write to
+     * @param len   the number of words
+     * @param val   the value to write
+     */
+    @Override
+    protected void fillBlock(int addr, int len, int val)
+    {
+        while (len > 0)
+        {
+            int n = Math.min(len, PAGE_SIZE - (addr & OFFSET_MASK));
+            int page[] = page(addr >>> PAGE_SHIFT);
+            if (page == null && val != 0)
+                page = create(addr >>> PAGE_SHIFT);
+            if (page != null)
+                java.util.Arrays.fill(page, addr & OFFSET_MASK, (addr & OFFSET_MASK) + n, val);
+            addr += n;
+            len -= n;
+        }
+    }//fillBlock
+
+    /**
+     * @return the given page or null if it hasn't been created
+     */
+    private int[] page(int num)
+    {
+        int table[][] = m_dir[num >>> TABLE_SHIFT];
+        return (table == null) ? null : table[num & (TABLE_SIZE - 1)];
+    }
+
+    /**
+     * creates a page (unless another core just did).  Cores running at the
+     * same time may both find a page missing so only one of them may make
+     * it.
+     *
+     * @return the page
+     */
+    private synchronized int[] create(int num)
+    {
+        int table[][] = m_dir[num >>> TABLE_SHIFT];
+        if (table == null)
+        {
+            table = new int[TABLE_SIZE][];
+            m_dir[num >>> TABLE_SHIFT] = table;
+        }
+        int page[] = table[num & (TABLE_SIZE - 1)];
+        if (page == null)
+        {
+            page = new int[PAGE_SIZE];
+            table[num & (TABLE_SIZE - 1)] = page;
+            m_numPages++;
+        }
+        return page;
+    }//create
+
+    /**
+     * @return true if every one of the given words is zero
+     */
+    private static boolean isZero(int[] words, int off, int len)
+    {
+        for(int i = off; i < off + len; i++)
+            if (words[i] != 0)
+                return false;
+        return true;
+    }
+};//class SparseRAM
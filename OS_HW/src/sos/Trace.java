@@ -0,0 +1,580 @@
+package sos;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class records everything a CPU does in a compact binary file, or
+ * checks a run of the CPU against such a file.
+ *
+ * A trace is a series of records.  For each instruction the CPU executes the
+ * opcode is recorded along with the registers whose values changed (counting
+ * any changes the OS made while handling the instruction).  The PC is only
+ * recorded when it doesn't simply move on to the next instruction.  The
+ * values read from devices are recorded as well so that a run can be
+ * replayed without them.  Records are gathered in a fixed size buffer that is
+ * written out whenever it fills up.
+ *
+ * In replay mode nothing is written.  Instead each record the CPU produces is
+ * compared with the next one in the file, and device reads are answered from
+ * the file.  The first record that doesn't match is reported as the point
+ * where the run diverged.
+ *
+ * While a trace is attached the CPU executes instructions one at a time (no
+ * fusion and no compiled blocks).  {@link #main} prints a trace file.
+ *
+ * @see CPU#setTrace
+ * @see TracedDevice
+ */
+public class Trace
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /** identifies a trace file ("SOST") */
+    private static final int MAGIC = 0x534F5354;
+    /** the version of the file format */
+    private static final int VERSION = 1;
+
+    //Records start with a tag byte.  Instructions are tagged with their
+    //opcode (0xFF for an illegal instruction) and the others with these.
+    private static final int TAG_SYNC  = 0xF0;   // registers changed between runs
+    private static final int TAG_INPUT = 0xF1;   // a value read from a device
+    private static final int TAG_END   = 0xF2;   // the end of the trace
+
+    /** the largest possible record (tag, mask and every register) */
+    private static final int MAX_RECORD = 1 + 2 + 4 * CPU.NUMREG;
+
+    /** the default size of the record buffer in bytes */
+    public static final int DEFAULT_BUFFER = 1 << 20;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the trace file
+     **/
+    private FileChannel m_channel;
+
+    /**
+     * true when checking a run against the file rather than recording one
+     **/
+    private boolean m_replay;
+
+    /**
+     * records waiting to be written (or, when replaying, the record that is
+     * being checked).  Records are encoded by hand into a plain array since
+     * that is much faster than going through a ByteBuffer for each field.
+     **/
+    private byte m_rec[];
+    private int m_pos = 0;
+
+    /**
+     * when replaying, the part of the file that has been read but not yet
+     * checked
+     **/
+    private ByteBuffer m_in = null;
+
+    /**
+     * the register values as of the last record
+     **/
+    private int m_shadow[] = new int[CPU.NUMREG];
+
+    /**
+     * the number of instructions recorded (or checked)
+     **/
+    private long m_count = 0;
+
+    /**
+     * the number of bytes written to the file
+     **/
+    private long m_bytes = 0;
+
+    /**
+     * when replaying, a description of the first difference found (null
+     * while everything matches)
+     **/
+    private String m_divergence = null;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * constructor
+     *
+     * @param fileName   the trace file
+     * @param replay     false to record a new trace (replacing the file) or
+     *                   true to check a run against it
+     * @param bufferSize the size of the record buffer in bytes
+     */
+    public Trace(String fileName, boolean replay, int bufferSize) throws IOException
+    {
+        m_replay = replay;
+        m_rec = new byte[Math.max(bufferSize, 64 * MAX_RECORD)];
+        if (replay)
+        {
+            m_channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            m_in = ByteBuffer.allocateDirect(m_rec.length);
+            m_in.limit(0);
+            if (!fill(8) || m_in.getInt() != MAGIC || m_in.getInt() != VERSION)
+                throw new IOException(fileName + " is not a trace file");
+        }
+        else
+        {
+            m_channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                                         StandardOpenOption.WRITE,
+                                         StandardOpenOption.TRUNCATE_EXISTING);
+            putInt(MAGIC);
+            putInt(VERSION);
+        }
+    }//ctor
+
+    /**
+     * constructor
+     *
+     * @param fileName   the trace file
+     * @param replay     false to record a new trace or true to check a run
+     *                   against it
+     */
+    public Trace(String fileName, boolean replay) throws IOException
+    {
+        this(fileName, replay, DEFAULT_BUFFER);
+    }//ctor
+
+    /**
+     * isReplay
+     *
+     * @return true if a run is being checked against the file
+     */
+    public boolean isReplay()
+    {
+        return m_replay;
+    }
+
+    /**
+     * getCount
+     *
+     * @return the number of instructions recorded (or checked) so far
+     */
+    public long getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * getBytes
+     *
+     * @return the number of bytes written to the file so far
+     */
+    public long getBytes()
+    {
+        return m_bytes + (m_replay ? 0 : m_pos);
+    }
+
+    /**
+     * getDivergence
+     *
+     * @return a description of where a replayed run first differed from the
+     *         trace or null if it hasn't
+     */
+    public String getDivergence()
+    {
+        return m_divergence;
+    }
+
+    /**
+     * sync
+     *
+     * is called by the CPU each time it starts running.  Any registers that
+     * were changed since the last record (e.g., by the OS) are recorded.
+     *
+     * @param regs the CPU's registers
+     * @param pc   the PC
+     * @param sp   the SP
+     */
+    public void sync(int[] regs, int pc, int sp)
+    {
+        int start = begin(TAG_SYNC);
+        int mask = 0;
+        for(int r = 0; r < CPU.NUMREG; r++)
+        {
+            int val = (r == CPU.PC) ? pc : (r == CPU.SP) ? sp : regs[r];
+            if (val != m_shadow[r])
+            {
+                mask |= 1 << r;
+                putInt(val);
+                m_shadow[r] = val;
+            }
+        }
+
+        //Nothing to say
+        if (mask == 0)
+        {
+            m_pos = start;
+            return;
+        }
+        end(start, mask);
+    }//sync
+
+    /**
+     * step
+     *
+     * is called by the CPU after each instruction (and anything the OS did
+     * to handle it) is done
+     *
+     * @param op   the opcode of the instruction
+     * @param regs the CPU's registers
+     * @param pc   the PC
+     * @param sp   the SP
+     */
+    public void step(int op, int[] regs, int pc, int sp)
+    {
+        int start = begin(op & 0xFF);
+        int shadow[] = m_shadow;
+        int mask = 0;
+        for(int r = 0; r < CPU.NUMGENREG; r++)
+        {
+            if (regs[r] != shadow[r])
+            {
+                mask |= 1 << r;
+                putInt(regs[r]);
+                shadow[r] = regs[r];
+            }
+        }
+        if (pc != shadow[CPU.PC] + CPU.INSTRSIZE)
+        {
+            mask |= 1 << CPU.PC;
+            putInt(pc);
+        }
+        shadow[CPU.PC] = pc;
+        if (sp != shadow[CPU.SP])
+        {
+            mask |= 1 << CPU.SP;
+            putInt(sp);
+            shadow[CPU.SP] = sp;
+        }
+        for(int r = CPU.BASE; r <= CPU.LIM; r++)
+        {
+            if (regs[r] != shadow[r])
+            {
+                mask |= 1 << r;
+                putInt(regs[r]);
+                shadow[r] = regs[r];
+            }
+        }
+        end(start, mask);
+        m_count++;
+    }//step
+
+    /**
+     * input
+     *
+     * records a value read from a device or, when replaying, supplies the
+     * value that was read at this point
+     *
+     * @param id    the device id
+     * @param addr  the address that was read
+     * @param val   the value the device returned (ignored when replaying)
+     * @return the value the program should see
+     */
+    public int input(int id, int addr, int val)
+    {
+        int start = begin(TAG_INPUT);
+        putInt(id);
+        putInt(addr);
+        if (!m_replay)
+        {
+            putInt(val);
+            return val;
+        }
+
+        //Check the device and address but take the value from the file
+        if (m_divergence == null && fill(m_pos - start + 4))
+        {
+            int recorded = m_in.getInt(m_in.position() + 9);
+            putInt(recorded);
+            end(start, -1);
+            return recorded;
+        }
+        m_pos = start;
+        return 0;
+    }//input
+
+    /**
+     * close
+     *
+     * ends the trace and closes the file
+     */
+    public void close() throws IOException
+    {
+        if (!m_replay)
+        {
+            m_rec[m_pos++] = (byte)TAG_END;
+            spill();
+        }
+        m_channel.close();
+    }//close
+
+    /**
+     * starts a record
+     *
+     * @return the position of the record in the buffer
+     */
+    private int begin(int tag)
+    {
+        if (m_rec.length - m_pos < MAX_RECORD)
+            spill();
+        int start = m_pos;
+        m_rec[m_pos] = (byte)tag;
+        m_pos += (tag == TAG_INPUT) ? 1 : 3;
+        return start;
+    }//begin
+
+    /**
+     * adds an int to the current record
+     */
+    private void putInt(int val)
+    {
+        byte rec[] = m_rec;
+        int pos = m_pos;
+        rec[pos]     = (byte)(val >>> 24);
+        rec[pos + 1] = (byte)(val >>> 16);
+        rec[pos + 2] = (byte)(val >>> 8);
+        rec[pos + 3] = (byte)val;
+        m_pos = pos + 4;
+    }//putInt
+
+    /**
+     * finishes a record by filling in its mask (unless mask is -1).  When
+     * replaying, the record is compared with the file and then thrown away.
+     */
+    private void end(int start, int mask)
+    {
+        if (mask >= 0)
+        {
+            m_rec[start + 1] = (byte)(mask >>> 8);
+            m_rec[start + 2] = (byte)mask;
+        }
+        if (!m_replay)
+            return;
+
+        int len = m_pos - start;
+        if (m_divergence == null)
+        {
+            if (!fill(len))
+                m_divergence = "trace ended after " + m_count + " instructions";
+            else
+            {
+                int pos = m_in.position();
+                for(int i = 0; i < len; i++)
+                {
+                    if (m_in.get(pos + i) != m_rec[start + i])
+                    {
+                        m_divergence = "instruction " + m_count + ": expected "
+                            + describe(m_in, pos) + " but got "
+                            + describe(ByteBuffer.wrap(m_rec), start);
+                        break;
+                    }
+                }
+                m_in.position(pos + recordLength(m_in, pos));
+            }
+        }
+        m_pos = start;
+    }//end
+
+    /**
+     * writes the buffer to the file
+     */
+    private void spill()
+    {
+        if (!m_replay)
+        {
+            ByteBuffer b = ByteBuffer.wrap(m_rec, 0, m_pos);
+            try
+            {
+                while (b.hasRemaining())
+                    m_bytes += m_channel.write(b);
+            }
+            catch(IOException e)
+            {
+                System.out.println("\nERROR: Could not write trace: " + e);
+            }
+        }
+        m_pos = 0;
+    }//spill
+
+    /**
+     * makes sure at least n unchecked bytes of the file are in m_in
+     *
+     * @return false if the file ends first
+     */
+    private boolean fill(int n)
+    {
+        if (m_in.remaining() >= n)
+            return true;
+        m_in.compact();
+        try
+        {
+            while (m_in.position() < n)
+            {
+                if (m_channel.read(m_in) < 0)
+                    break;
+            }
+        }
+        catch(IOException e)
+        {
+            System.out.println("\nERROR: Could not read trace: " + e);
+        }
+        m_in.flip();
+        return m_in.remaining() >= n;
+    }//fill
+
+    /**
+     * @return the length of the record at the given position of a buffer
+     */
+    private static int recordLength(ByteBuffer b, int pos)
+    {
+        int tag = b.get(pos) & 0xFF;
+        if (tag == TAG_INPUT)
+            return 13;
+        if (tag == TAG_END)
+            return 1;
+        return 3 + 4 * Integer.bitCount(b.getShort(pos + 1) & 0xFFFF);
+    }//recordLength
+
+    /**
+     * @return a readable version of the record at the given position of a
+     *         buffer
+     */
+    private static String describe(ByteBuffer b, int pos)
+    {
+        int tag = b.get(pos) & 0xFF;
+        if (tag == TAG_INPUT)
+            return "INPUT dev=" + b.getInt(pos + 1) + " addr=" + b.getInt(pos + 5)
+                + " val=" + b.getInt(pos + 9);
+        if (tag == TAG_END)
+            return "END";
+
+        String s = (tag == TAG_SYNC) ? "SYNC" : Profiler.opName((byte)tag);
+        int mask = b.getShort(pos + 1) & 0xFFFF;
+        int at = pos + 3;
+        for(int r = 0; r < CPU.NUMREG; r++)
+        {
+            if ((mask & (1 << r)) != 0)
+            {
+                s += " " + regName(r) + "=" + b.getInt(at);
+                at += 4;
+            }
+        }
+        return s;
+    }//describe
+
+    /**
+     * @return the name of a register
+     */
+    private static String regName(int r)
+    {
+        switch(r)
+        {
+            case CPU.PC:   return "PC";
+            case CPU.SP:   return "SP";
+            case CPU.BASE: return "BASE";
+            case CPU.LIM:  return "LIM";
+            default:       return "r" + r;
+        }
+    }//regName
+
+    /**
+     * print
+     *
+     * prints a trace file one record per line (unless only the summary is
+     * wanted), showing the address of each instruction, followed by a
+     * count of each opcode
+     *
+     * @param fileName the trace file
+     * @param out      where to print it
+     * @param summary  true to only print the counts
+     */
+    public static void print(String fileName, PrintStream out, boolean summary) throws IOException
+    {
+        Trace t = new Trace(fileName, true);
+        long opCounts[] = new long[257];
+        int pc = 0;
+        long n = 0;
+        while (t.fill(1))
+        {
+            ByteBuffer b = t.m_in;
+            int pos = b.position();
+            int tag = b.get(pos) & 0xFF;
+            if (tag == TAG_END)
+                break;
+            int len = recordLength(b, pos);
+            if (!t.fill(len))
+                break;
+            pos = b.position();
+
+            if (tag != TAG_INPUT)
+            {
+                //Work out the PC of the next instruction
+                int mask = b.getShort(pos + 1) & 0xFFFF;
+                int next = (tag == TAG_SYNC) ? pc : pc + CPU.INSTRSIZE;
+                if ((mask & (1 << CPU.PC)) != 0)
+                {
+                    int at = pos + 3 + 4 * Integer.bitCount(mask & ((1 << CPU.PC) - 1));
+                    next = b.getInt(at);
+                }
+                if (tag != TAG_SYNC)
+                {
+                    opCounts[tag]++;
+                    if (!summary)
+                        out.println(n + "\t@" + pc + "\t" + describe(b, pos));
+                    n++;
+                }
+                else if (!summary)
+                    out.println("\t\t" + describe(b, pos));
+                pc = next;
+            }
+            else if (!summary)
+                out.println("\t\t" + describe(b, pos));
+            b.position(pos + len);
+        }
+        t.close();
+
+        out.println("TRACE: " + n + " instructions");
+        for(int op = 0; op < opCounts.length; op++)
+            if (opCounts[op] > 0)
+                out.println("    " + Profiler.opName((byte)op) + "\t" + opCounts[op]);
+    }//print
+
+    /**
+     * main
+     *
+     * prints the trace file named on the command line.  Pass -summary to
+     * only print the opcode counts.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        boolean summary = false;
+        String fileName = null;
+        for (String arg : args)
+        {
+            if (arg.equals("-summary"))
+                summary = true;
+            else
+                fileName = arg;
+        }
+        if (fileName == null)
+        {
+            System.out.println("usage: Trace [-summary] file");
+            return;
+        }
+        print(fileName, System.out, summary);
+    }//main
+};//class Trace
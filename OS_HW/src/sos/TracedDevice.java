@@ -0,0 +1,113 @@
+package sos;
+
+/**
+ * This class wraps a device so that every value read from it is recorded in
+ * a trace.  When the trace is being replayed the values are taken from the
+ * trace instead and the device itself is never read, so (for example) a run
+ * that read from the keyboard can be replayed without anyone typing.
+ *
+ * @see Trace
+ * @see Device
+ */
+public class TracedDevice implements Device
+{
+    private Device m_device;           // the device being traced
+    private Trace m_trace;             // where reads are recorded
+
+    /**
+     * constructor
+     *
+     * @param dev   the device to trace
+     * @param trace the trace that records (or replays) its reads
+     */
+    public TracedDevice(Device dev, Trace trace)
+    {
+        m_device = dev;
+        m_trace = trace;
+    }//ctor
+
+    /**
+     * getId
+     *
+     * @return the device id of this device
+     */
+    public int getId()
+    {
+        return m_device.getId();
+    }
+
+    /**
+     * setId
+     *
+     * sets the device id of this device
+     *
+     * @param id the new id
+     */
+    public void setId(int id)
+    {
+        m_device.setId(id);
+    }
+
+    /**
+     * isSharable
+     *
+     * @return true if the traced device is sharable
+     */
+    public boolean isSharable()
+    {
+        return m_device.isSharable();
+    }
+
+    /**
+     * isAvailable
+     *
+     * @return true if the traced device is available
+     */
+    public boolean isAvailable()
+    {
+        return m_device.isAvailable();
+    }
+
+    /**
+     * isReadable
+     *
+     * @return whether the traced device can be read from (true/false)
+     */
+    public boolean isReadable()
+    {
+        return m_device.isReadable();
+    }
+
+    /**
+     * isWriteable
+     *
+     * @return whether the traced device can be written to (true/false)
+     */
+    public boolean isWriteable()
+    {
+        return m_device.isWriteable();
+    }
+
+    /**
+     * read
+     *
+     * reads from the device and records the value.  When replaying, the
+     * recorded value is returned instead.
+     */
+    public int read(int addr)
+    {
+        if (m_trace.isReplay())
+            return m_trace.input(getId(), addr, 0);
+        return m_trace.input(getId(), addr, m_device.read(addr));
+    }//read
+
+    /**
+     * write
+     *
+     * passes the request on to the device
+     */
+    public void write(int addr, int data)
+    {
+        m_device.write(addr, data);
+    }//write
+};//class TracedDevice
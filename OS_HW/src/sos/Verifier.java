@@ -0,0 +1,83 @@
+package sos;
+
+/**
+ * This class checks a program before it is loaded.  Everything that can be
+ * proved about the code once (valid opcodes, valid register operands,
+ * branch targets that land on an instruction inside the program) is proved
+ * here so that the CPU doesn't have to keep checking it while the program
+ * runs.  Checks that depend on values only known at run time (LOAD/SAVE
+ * addresses and stack bounds) are still made by the CPU.
+ *
+ * @see SOS#createProcess
+ * @see InstructionCache
+ */
+public class Verifier
+{
+    /**
+     * the constructor does nothing
+     */
+    public Verifier() { }
+
+    /**
+     * verify
+     *
+     * checks a program's code
+     *
+     * @param prog      the program (used for the source line in error
+     *                  messages; may be null)
+     * @param code      the program as it will be loaded into RAM
+     *                  (see Program#export)
+     * @param allocSize the amount of memory the process will be given
+     * @return null if the code is valid; otherwise a description of the
+     *         first problem found
+     */
+    public static String verify(Program prog, int[] code, int allocSize)
+    {
+        if (code == null || code.length == 0)
+            return "the program is empty";
+
+        if (code.length % CPU.INSTRSIZE != 0)
+            return "the program is not a whole number of instructions";
+
+        if (code.length > allocSize + 1)
+            return "the program (" + code.length + " words) does not fit in "
+                   + allocSize + " words of memory";
+
+        for(int addr = 0; addr < code.length; addr += CPU.INSTRSIZE)
+        {
+            int op = InstructionCache.decode(code[addr], code[addr + 1],
+                                             code[addr + 2], code[addr + 3]);
+            if (op == InstructionCache.ILLEGAL)
+                return where(prog, addr) + "illegal opcode or register operand";
+
+            int target;
+            switch(op)
+            {
+                case CPU.BRANCH:
+                    target = code[addr + 1];
+                    break;
+                case CPU.BNE:
+                case CPU.BLT:
+                    target = code[addr + 3];
+                    break;
+                default:
+                    continue;
+            }
+            if (target < 0 || target >= code.length || target % CPU.INSTRSIZE != 0)
+                return where(prog, addr) + "branch target " + target
+                       + " is not an instruction in the program";
+        }//for
+
+        return null;
+    }//verify
+
+    /**
+     * @return the location of an instruction for use in an error message
+     */
+    private static String where(Program prog, int addr)
+    {
+        if (prog != null && prog.getSourceLine(addr) > 0)
+            return "line " + prog.getSourceLine(addr) + ": ";
+        return "address " + addr + ": ";
+    }
+};//class Verifier